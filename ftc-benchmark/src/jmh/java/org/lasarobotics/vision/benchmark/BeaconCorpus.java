@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2016 Arthur Pachachura, LASA Robotics, and contributors
+ * MIT licensed
+ */
+package org.lasarobotics.vision.benchmark;
+
+import org.lasarobotics.vision.image.FileFrameSource;
+import org.lasarobotics.vision.image.FrameSource;
+import org.opencv.core.Mat;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Beacon frames loaded from the checked-in benchmark corpus
+ * <p/>
+ * The corpus lives in ftc-benchmark/corpus, with one directory per resolution (e.g. 640x480).
+ * Its location is passed to the benchmark JVM in the ftcvision.corpus system property.
+ */
+public final class BeaconCorpus implements FrameSource.FrameListener {
+    static {
+        nu.pattern.OpenCV.loadShared();
+    }
+
+    private final List<Mat> rgba = new ArrayList<>();
+    private final List<Mat> gray = new ArrayList<>();
+    private int index = 0;
+
+    /**
+     * Load every frame at a specific resolution
+     *
+     * @param resolution Resolution directory name, such as 640x480
+     */
+    public BeaconCorpus(String resolution) {
+        String root = System.getProperty("ftcvision.corpus", "corpus");
+        FileFrameSource source = new FileFrameSource(new File(root, resolution));
+        source.setFrameListener(this);
+        while (source.next()) {
+            //Frames are collected in frame()
+        }
+        source.release();
+    }
+
+    @Override
+    public Mat frame(Mat rgba, Mat gray) {
+        this.rgba.add(rgba.clone());
+        this.gray.add(gray.clone());
+        return rgba;
+    }
+
+    /**
+     * Advance to the next frame, wrapping around at the end of the corpus
+     */
+    public void advance() {
+        index = (index + 1) % rgba.size();
+    }
+
+    /**
+     * Get the current RGBA frame
+     *
+     * @return RGBA frame
+     */
+    public Mat rgba() {
+        return rgba.get(index);
+    }
+
+    /**
+     * Get the current grayscale frame
+     *
+     * @return Grayscale frame
+     */
+    public Mat gray() {
+        return gray.get(index);
+    }
+
+    /**
+     * Get the number of frames in the corpus
+     *
+     * @return Number of frames
+     */
+    public int size() {
+        return rgba.size();
+    }
+
+    /**
+     * Release all frames
+     */
+    public void release() {
+        for (Mat m : rgba)
+            m.release();
+        for (Mat m : gray)
+            m.release();
+        rgba.clear();
+        gray.clear();
+    }
+}
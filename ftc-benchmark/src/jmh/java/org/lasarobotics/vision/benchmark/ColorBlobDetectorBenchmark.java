@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2016 Arthur Pachachura, LASA Robotics, and contributors
+ * MIT licensed
+ */
+package org.lasarobotics.vision.benchmark;
+
+import org.lasarobotics.vision.detection.ColorBlobDetector;
+import org.lasarobotics.vision.detection.MultiColorBlobDetector;
+import org.lasarobotics.vision.detection.objects.Contour;
+import org.lasarobotics.vision.ftc.resq.Constants;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Color blob detection throughput
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ColorBlobDetectorBenchmark {
+    @Param({"320x240", "640x480", "1280x720"})
+    public String resolution;
+
+    private BeaconCorpus corpus;
+    private ColorBlobDetector red;
+    private ColorBlobDetector blue;
+    private ColorBlobDetector redPooled;
+    private MultiColorBlobDetector multi;
+    private MultiColorBlobDetector multiLookup;
+    private ColorBlobDetector[] detectors;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        corpus = new BeaconCorpus(resolution);
+        red = new ColorBlobDetector(Constants.COLOR_RED_LOWER, Constants.COLOR_RED_UPPER);
+        blue = new ColorBlobDetector(Constants.COLOR_BLUE_LOWER, Constants.COLOR_BLUE_UPPER);
+        redPooled = new ColorBlobDetector(Constants.COLOR_RED_LOWER, Constants.COLOR_RED_UPPER);
+        redPooled.setContourPooling(true);
+        multi = new MultiColorBlobDetector();
+        multiLookup = new MultiColorBlobDetector(true);
+        detectors = new ColorBlobDetector[]{red, blue};
+    }
+
+    @Benchmark
+    public void processRedBlue() {
+        corpus.advance();
+        red.process(corpus.rgba());
+        blue.process(corpus.rgba());
+    }
+
+    @Benchmark
+    public void processRedBlueShared() {
+        corpus.advance();
+        multi.process(corpus.rgba(), detectors);
+    }
+
+    @Benchmark
+    public void processRedBlueLookupTable() {
+        corpus.advance();
+        multiLookup.process(corpus.rgba(), detectors);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        corpus.release();
+    }
+
+    @Benchmark
+    public List<Contour> processRed() {
+        corpus.advance();
+        red.process(corpus.rgba());
+        return red.getContours();
+    }
+
+    @Benchmark
+    public List<Contour> processRedPooled() {
+        corpus.advance();
+        redPooled.process(corpus.rgba());
+        return redPooled.getContours();
+    }
+
+    @Benchmark
+    public List<Contour> processBlue() {
+        corpus.advance();
+        blue.process(corpus.rgba());
+        return blue.getContours();
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2016 Arthur Pachachura, LASA Robotics, and contributors
+ * MIT licensed
+ */
+package org.lasarobotics.vision.benchmark;
+
+import org.lasarobotics.vision.ftc.resq.Constants;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of each stage of color blob detection, measured separately
+ * <p/>
+ * The input of every stage is precomputed for each corpus frame, so each benchmark only times
+ * its own stage, with the same parameters as ColorBlobDetector at the default downsampling.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ColorBlobStageBenchmark {
+    //Same as the default ColorBlobDetector downsampling
+    private static final int DOWNSAMPLING = 2;
+
+    @Param({"320x240", "640x480", "1280x720"})
+    public String resolution;
+
+    private BeaconCorpus corpus;
+    private final List<Mat> downsampled = new ArrayList<>();
+    private final List<Mat> hsv = new ArrayList<>();
+    private final List<Mat> masks = new ArrayList<>();
+    private final List<Mat> dilated = new ArrayList<>();
+    private final Mat pyrDownOut = new Mat();
+    private final Mat hsvOut = new Mat();
+    private final Mat maskOut = new Mat();
+    private final Mat dilateOut = new Mat();
+    private final Mat kernel = new Mat();
+    private final Mat hierarchy = new Mat();
+    private final List<MatOfPoint> contours = new ArrayList<>();
+    private Scalar lower;
+    private Scalar upper;
+    private int index = 0;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        corpus = new BeaconCorpus(resolution);
+        lower = Constants.COLOR_BLUE_LOWER.getScalar();
+        upper = Constants.COLOR_BLUE_UPPER.getScalar();
+
+        for (int i = 0; i < corpus.size(); i++) {
+            Mat down = new Mat();
+            Imgproc.pyrDown(corpus.rgba(), down);
+            for (int l = 1; l < DOWNSAMPLING; l++)
+                Imgproc.pyrDown(down, down);
+            Mat h = new Mat();
+            Imgproc.cvtColor(down, h, Imgproc.COLOR_RGB2HSV_FULL);
+            Mat mask = new Mat();
+            Core.inRange(h, lower, upper, mask);
+            Mat dilate = new Mat();
+            Imgproc.dilate(mask, dilate, kernel);
+
+            downsampled.add(down);
+            hsv.add(h);
+            masks.add(mask);
+            dilated.add(dilate);
+            corpus.advance();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        release(downsampled);
+        release(hsv);
+        release(masks);
+        release(dilated);
+        corpus.release();
+    }
+
+    private static void release(List<Mat> mats) {
+        for (Mat m : mats)
+            m.release();
+        mats.clear();
+    }
+
+    private int next() {
+        corpus.advance();
+        index = (index + 1) % downsampled.size();
+        return index;
+    }
+
+    @Benchmark
+    public Mat pyrDown() {
+        next();
+        Imgproc.pyrDown(corpus.rgba(), pyrDownOut);
+        for (int l = 1; l < DOWNSAMPLING; l++)
+            Imgproc.pyrDown(pyrDownOut, pyrDownOut);
+        return pyrDownOut;
+    }
+
+    @Benchmark
+    public Mat cvtColorHsv() {
+        Imgproc.cvtColor(downsampled.get(next()), hsvOut, Imgproc.COLOR_RGB2HSV_FULL);
+        return hsvOut;
+    }
+
+    @Benchmark
+    public Mat inRange() {
+        Core.inRange(hsv.get(next()), lower, upper, maskOut);
+        return maskOut;
+    }
+
+    @Benchmark
+    public Mat dilate() {
+        Imgproc.dilate(masks.get(next()), dilateOut, kernel);
+        return dilateOut;
+    }
+
+    @Benchmark
+    public List<MatOfPoint> findContours() {
+        //findContours modifies its input, so work on a copy - the copy is a small share of the cost
+        dilated.get(next()).copyTo(dilateOut);
+        contours.clear();
+        Imgproc.findContours(dilateOut, contours, hierarchy, Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE);
+        return contours;
+    }
+}
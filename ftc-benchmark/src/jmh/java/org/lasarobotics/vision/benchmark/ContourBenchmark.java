@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2016 Arthur Pachachura, LASA Robotics, and contributors
+ * MIT licensed
+ */
+package org.lasarobotics.vision.benchmark;
+
+import org.lasarobotics.vision.detection.ColorBlobDetector;
+import org.lasarobotics.vision.detection.objects.Contour;
+import org.lasarobotics.vision.ftc.resq.Constants;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+import org.opencv.core.MatOfPoint;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Contour geometry throughput over every blob contour found in the corpus
+ * <p/>
+ * Fresh Contour wrappers are created for every operation, so cached geometry is never reused.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ContourBenchmark {
+    @Param({"320x240", "640x480", "1280x720"})
+    public String resolution;
+
+    private final List<MatOfPoint> contours = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        BeaconCorpus corpus = new BeaconCorpus(resolution);
+        ColorBlobDetector red = new ColorBlobDetector(Constants.COLOR_RED_LOWER, Constants.COLOR_RED_UPPER);
+        ColorBlobDetector blue = new ColorBlobDetector(Constants.COLOR_BLUE_LOWER, Constants.COLOR_BLUE_UPPER);
+        for (int i = 0; i < corpus.size(); i++) {
+            red.process(corpus.rgba());
+            blue.process(corpus.rgba());
+            for (Contour c : red.getContours())
+                contours.add(new MatOfPoint(c.getData().toArray()));
+            for (Contour c : blue.getContours())
+                contours.add(new MatOfPoint(c.getData().toArray()));
+            corpus.advance();
+        }
+        corpus.release();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (MatOfPoint m : contours)
+            m.release();
+        contours.clear();
+    }
+
+    @Benchmark
+    public void centroid(Blackhole blackhole) {
+        for (MatOfPoint m : contours)
+            blackhole.consume(new Contour(m).centroid());
+    }
+
+    @Benchmark
+    public void calculate(Blackhole blackhole) {
+        //size() computes and caches the bounding box
+        for (MatOfPoint m : contours)
+            blackhole.consume(new Contour(m).size());
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2016 Arthur Pachachura, LASA Robotics, and contributors
+ * MIT licensed
+ */
+package org.lasarobotics.vision.benchmark;
+
+import org.lasarobotics.vision.detection.PrimitiveDetection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ellipse and rectangle detection throughput
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PrimitiveDetectionBenchmark {
+    @Param({"320x240", "640x480", "1280x720"})
+    public String resolution;
+
+    private BeaconCorpus corpus;
+    private PrimitiveDetection detection;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        corpus = new BeaconCorpus(resolution);
+        detection = new PrimitiveDetection();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        corpus.release();
+    }
+
+    @Benchmark
+    public PrimitiveDetection.EllipseLocationResult locateEllipses() {
+        corpus.advance();
+        return PrimitiveDetection.locateEllipses(corpus.gray());
+    }
+
+    @Benchmark
+    public PrimitiveDetection.RectangleLocationResult locateRectangles() {
+        corpus.advance();
+        return detection.locateRectangles(corpus.gray());
+    }
+}
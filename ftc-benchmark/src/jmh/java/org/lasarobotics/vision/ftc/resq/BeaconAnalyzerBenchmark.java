@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2016 Arthur Pachachura, LASA Robotics, and contributors
+ * MIT licensed
+ */
+package org.lasarobotics.vision.ftc.resq;
+
+import org.lasarobotics.vision.benchmark.BeaconCorpus;
+import org.lasarobotics.vision.detection.ColorBlobDetector;
+import org.lasarobotics.vision.detection.objects.Rectangle;
+import org.lasarobotics.vision.image.IntegralImage;
+import org.lasarobotics.vision.util.ScreenOrientation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Beacon analysis throughput for each analysis method
+ * <p/>
+ * Lives in the ftc.resq package to reach the package-private BeaconAnalyzer.
+ * Each method includes blob detection, which is part of every analysis.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BeaconAnalyzerBenchmark {
+    @Param({"320x240", "640x480", "1280x720"})
+    public String resolution;
+
+    private BeaconCorpus corpus;
+    private ColorBlobDetector red;
+    private ColorBlobDetector blue;
+    private Rectangle bounds;
+    private Beacon tracking;
+    private IntegralImage grayIntegral;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        corpus = new BeaconCorpus(resolution);
+        red = new ColorBlobDetector(Constants.COLOR_RED_LOWER, Constants.COLOR_RED_UPPER);
+        blue = new ColorBlobDetector(Constants.COLOR_BLUE_LOWER, Constants.COLOR_BLUE_UPPER);
+        bounds = new Rectangle(corpus.rgba().size());
+        tracking = new Beacon(Beacon.AnalysisMethod.TRACKING);
+        grayIntegral = new IntegralImage();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        corpus.release();
+        grayIntegral.release();
+    }
+
+    @Benchmark
+    public Beacon.BeaconAnalysis analyzeRealtime() {
+        corpus.advance();
+        red.process(corpus.rgba());
+        blue.process(corpus.rgba());
+        return BeaconAnalyzer.analyze_REALTIME(red.getContours(), blue.getContours(),
+                corpus.rgba(), ScreenOrientation.LANDSCAPE, false);
+    }
+
+    @Benchmark
+    public Beacon.BeaconAnalysis analyzeFast() {
+        corpus.advance();
+        Rectangle region = BeaconAnalyzer.orientBounds(bounds, corpus.rgba().size(), ScreenOrientation.LANDSCAPE);
+        red.process(corpus.rgba(), region);
+        blue.process(corpus.rgba(), region);
+        return BeaconAnalyzer.analyze_FAST(red.getContours(), blue.getContours(), corpus.rgba(), corpus.gray(),
+                ScreenOrientation.LANDSCAPE, region, false);
+    }
+
+    @Benchmark
+    public Beacon.BeaconAnalysis analyzeComplex() {
+        corpus.advance();
+        red.process(corpus.rgba());
+        blue.process(corpus.rgba());
+        return BeaconAnalyzer.analyze_COMPLEX(red.getContours(), blue.getContours(),
+                corpus.rgba(), corpus.gray(), ScreenOrientation.LANDSCAPE, bounds, false);
+    }
+
+    @Benchmark
+    public Beacon.BeaconAnalysis analyzeComplexIntegral() {
+        corpus.advance();
+        red.process(corpus.rgba());
+        blue.process(corpus.rgba());
+        grayIntegral.set(corpus.gray());
+        return BeaconAnalyzer.analyze_COMPLEX(red.getContours(), blue.getContours(),
+                corpus.rgba(), corpus.gray(), grayIntegral, ScreenOrientation.LANDSCAPE, bounds, false);
+    }
+
+    @Benchmark
+    public Beacon.BeaconAnalysis analyzeTracking() {
+        //Stay on one frame, measuring the steady state of a tracked beacon
+        return tracking.analyzeFrame(corpus.rgba(), corpus.gray());
+    }
+}
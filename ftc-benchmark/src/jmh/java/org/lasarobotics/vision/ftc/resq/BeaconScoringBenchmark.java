@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2016 Arthur Pachachura, LASA Robotics, and contributors
+ * MIT licensed
+ */
+package org.lasarobotics.vision.ftc.resq;
+
+import org.lasarobotics.vision.benchmark.BeaconCorpus;
+import org.lasarobotics.vision.detection.ColorBlobDetector;
+import org.lasarobotics.vision.detection.ContourTable;
+import org.lasarobotics.vision.detection.EllipseLocator;
+import org.lasarobotics.vision.detection.objects.Contour;
+import org.lasarobotics.vision.detection.objects.Ellipse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of each scoring stage of COMPLEX beacon analysis, measured separately
+ * <p/>
+ * Contours, ellipses and their scores are precomputed for each corpus frame, so each benchmark
+ * only times its own stage.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BeaconScoringBenchmark {
+    @Param({"320x240", "640x480", "1280x720"})
+    public String resolution;
+
+    private BeaconCorpus corpus;
+    private BeaconScoringCOMPLEX scorer;
+    private final List<List<Contour>> contoursRed = new ArrayList<>();
+    private final ContourTable table = new ContourTable();
+    private final List<List<Ellipse>> ellipses = new ArrayList<>();
+    private final List<List<BeaconScoringCOMPLEX.ScoredContour>> scoredRed = new ArrayList<>();
+    private final List<List<BeaconScoringCOMPLEX.ScoredContour>> scoredBlue = new ArrayList<>();
+    private final List<List<BeaconScoringCOMPLEX.ScoredEllipse>> scoredEllipses = new ArrayList<>();
+    private int index = 0;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        corpus = new BeaconCorpus(resolution);
+        scorer = new BeaconScoringCOMPLEX(corpus.rgba().size());
+        ColorBlobDetector red = new ColorBlobDetector(Constants.COLOR_RED_LOWER, Constants.COLOR_RED_UPPER);
+        ColorBlobDetector blue = new ColorBlobDetector(Constants.COLOR_BLUE_LOWER, Constants.COLOR_BLUE_UPPER);
+        EllipseLocator locator = new EllipseLocator();
+
+        for (int i = 0; i < corpus.size(); i++) {
+            red.process(corpus.rgba());
+            blue.process(corpus.rgba());
+            List<Contour> r = new ArrayList<>(red.getContours());
+            List<Ellipse> e = locator.locate(corpus.gray()).getEllipses();
+
+            contoursRed.add(r);
+            ellipses.add(e);
+            table.setBounds(r);
+            scoredRed.add(scorer.scoreContours(table, null, null, corpus.rgba(), corpus.gray()));
+            table.setBounds(blue.getContours());
+            scoredBlue.add(scorer.scoreContours(table, null, null, corpus.rgba(), corpus.gray()));
+            scoredEllipses.add(scorer.scoreEllipses(e, null, null, corpus.gray()));
+            corpus.advance();
+        }
+        locator.release();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        corpus.release();
+    }
+
+    private int next() {
+        corpus.advance();
+        index = (index + 1) % contoursRed.size();
+        return index;
+    }
+
+    @Benchmark
+    public List<BeaconScoringCOMPLEX.ScoredContour> scoreContours() {
+        int i = next();
+        //Includes building the table, as analysis does once per color per frame
+        table.setBounds(contoursRed.get(i));
+        return scorer.scoreContours(table, null, null, corpus.rgba(), corpus.gray());
+    }
+
+    @Benchmark
+    public List<BeaconScoringCOMPLEX.ScoredEllipse> scoreEllipses() {
+        int i = next();
+        return scorer.scoreEllipses(ellipses.get(i), null, null, corpus.gray());
+    }
+
+    @Benchmark
+    public BeaconScoringCOMPLEX.MultiAssociatedContours scoreAssociations() {
+        int i = next();
+        return scorer.scoreAssociations(scoredRed.get(i), scoredBlue.get(i), scoredEllipses.get(i));
+    }
+}
@@ -68,6 +68,8 @@ import com.qualcomm.robotcore.util.ImmersiveMode;
 import com.qualcomm.robotcore.util.RobotLog;
 import com.qualcomm.robotcore.wifi.WifiDirectAssistant;
 
+import org.lasarobotics.vision.opmode.VisionPreloader;
+
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.Serializable;
@@ -126,6 +128,9 @@ public class FtcRobotControllerActivity extends Activity {
 
         //initializeVision(R.id.entire_screen);
 
+        //Load OpenCV and open the camera while the robot is being set up
+        VisionPreloader.preload(this);
+
         utility = new Utility(this);
         context = this;
         entireScreenLayout = (LinearLayout) findViewById(R.id.entire_screen);
@@ -206,6 +211,9 @@ public class FtcRobotControllerActivity extends Activity {
         if (controllerService != null) unbindService(connection);
 
         RobotLog.cancelWriteLogcatToDisk(this);
+
+        //Don't hold the camera while in the background
+        VisionPreloader.release();
     }
 
     @Override
@@ -2,6 +2,7 @@ package com.qualcomm.ftcrobotcontroller.opmodes;
 
 import org.lasarobotics.vision.android.Cameras;
 import org.lasarobotics.vision.ftc.resq.Beacon;
+import org.lasarobotics.vision.image.FrameQueue;
 import org.lasarobotics.vision.opmode.LinearVisionOpMode;
 import org.lasarobotics.vision.opmode.extensions.CameraControlExtension;
 import org.lasarobotics.vision.util.ScreenOrientation;
@@ -118,17 +119,16 @@ public class LinearVisionSample extends LinearVisionOpMode {
             telemetry.addData("Frame Size", "Width: " + width + " Height: " + height);
             telemetry.addData("Frame Counter", frameCount);
 
-            //You can access the most recent frame data and modify it here using getFrameRgba() or getFrameGray()
             //Vision will run asynchronously (parallel) to any user code so your programs won't hang
-            //You can use hasNewFrame() to test whether vision processed a new frame
-            //Once you copy the frame, discard it immediately with discardFrame()
-            if (hasNewFrame()) {
+            //waitForNextFrame() waits for a frame newer than the last one, here for up to 50 ms,
+            //and returns null if none arrived in time
+            //The frame is a private copy of the camera frame, so it can be read at any pace until the next
+            //call, but changes made to it will not be shown on the camera preview
+            FrameQueue.Frame frame = waitForNextFrame(50);
+            if (frame != null) {
                 //Get the frame
-                Mat rgba = getFrameRgba();
-                Mat gray = getFrameGray();
-
-                //Discard the current frame to allow for the next one to render
-                discardFrame();
+                Mat rgba = frame.rgba();
+                Mat gray = frame.gray();
 
                 //Do all of your custom frame processing here
                 //For this demo, let's just add to a frame counter
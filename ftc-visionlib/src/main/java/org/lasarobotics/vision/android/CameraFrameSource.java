@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2016 Arthur Pachachura, LASA Robotics, and contributors
+ * MIT licensed
+ */
+
+package org.lasarobotics.vision.android;
+
+import org.lasarobotics.vision.image.FrameSource;
+import org.opencv.android.CameraBridgeViewBase;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+/**
+ * Frame source backed by an OpenCV camera view
+ * Frames captured by the camera are pushed to the frame listener on the camera thread.
+ */
+public class CameraFrameSource implements FrameSource, CameraBridgeViewBase.CvCameraViewListener2 {
+    private final CameraBridgeViewBase view;
+    private FrameListener listener = null;
+    private volatile boolean running = false;
+    private int width = 0, height = 0;
+
+    /**
+     * Create a frame source from a camera view
+     *
+     * @param view Camera view, such as a JavaCameraView
+     */
+    public CameraFrameSource(CameraBridgeViewBase view) {
+        this.view = view;
+        view.setCvCameraViewListener(this);
+    }
+
+    /**
+     * Get the camera view backing this source
+     *
+     * @return Camera view
+     */
+    public CameraBridgeViewBase getView() {
+        return view;
+    }
+
+    @Override
+    public void setFrameListener(FrameListener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public Size getFrameSize() {
+        return new Size(width, height);
+    }
+
+    @Override
+    public boolean start() {
+        view.enableView();
+        return true;
+    }
+
+    @Override
+    public void stop() {
+        view.disableView();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public void onCameraViewStarted(int width, int height) {
+        this.width = width;
+        this.height = height;
+        running = true;
+    }
+
+    @Override
+    public void onCameraViewStopped() {
+        running = false;
+    }
+
+    @Override
+    public Mat onCameraFrame(CameraBridgeViewBase.CvCameraViewFrame inputFrame) {
+        if (listener == null)
+            return inputFrame.rgba();
+        return listener.frame(inputFrame.rgba(), inputFrame.gray());
+    }
+}
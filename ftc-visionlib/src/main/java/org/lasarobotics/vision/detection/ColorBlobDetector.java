@@ -10,14 +10,21 @@
 package org.lasarobotics.vision.detection;
 
 import org.lasarobotics.vision.detection.objects.Contour;
+import org.lasarobotics.vision.detection.objects.Rectangle;
 import org.lasarobotics.vision.image.Drawing;
+import org.lasarobotics.vision.image.ImagePyramid;
+import org.lasarobotics.vision.image.VisionFrame;
+import org.lasarobotics.vision.util.Latency;
+import org.lasarobotics.vision.util.LatencyHistogram;
 import org.lasarobotics.vision.util.color.Color;
 import org.lasarobotics.vision.util.color.ColorHSV;
 import org.lasarobotics.vision.util.color.ColorSpace;
 import org.opencv.core.Core;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfPoint;
+import org.opencv.core.Rect;
 import org.opencv.core.Scalar;
+import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
 
 import java.util.ArrayList;
@@ -28,14 +35,36 @@ import java.util.List;
  */
 public class ColorBlobDetector {
 
+    /**
+     * Maximum number of times images can be downsampled before detection
+     */
+    public static final int MAX_DOWNSAMPLING = ImagePyramid.MAX_LEVEL;
+
+    //Stage latencies, shared with MultiColorBlobDetector
+    static final LatencyHistogram LATENCY_PYRDOWN = Latency.get("blob.pyrDown");
+    static final LatencyHistogram LATENCY_CVTCOLOR = Latency.get("blob.cvtColor");
+    static final LatencyHistogram LATENCY_INRANGE = Latency.get("blob.inRange");
+    static final LatencyHistogram LATENCY_DILATE = Latency.get("blob.dilate");
+    static final LatencyHistogram LATENCY_FINDCONTOURS = Latency.get("blob.findContours");
+
     private final List<Contour> contours = new ArrayList<>();
     // Cache
+    private final List<MatOfPoint> contourListTemp = new ArrayList<>();
+    private final List<Contour> contourPool = new ArrayList<>();
+    private final Mat mKernel = new Mat();
     private final Mat mPyrDownMat = new Mat();
     private final Mat mHsvMat = new Mat();
     private final Mat mMaskOne = new Mat();
     private final Mat mMask = new Mat();
     private final Mat mDilatedMask = new Mat();
     private final Mat mHierarchy = new Mat();
+    private final Scalar mWrapLower = new Scalar(0, 0, 0, 0);
+    private final Scalar mWrapUpper = new Scalar(0, 0, 0, 0);
+    private final Scalar mOffset = new Scalar(0, 0);
+    //Contours are scaled back up by 2^downsampling
+    private final Scalar mContourScale = new Scalar(4, 4);
+    //Number of pyrDowns applied before detection
+    private int downsampling = 2;
     //Lower bound for range checking
     private ColorHSV lowerBound = new ColorHSV(0, 0, 0);
     //Upper bound for range checking
@@ -46,6 +75,10 @@ public class ColorBlobDetector {
     private Color color;
     //True if radius is set, false if lower and upper bound is set
     private boolean isRadiusSet = true;
+    //True if contour instances are recycled between frames
+    private boolean pooling = false;
+    //Incremented whenever the bounds change, so cached lookup tables can be rebuilt
+    private int boundsVersion = 0;
 
     /**
      * Create a blob detector that searches for a color (within an acceptable radius)
@@ -108,6 +141,7 @@ public class ColorBlobDetector {
 
         lowerBound = new ColorHSV(lowerBoundScalar);
         upperBound = new ColorHSV(upperBoundScalar);
+        boundsVersion++;
     }
 
     private void setColorRadius(Color lowerBound, Color upperBound) {
@@ -117,6 +151,7 @@ public class ColorBlobDetector {
 
         this.lowerBound = new ColorHSV(lower);
         this.upperBound = new ColorHSV(upper);
+        boundsVersion++;
     }
 
     /**
@@ -157,6 +192,104 @@ public class ColorBlobDetector {
         setColor(color);
     }
 
+    /**
+     * Get the version of the color bounds, which changes every time the bounds change
+     *
+     * @return Bounds version
+     */
+    int getBoundsVersion() {
+        return boundsVersion;
+    }
+
+    /**
+     * Test whether an HSV color (COLOR_RGB2HSV_FULL) is within the bounds of this detector
+     * This is equivalent to the inRange test in processHsv(), including hue wraparound.
+     *
+     * @param h Hue, from 0 to 255
+     * @param s Saturation, from 0 to 255
+     * @param v Value, from 0 to 255
+     * @return True if the color is detected, false otherwise
+     */
+    boolean contains(double h, double s, double v) {
+        double[] l = lowerBound.getScalar().val;
+        double[] u = upperBound.getScalar().val;
+        if (s < l[1] || s > u[1] || v < l[2] || v > u[2])
+            return false;
+        if (u[0] <= 255)
+            return h >= l[0] && h <= u[0];
+
+        //Hue crosses over 255 - match from 0 to n or from 255-n to 255
+        double upper = u[0];
+        while (upper > 255)
+            upper -= 255;
+        return h <= upper || h >= l[0];
+    }
+
+    /**
+     * Test whether contours are pooled between frames
+     *
+     * @return True if pooling is enabled, false otherwise
+     */
+    public boolean isContourPooling() {
+        return pooling;
+    }
+
+    /**
+     * Enable or disable pooling of contours between frames
+     * <p/>
+     * When enabled, the Contour instances returned by getContours() are recycled by the next call
+     * to process(), and their points are released. Copy any contour that must outlive the frame.
+     * This removes nearly all per-frame allocations from this detector.
+     *
+     * @param pooling True to recycle contours between frames, false to create new contours every frame
+     */
+    public void setContourPooling(boolean pooling) {
+        if (this.pooling && !pooling)
+            contourPool.clear();
+        this.pooling = pooling;
+    }
+
+    /**
+     * Get the number of times images are downsampled (by pyrDown) before detection
+     *
+     * @return Number of downsampling levels, 2 by default
+     */
+    public int getDownsampling() {
+        return downsampling;
+    }
+
+    /**
+     * Set the number of times images are downsampled (by pyrDown) before detection
+     * Each level halves the width and height of the image that is searched, so detection runs
+     * roughly four times faster, but small or thin blobs may be missed.
+     *
+     * @param levels Number of downsampling levels, from 0 to MAX_DOWNSAMPLING
+     */
+    public void setDownsampling(int levels) {
+        if (levels < 0 || levels > MAX_DOWNSAMPLING)
+            throw new IllegalArgumentException("Downsampling must be between 0 and " + MAX_DOWNSAMPLING + "!");
+        this.downsampling = levels;
+        mContourScale.val[0] = 1 << levels;
+        mContourScale.val[1] = 1 << levels;
+    }
+
+    /**
+     * Downsample an image by pyrDown a number of times
+     *
+     * @param image  Image to downsample
+     * @param buffer Buffer for the result
+     * @param levels Number of pyrDowns
+     * @return The downsampled image, which is the image itself if levels is 0
+     */
+    static Mat downsample(Mat image, Mat buffer, int levels) {
+        if (levels == 0)
+            return image;
+        Imgproc.pyrDown(image, buffer);
+        for (int i = 1; i < levels; i++)
+            Imgproc.pyrDown(buffer, buffer);
+        return buffer;
+    }
+
     /**
      * Process an rgba image. The results can be drawn on retrieved later.
      * This method does not modify the image.
@@ -164,46 +297,226 @@ public class ColorBlobDetector {
      * @param rgbaImage An RGBA image matrix
      */
     public void process(Mat rgbaImage) {
-        Imgproc.pyrDown(rgbaImage, mPyrDownMat);
-        Imgproc.pyrDown(mPyrDownMat, mPyrDownMat);
+        long t = Latency.start();
+        Mat downsampled = downsample(rgbaImage, mPyrDownMat, downsampling);
+        t = LATENCY_PYRDOWN.lap(t);
 
-        Imgproc.cvtColor(mPyrDownMat, mHsvMat, Imgproc.COLOR_RGB2HSV_FULL);
+        Imgproc.cvtColor(downsampled, mHsvMat, Imgproc.COLOR_RGB2HSV_FULL);
+        LATENCY_CVTCOLOR.lap(t);
+
+        processHsv(mHsvMat);
+    }
 
+    /**
+     * Process a frame, using the HSV level of its pyramid matching the downsampling
+     * The level is shared with every other consumer of the frame, so it is only built once.
+     * The results can be drawn on retrieved later.
+     *
+     * @param frame Frame to process
+     */
+    public void process(VisionFrame frame) {
+        long t = Latency.start();
+        Mat hsv = frame.pyramid().get(ImagePyramid.Variant.HSV, downsampling);
+        LATENCY_PYRDOWN.lap(t);
+
+        processHsv(hsv);
+    }
+
+    /**
+     * Process only the region of a frame within a set of bounds
+     * The region is cut out of the frame's shared pyramid, so no downsampling is repeated.
+     * Contours are returned in the coordinates of the full image, but are cut off at the bounds.
+     *
+     * @param frame  Frame to process
+     * @param bounds Region of the image to process
+     */
+    public void process(VisionFrame frame, Rectangle bounds) {
+        Mat full = frame.pyramid().get(ImagePyramid.Variant.HSV, downsampling);
+        //The level is built from the full RGBA image, so getting it converts nothing more
+        Size fullSize = frame.pyramid().get(ImagePyramid.Variant.RGBA, 0).size();
+        Rect region = getRegion(fullSize, full.size(), bounds, downsampling);
+        if (region == null) {
+            clearContours();
+            return;
+        }
+
+        Mat hsv = full.submat(region);
+        processHsv(hsv, region.x << downsampling, region.y << downsampling);
+        hsv.release();
+    }
+
+    /**
+     * Process only the region of an rgba image within a set of bounds
+     * Only the region is downsampled, converted, and searched, so smaller bounds process faster.
+     * Contours are returned in the coordinates of the full image, but are cut off at the bounds.
+     * This method does not modify the image.
+     *
+     * @param rgbaImage An RGBA image matrix
+     * @param bounds    Region of the image to process
+     */
+    public void process(Mat rgbaImage, Rectangle bounds) {
+        Rect region = getRegion(rgbaImage.size(), bounds);
+        if (region == null) {
+            clearContours();
+            return;
+        }
+
+        long t = Latency.start();
+        Mat roi = rgbaImage.submat(region);
+        Mat downsampled = downsample(roi, mPyrDownMat, downsampling);
+        t = LATENCY_PYRDOWN.lap(t);
+
+        Imgproc.cvtColor(downsampled, mHsvMat, Imgproc.COLOR_RGB2HSV_FULL);
+        roi.release();
+        LATENCY_CVTCOLOR.lap(t);
+
+        processHsv(mHsvMat, region.x, region.y);
+    }
+
+    /**
+     * Get the pixel region of a pyramid level covered by a set of bounds
+     * Both sizes are needed, since pyrDown rounds odd sizes up and the full size cannot be
+     * recovered from the size of the level.
+     *
+     * @param fullSize  Size of the full image (level 0)
+     * @param levelSize Size of the pyramid level
+     * @param bounds    Bounds in the coordinates of the full image, which may extend outside of it
+     * @param level     Pyramid level
+     * @return Region of the level, or null if the region is too small to process
+     */
+    static Rect getRegion(Size fullSize, Size levelSize, Rectangle bounds, int level) {
+        Rect region = getRegion(fullSize, bounds);
+        if (region == null)
+            return null;
+        Rect scaled = ImagePyramid.scale(region, level);
+        int right = Math.min((int) levelSize.width, scaled.x + scaled.width);
+        int bottom = Math.min((int) levelSize.height, scaled.y + scaled.height);
+        if (right <= scaled.x || bottom <= scaled.y)
+            return null;
+        return new Rect(scaled.x, scaled.y, right - scaled.x, bottom - scaled.y);
+    }
+
+    /**
+     * Get the pixel region of an image covered by a set of bounds
+     *
+     * @param imageSize Size of the image
+     * @param bounds    Bounds, which may extend outside of the image
+     * @return Region clipped to the image, or null if the region is too small to process
+     */
+    static Rect getRegion(Size imageSize, Rectangle bounds) {
+        int left = (int) Math.max(0, Math.floor(bounds.left()));
+        int top = (int) Math.max(0, Math.floor(bounds.top()));
+        int right = (int) Math.min(imageSize.width, Math.ceil(bounds.right()));
+        int bottom = (int) Math.min(imageSize.height, Math.ceil(bounds.bottom()));
+
+        //Two pyrDowns need at least a few pixels to work with
+        if (right - left < 4 || bottom - top < 4)
+            return null;
+        return new Rect(left, top, right - left, bottom - top);
+    }
+
+    /**
+     * Process an HSV image that has already been downsampled getDownsampling() times (twice by default)
+     * Contours are scaled back up to the size of the original image.
+     * This allows a single downsampled HSV image to be shared between several detectors.
+     *
+     * @param hsvImage An HSV image matrix (COLOR_RGB2HSV_FULL), downsampled by pyrDown
+     */
+    public void processHsv(Mat hsvImage) {
+        processHsv(hsvImage, 0, 0);
+    }
+
+    /**
+     * Process an HSV image of a region that has already been downsampled getDownsampling() times
+     * Contours are scaled back up and offset by the position of the region in the original image.
+     *
+     * @param hsvImage An HSV image matrix (COLOR_RGB2HSV_FULL), downsampled by pyrDown
+     * @param offsetX  Left edge of the region within the original image, in pixels
+     * @param offsetY  Top edge of the region within the original image, in pixels
+     */
+    public void processHsv(Mat hsvImage, double offsetX, double offsetY) {
+        long t = Latency.start();
         //Test whether we need two inRange operations (only if the hue crosses over 255)
         if (upperBound.getScalar().val[0] <= 255) {
-            Core.inRange(mHsvMat, lowerBound.getScalar(), upperBound.getScalar(), mMask);
+            Core.inRange(hsvImage, lowerBound.getScalar(), upperBound.getScalar(), mMask);
         } else {
             //We need two operations - we're going to OR the masks together
-            Scalar lower = lowerBound.getScalar().clone();
-            Scalar upper = upperBound.getScalar().clone();
+            Scalar lower = copyScalar(lowerBound.getScalar(), mWrapLower);
+            Scalar upper = copyScalar(upperBound.getScalar(), mWrapUpper);
             while (upper.val[0] > 255)
                 upper.val[0] -= 255;
             double tmp = lower.val[0];
             lower.val[0] = 0;
             //Mask 1 - from 0 to n
-            Core.inRange(mHsvMat, lower, upper, mMaskOne);
+            Core.inRange(hsvImage, lower, upper, mMaskOne);
             //Mask 2 - from 255-n to 255
             lower.val[0] = tmp;
             upper.val[0] = 255;
 
-            Core.inRange(mHsvMat, lower, upper, mMask);
+            Core.inRange(hsvImage, lower, upper, mMask);
             //OR the two masks
             Core.bitwise_or(mMaskOne, mMask, mMask);
         }
+        LATENCY_INRANGE.lap(t);
 
-        //Dilate (blur) the mask to decrease processing power
-        Imgproc.dilate(mMask, mDilatedMask, new Mat());
+        processMask(mMask, offsetX, offsetY);
+    }
 
-        List<MatOfPoint> contourListTemp = new ArrayList<>();
+    /**
+     * Locate contours in a binary mask that has already been downsampled getDownsampling() times
+     *
+     * @param mask    Binary mask, where nonzero pixels match this detector
+     * @param offsetX Left edge of the masked region within the original image, in pixels
+     * @param offsetY Top edge of the masked region within the original image, in pixels
+     */
+    void processMask(Mat mask, double offsetX, double offsetY) {
+        long t = Latency.start();
+        //Dilate (blur) the mask to decrease processing power
+        Imgproc.dilate(mask, mDilatedMask, mKernel);
+        t = LATENCY_DILATE.lap(t);
 
+        //findContours appends to the list, so clear the previous frame's contours first
+        contourListTemp.clear();
         Imgproc.findContours(mDilatedMask, contourListTemp, mHierarchy, Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE);
 
         // Filter contours by area and resize to fit the original image size
+        boolean offset = offsetX != 0 || offsetY != 0;
+        mOffset.val[0] = offsetX;
+        mOffset.val[1] = offsetY;
+        contours.clear();
+        for (int i = 0; i < contourListTemp.size(); i++) {
+            MatOfPoint c = contourListTemp.get(i);
+            Core.multiply(c, mContourScale, c);
+            if (offset)
+                Core.add(c, mOffset, c);
+            contours.add(pooling ? recycleContour(i, c) : new Contour(c));
+        }
+        LATENCY_FINDCONTOURS.lap(t);
+    }
+
+    /**
+     * Clear the contours, as if nothing was detected
+     */
+    void clearContours() {
         contours.clear();
-        for (MatOfPoint c : contourListTemp) {
-            Core.multiply(c, new Scalar(4, 4), c);
-            contours.add(new Contour(c));
+    }
+
+    private static Scalar copyScalar(Scalar source, Scalar destination) {
+        System.arraycopy(source.val, 0, destination.val, 0, Math.min(source.val.length, destination.val.length));
+        return destination;
+    }
+
+    private Contour recycleContour(int index, MatOfPoint data) {
+        if (index >= contourPool.size()) {
+            Contour contour = new Contour(data);
+            contourPool.add(contour);
+            return contour;
         }
+        Contour contour = contourPool.get(index);
+        //Free the previous frame's points now rather than waiting on the finalizer
+        contour.getData().release();
+        contour.setData(data);
+        return contour;
     }
 
     /**
@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2016 Arthur Pachachura, LASA Robotics, and contributors
+ * MIT licensed
+ */
+package org.lasarobotics.vision.detection;
+
+import org.lasarobotics.vision.util.MathUtil;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.util.List;
+
+/**
+ * Precomputed RGB to color class lookup table for several color blob detectors at once
+ * <p/>
+ * RGB space is quantized into 32x32x32 bins. Each bin stores a bitmask of the detectors whose HSV
+ * bounds contain the bin's center color, so a single table lookup labels a pixel for every color.
+ * The table is rebuilt only when the detectors or their bounds change, which moves both the HSV
+ * conversion and hue wraparound handling out of the per-frame path.
+ * <p/>
+ * A second table, indexed by YUV instead of RGB, labels camera frames in their native NV21 format
+ * without converting them to RGB first. It is built the first time it is used.
+ */
+public class ColorLookupTable {
+    /**
+     * Maximum number of detectors in a single table
+     */
+    public static final int MAX_DETECTORS = 8;
+
+    private static final int BITS = 5; //32 bins per channel
+    private static final int SHIFT = 8 - BITS;
+    private static final int BINS = 1 << BITS;
+
+    private final byte[] table = new byte[BINS * BINS * BINS];
+    private final byte[] yuvTable = new byte[BINS * BINS * BINS];
+    private final double[] rgb = new double[3];
+    private boolean yuvTableOutdated = true;
+    private final double[] hsv = new double[3];
+    private ColorBlobDetector[] detectors = new ColorBlobDetector[0];
+    private int[] versions = new int[0];
+    private byte[] pixels = new byte[0];
+    private byte[] chromaPixels = new byte[0];
+    private byte[][] masks = new byte[0][];
+
+    /**
+     * Convert an RGB color to HSV, matching OpenCV's COLOR_RGB2HSV_FULL
+     *
+     * @param r   Red, from 0 to 255
+     * @param g   Green, from 0 to 255
+     * @param b   Blue, from 0 to 255
+     * @param hsv Output array of hue, saturation, and value, each from 0 to 255
+     */
+    static void rgbToHsvFull(double r, double g, double b, double[] hsv) {
+        double v = Math.max(r, Math.max(g, b));
+        double min = Math.min(r, Math.min(g, b));
+        double diff = v - min;
+        double s = (v == 0) ? 0 : Math.round(255.0 * diff / v);
+
+        double h = 0;
+        if (diff != 0) {
+            if (v == r)
+                h = (g - b) / diff;
+            else if (v == g)
+                h = (b - r) / diff + 2;
+            else
+                h = (r - g) / diff + 4;
+            h = Math.round(h * 256.0 / 6.0);
+            if (h < 0)
+                h += 256;
+            if (h > 255)
+                h = 255;
+        }
+
+        hsv[0] = h;
+        hsv[1] = s;
+        hsv[2] = v;
+    }
+
+    /**
+     * Convert a YUV color to RGB, matching OpenCV's COLOR_YUV2RGB_NV21 (ITU-R BT.601, video range)
+     *
+     * @param y   Luma, from 0 to 255
+     * @param u   Blue-difference chroma, from 0 to 255
+     * @param v   Red-difference chroma, from 0 to 255
+     * @param rgb Output array of red, green, and blue, each from 0 to 255
+     */
+    static void yuvToRgb(double y, double u, double v, double[] rgb) {
+        double luma = 1.164 * Math.max(0, y - 16);
+        u -= 128;
+        v -= 128;
+        rgb[0] = MathUtil.coerce(0, 255, Math.round(luma + 1.596 * v));
+        rgb[1] = MathUtil.coerce(0, 255, Math.round(luma - 0.813 * v - 0.391 * u));
+        rgb[2] = MathUtil.coerce(0, 255, Math.round(luma + 2.018 * u));
+    }
+
+    /**
+     * Rebuild the table if the detectors or their bounds have changed since the last build
+     *
+     * @param detectors Color blob detectors, at most MAX_DETECTORS
+     * @return True if the table was rebuilt, false if it was up to date
+     */
+    public boolean update(ColorBlobDetector... detectors) {
+        if (detectors.length > MAX_DETECTORS)
+            throw new IllegalArgumentException("A lookup table supports at most " + MAX_DETECTORS + " detectors!");
+
+        if (!isOutdated(detectors))
+            return false;
+
+        this.detectors = detectors.clone();
+        this.versions = new int[detectors.length];
+        for (int i = 0; i < detectors.length; i++)
+            versions[i] = detectors[i].getBoundsVersion();
+
+        //Label the center of every bin
+        int half = 1 << (SHIFT - 1);
+        for (int r = 0; r < BINS; r++)
+            for (int g = 0; g < BINS; g++)
+                for (int b = 0; b < BINS; b++) {
+                    rgbToHsvFull((r << SHIFT) + half, (g << SHIFT) + half, (b << SHIFT) + half, hsv);
+                    int label = 0;
+                    for (int i = 0; i < detectors.length; i++)
+                        if (detectors[i].contains(hsv[0], hsv[1], hsv[2]))
+                            label |= 1 << i;
+                    table[index(r, g, b)] = (byte) label;
+                }
+        yuvTableOutdated = true;
+        return true;
+    }
+
+    private void updateYuvTable() {
+        int half = 1 << (SHIFT - 1);
+        for (int y = 0; y < BINS; y++)
+            for (int u = 0; u < BINS; u++)
+                for (int v = 0; v < BINS; v++) {
+                    yuvToRgb((y << SHIFT) + half, (u << SHIFT) + half, (v << SHIFT) + half, rgb);
+                    rgbToHsvFull(rgb[0], rgb[1], rgb[2], hsv);
+                    int label = 0;
+                    for (int i = 0; i < detectors.length; i++)
+                        if (detectors[i].contains(hsv[0], hsv[1], hsv[2]))
+                            label |= 1 << i;
+                    yuvTable[index(y, u, v)] = (byte) label;
+                }
+        yuvTableOutdated = false;
+    }
+
+    private boolean isOutdated(ColorBlobDetector[] detectors) {
+        if (detectors.length != this.detectors.length)
+            return true;
+        for (int i = 0; i < detectors.length; i++)
+            if (detectors[i] != this.detectors[i] || detectors[i].getBoundsVersion() != versions[i])
+                return true;
+        return false;
+    }
+
+    private static int index(int rBin, int gBin, int bBin) {
+        return (rBin << (2 * BITS)) | (gBin << BITS) | bBin;
+    }
+
+    /**
+     * Get the detector labels of an RGB color
+     *
+     * @param r Red, from 0 to 255
+     * @param g Green, from 0 to 255
+     * @param b Blue, from 0 to 255
+     * @return Bitmask where bit i is set if detector i matches the color
+     */
+    public int classify(int r, int g, int b) {
+        return table[index(r >> SHIFT, g >> SHIFT, b >> SHIFT)] & 0xFF;
+    }
+
+    /**
+     * Label every pixel of an RGB or RGBA image, creating one binary mask per detector
+     *
+     * @param rgbaImage RGB or RGBA image (8 bits per channel)
+     * @param output    Output masks, one per detector in the order given to update()
+     */
+    public void classify(Mat rgbaImage, List<Mat> output) {
+        int channels = rgbaImage.channels();
+        int count = (int) rgbaImage.total();
+        int n = detectors.length;
+
+        allocateMasks(count, n);
+
+        pixels = read(rgbaImage, pixels);
+
+        for (int p = 0, q = 0; p < count; p++, q += channels) {
+            int label = table[index((pixels[q] & 0xFF) >> SHIFT,
+                    (pixels[q + 1] & 0xFF) >> SHIFT,
+                    (pixels[q + 2] & 0xFF) >> SHIFT)];
+            for (int i = 0; i < n; i++)
+                masks[i][p] = (byte) (((label >> i) & 1) * 255);
+        }
+
+        writeMasks(rgbaImage.rows(), rgbaImage.cols(), output);
+    }
+
+    /**
+     * Label every pixel of an image given as separate luma and chroma planes, such as a downsampled
+     * NV21 camera frame, creating one binary mask per detector
+     *
+     * @param luma   Y plane (8 bits, 1 channel)
+     * @param chroma Interleaved VU plane of the same size as the Y plane (8 bits, 2 channels, V first)
+     * @param output Output masks, one per detector in the order given to update()
+     */
+    public void classify(Mat luma, Mat chroma, List<Mat> output) {
+        if (chroma.rows() != luma.rows() || chroma.cols() != luma.cols() || chroma.channels() != 2)
+            throw new IllegalArgumentException("Chroma plane must be two channels of the same size as the luma plane!");
+        if (yuvTableOutdated)
+            updateYuvTable();
+
+        int count = (int) luma.total();
+        int n = detectors.length;
+        allocateMasks(count, n);
+        pixels = read(luma, pixels);
+        chromaPixels = read(chroma, chromaPixels);
+
+        byte[] vu = chromaPixels;
+        for (int p = 0, q = 0; p < count; p++, q += 2) {
+            int label = yuvTable[index((pixels[p] & 0xFF) >> SHIFT,
+                    (vu[q + 1] & 0xFF) >> SHIFT,
+                    (vu[q] & 0xFF) >> SHIFT)];
+            for (int i = 0; i < n; i++)
+                masks[i][p] = (byte) (((label >> i) & 1) * 255);
+        }
+
+        writeMasks(luma.rows(), luma.cols(), output);
+    }
+
+    private void allocateMasks(int count, int n) {
+        //Resize the buffers only when the frame size changes
+        if (masks.length != n || (n > 0 && masks[0].length != count)) {
+            masks = new byte[n][];
+            for (int i = 0; i < n; i++)
+                masks[i] = new byte[count];
+        }
+    }
+
+    private static byte[] read(Mat image, byte[] buffer) {
+        int length = (int) image.total() * image.channels();
+        if (buffer.length != length)
+            buffer = new byte[length];
+        Mat source = image.isContinuous() ? image : image.clone();
+        source.get(0, 0, buffer);
+        if (source != image)
+            source.release();
+        return buffer;
+    }
+
+    private void writeMasks(int rows, int cols, List<Mat> output) {
+        for (int i = 0; i < detectors.length; i++) {
+            Mat mask = output.get(i);
+            mask.create(rows, cols, CvType.CV_8UC1);
+            mask.put(0, 0, masks[i]);
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2016 Arthur Pachachura, LASA Robotics, and contributors
+ * MIT licensed
+ */
+package org.lasarobotics.vision.detection;
+
+import org.lasarobotics.vision.detection.objects.Contour;
+import org.opencv.core.Point;
+
+import java.util.List;
+
+/**
+ * Features of all contours of a frame, stored in parallel primitive arrays
+ * <p/>
+ * Bounds, area and centroid are extracted for every contour in a single pass when the table is
+ * built, or only the bounds if that is all the caller reads.
+ * Scoring and filtering can then loop over the arrays instead of querying each contour.
+ * <p/>
+ * Row i of every array describes contour i of the list the table was built from. The arrays are
+ * owned by the table and reused when it is rebuilt - treat them as read-only.
+ */
+public class ContourTable {
+    private List<Contour> contours;
+    private int size = 0;
+    private double[] left = new double[0];
+    private double[] top = new double[0];
+    private double[] width = new double[0];
+    private double[] height = new double[0];
+    private double[] area = new double[0];
+    private double[] centroidX = new double[0];
+    private double[] centroidY = new double[0];
+    private boolean hasShape = false;
+
+    /**
+     * Create an empty table
+     */
+    public ContourTable() {
+
+    }
+
+    /**
+     * Create a table of a list of contours
+     *
+     * @param contours Contours
+     */
+    public ContourTable(List<Contour> contours) {
+        set(contours);
+    }
+
+    /**
+     * Rebuild the table from a list of contours, reusing its arrays
+     *
+     * @param contours Contours
+     */
+    public void set(List<Contour> contours) {
+        setBounds(contours);
+        if (area.length < size) {
+            area = new double[left.length];
+            centroidX = new double[left.length];
+            centroidY = new double[left.length];
+        }
+
+        for (int i = 0; i < size; i++) {
+            Contour contour = contours.get(i);
+            Point centroid = contour.centroid();
+            area[i] = contour.area();
+            centroidX[i] = centroid.x;
+            centroidY[i] = centroid.y;
+        }
+        hasShape = true;
+    }
+
+    /**
+     * Rebuild the table from a list of contours, extracting only their bounding boxes
+     * Area and centroid require a pass over every point of every contour, so skip them when
+     * they are not read.
+     *
+     * @param contours Contours
+     */
+    public void setBounds(List<Contour> contours) {
+        this.contours = contours;
+        size = contours.size();
+        hasShape = false;
+        if (left.length < size) {
+            left = new double[size];
+            top = new double[size];
+            width = new double[size];
+            height = new double[size];
+        }
+
+        for (int i = 0; i < size; i++) {
+            //Primitive getters avoid copying the cached corner and size
+            Contour contour = contours.get(i);
+            left[i] = contour.left();
+            top[i] = contour.top();
+            width[i] = contour.width();
+            height[i] = contour.height();
+        }
+    }
+
+    /**
+     * Get the number of contours in the table
+     *
+     * @return Number of rows
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the contours the table was built from
+     *
+     * @return List of contours, where row i is element i
+     */
+    public List<Contour> getContours() {
+        return contours;
+    }
+
+    /**
+     * Get a contour of the table
+     *
+     * @param i Row
+     * @return Contour at the row
+     */
+    public Contour getContour(int i) {
+        return contours.get(i);
+    }
+
+    /**
+     * Get the x-coordinates of the left side of the bounding boxes
+     *
+     * @return Array of at least size() elements
+     */
+    public double[] getLeft() {
+        return left;
+    }
+
+    /**
+     * Get the y-coordinates of the top side of the bounding boxes
+     *
+     * @return Array of at least size() elements
+     */
+    public double[] getTop() {
+        return top;
+    }
+
+    /**
+     * Get the widths of the bounding boxes
+     *
+     * @return Array of at least size() elements
+     */
+    public double[] getWidth() {
+        return width;
+    }
+
+    /**
+     * Get the heights of the bounding boxes
+     *
+     * @return Array of at least size() elements
+     */
+    public double[] getHeight() {
+        return height;
+    }
+
+    /**
+     * Get the areas enclosed by the contours
+     *
+     * @return Array of at least size() elements
+     */
+    public double[] getArea() {
+        if (!hasShape)
+            throw new IllegalStateException("The table was built with setBounds()!");
+        return area;
+    }
+
+    /**
+     * Get the x-coordinates of the centroids
+     *
+     * @return Array of at least size() elements
+     */
+    public double[] getCentroidX() {
+        if (!hasShape)
+            throw new IllegalStateException("The table was built with setBounds()!");
+        return centroidX;
+    }
+
+    /**
+     * Get the y-coordinates of the centroids
+     *
+     * @return Array of at least size() elements
+     */
+    public double[] getCentroidY() {
+        if (!hasShape)
+            throw new IllegalStateException("The table was built with setBounds()!");
+        return centroidY;
+    }
+
+    /**
+     * Get the aspect ratio (width / height) of the bounding box of a contour
+     *
+     * @param i Row
+     * @return Aspect ratio
+     */
+    public double getAspectRatio(int i) {
+        return width[i] / height[i];
+    }
+
+    /**
+     * Get the area of the bounding box of a contour
+     *
+     * @param i Row
+     * @return Bounding box area
+     */
+    public double getBoundingArea(int i) {
+        return width[i] * height[i];
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2016 Arthur Pachachura, LASA Robotics, and contributors
+ * MIT licensed
+ */
+package org.lasarobotics.vision.detection;
+
+import org.lasarobotics.vision.detection.objects.Contour;
+import org.lasarobotics.vision.detection.objects.Ellipse;
+import org.lasarobotics.vision.image.ImagePyramid;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Locates ellipses in grayscale images, rejecting unlikely contours before fitting them
+ * <p/>
+ * Edges are found with the same Canny and dilate steps as PrimitiveDetection.locateEllipses().
+ * Each contour is then checked against cheap criteria - number of points, bounding box area and
+ * aspect ratio, and an optional region of interest - and an ellipse is only fit to contours that
+ * pass. All intermediate images and point buffers are kept and reused between calls.
+ * <p/>
+ * A locator is not thread-safe. Use one locator per thread.
+ */
+public class EllipseLocator {
+    //fitEllipse needs at least 5 points, and fits to fewer than 6 are unreliable
+    private static final int MIN_POINTS = 6;
+
+    // Cache
+    private final Mat mEdges = new Mat();
+    private final Mat mHierarchy = new Mat();
+    private final Mat mKernel = Imgproc.getStructuringElement(Imgproc.CV_SHAPE_RECT, new Size(5, 5), new Point(2, 2));
+    private final MatOfPoint2f mPoints = new MatOfPoint2f();
+    private final List<MatOfPoint> mContours = new ArrayList<>();
+    private final ImagePyramid mPyramid = new ImagePyramid();
+
+    private int minPoints = MIN_POINTS;
+    private double minArea = 0;
+    private double maxArea = Double.POSITIVE_INFINITY;
+    private double maxAspectRatio = Double.POSITIVE_INFINITY;
+    private Rect roi = null;
+    private boolean keepContours = true;
+
+    /**
+     * Set the minimum number of points a contour needs to be fit
+     *
+     * @param points Minimum number of points, at least 6 (default)
+     */
+    public void setMinPoints(int points) {
+        this.minPoints = Math.max(MIN_POINTS, points);
+    }
+
+    /**
+     * Set the range of bounding box areas of contours that are fit
+     *
+     * @param min Minimum area, in pixels
+     * @param max Maximum area, in pixels
+     */
+    public void setAreaRange(double min, double max) {
+        if (min > max)
+            throw new IllegalArgumentException("Minimum area must not be more than the maximum area!");
+        this.minArea = min;
+        this.maxArea = max;
+    }
+
+    /**
+     * Set the maximum aspect ratio (long side / short side) of the bounding box of contours that are fit
+     * The bounding box of an ellipse is never more elongated than the ellipse itself, so this
+     * only rejects contours whose ellipse would be at least as elongated.
+     *
+     * @param ratio Maximum aspect ratio, at least 1
+     */
+    public void setMaxAspectRatio(double ratio) {
+        if (ratio < 1)
+            throw new IllegalArgumentException("Aspect ratio must be at least 1!");
+        this.maxAspectRatio = ratio;
+    }
+
+    /**
+     * Set a region of interest. Contours whose bounding box lies entirely outside of it are not fit.
+     *
+     * @param roi Region of interest, or null to accept contours anywhere in the image
+     */
+    public void setRegionOfInterest(Rect roi) {
+        this.roi = roi;
+    }
+
+    /**
+     * Set whether every contour found is returned in the result, including contours that were rejected
+     * Disabling this avoids creating a Contour for every edge in the image.
+     *
+     * @param keep True to return contours (default), false to only return ellipses
+     */
+    public void setKeepContours(boolean keep) {
+        this.keepContours = keep;
+    }
+
+    /**
+     * Locate ellipses within an image
+     *
+     * @param grayImage Grayscale image
+     * @return Ellipse locations
+     */
+    public PrimitiveDetection.EllipseLocationResult locate(Mat grayImage) {
+        mPyramid.set(null, grayImage);
+        PrimitiveDetection.EllipseLocationResult result = locate(mPyramid);
+        //Don't hold on to the caller's image
+        mPyramid.set(null, null);
+        return result;
+    }
+
+    /**
+     * Locate ellipses within an image, sharing the image's pyramid with other consumers
+     *
+     * @param pyramid Image pyramid, of which the grayscale variant is used
+     * @return Ellipse locations
+     */
+    public PrimitiveDetection.EllipseLocationResult locate(ImagePyramid pyramid) {
+        //Filter out some noise by halving then doubling size
+        Imgproc.Canny(pyramid.getSmoothed(ImagePyramid.Variant.GRAY), mEdges, 5, 75, 3, true);
+        Imgproc.dilate(mEdges, mEdges, mKernel);
+
+        //findContours appends to the list, so clear the previous call's contours first
+        mContours.clear();
+        Imgproc.findContours(mEdges, mContours, mHierarchy, Imgproc.CV_RETR_TREE, Imgproc.CHAIN_APPROX_TC89_KCOS);
+
+        List<Contour> contours = new ArrayList<>(keepContours ? mContours.size() : 0);
+        List<Ellipse> ellipses = new ArrayList<>();
+        for (MatOfPoint co : mContours) {
+            if (keepContours)
+                contours.add(new Contour(co));
+            if (!accept(co))
+                continue;
+
+            //Reuse a single float point buffer instead of copying through a Java array
+            co.convertTo(mPoints, CvType.CV_32FC2);
+            ellipses.add(new Ellipse(Imgproc.fitEllipse(mPoints)));
+        }
+
+        return new PrimitiveDetection.EllipseLocationResult(contours, ellipses);
+    }
+
+    /**
+     * Release all buffers owned by this locator
+     */
+    public void release() {
+        mEdges.release();
+        mHierarchy.release();
+        mKernel.release();
+        mPoints.release();
+        mPyramid.release();
+        mContours.clear();
+    }
+
+    private boolean accept(MatOfPoint contour) {
+        if (contour.rows() < minPoints)
+            return false;
+
+        Rect bounds = Imgproc.boundingRect(contour);
+        double area = bounds.area();
+        if (area < minArea || area > maxArea)
+            return false;
+
+        double longSide = Math.max(bounds.width, bounds.height);
+        double shortSide = Math.max(1, Math.min(bounds.width, bounds.height));
+        if (longSide / shortSide > maxAspectRatio)
+            return false;
+
+        return roi == null || (bounds.x < roi.x + roi.width && bounds.x + bounds.width > roi.x &&
+                bounds.y < roi.y + roi.height && bounds.y + bounds.height > roi.y);
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2016 Arthur Pachachura, LASA Robotics, and contributors
+ * MIT licensed
+ */
+package org.lasarobotics.vision.detection;
+
+import org.lasarobotics.vision.detection.objects.Ellipse;
+import org.opencv.core.Size;
+
+import java.util.List;
+
+/**
+ * Features of all ellipses of a frame, stored in parallel primitive arrays
+ * <p/>
+ * Center, size, area and eccentricity are extracted for every ellipse in a single pass when the
+ * table is built, so scoring can loop over the arrays instead of querying each ellipse.
+ * <p/>
+ * Row i of every array describes ellipse i of the list the table was built from. The arrays are
+ * owned by the table and reused when it is rebuilt - treat them as read-only.
+ */
+public class EllipseTable {
+    private List<Ellipse> ellipses;
+    private int size = 0;
+    private double[] centerX = new double[0];
+    private double[] centerY = new double[0];
+    private double[] width = new double[0];
+    private double[] height = new double[0];
+    private double[] area = new double[0];
+    private double[] eccentricity = new double[0];
+
+    /**
+     * Create an empty table
+     */
+    public EllipseTable() {
+
+    }
+
+    /**
+     * Create a table of a list of ellipses
+     *
+     * @param ellipses Ellipses
+     */
+    public EllipseTable(List<Ellipse> ellipses) {
+        set(ellipses);
+    }
+
+    /**
+     * Rebuild the table from a list of ellipses, reusing its arrays
+     *
+     * @param ellipses Ellipses
+     */
+    public void set(List<Ellipse> ellipses) {
+        this.ellipses = ellipses;
+        size = ellipses.size();
+        if (centerX.length < size) {
+            centerX = new double[size];
+            centerY = new double[size];
+            width = new double[size];
+            height = new double[size];
+            area = new double[size];
+            eccentricity = new double[size];
+        }
+
+        for (int i = 0; i < size; i++) {
+            Ellipse ellipse = ellipses.get(i);
+            Size axes = ellipse.size();
+            //Semi-axes, as in Ellipse.area() and Ellipse.eccentricity()
+            double a = Math.max(axes.width, axes.height) / 2;
+            double b = Math.min(axes.width, axes.height) / 2;
+            centerX[i] = ellipse.center().x;
+            centerY[i] = ellipse.center().y;
+            width[i] = axes.width;
+            height[i] = axes.height;
+            area[i] = a * b * Math.PI;
+            eccentricity[i] = Math.sqrt(1 - (b * b) / (a * a));
+        }
+    }
+
+    /**
+     * Get the number of ellipses in the table
+     *
+     * @return Number of rows
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the ellipses the table was built from
+     *
+     * @return List of ellipses, where row i is element i
+     */
+    public List<Ellipse> getEllipses() {
+        return ellipses;
+    }
+
+    /**
+     * Get an ellipse of the table
+     *
+     * @param i Row
+     * @return Ellipse at the row
+     */
+    public Ellipse getEllipse(int i) {
+        return ellipses.get(i);
+    }
+
+    /**
+     * Get the x-coordinates of the centers
+     *
+     * @return Array of at least size() elements
+     */
+    public double[] getCenterX() {
+        return centerX;
+    }
+
+    /**
+     * Get the y-coordinates of the centers
+     *
+     * @return Array of at least size() elements
+     */
+    public double[] getCenterY() {
+        return centerY;
+    }
+
+    /**
+     * Get the widths of the ellipses, before rotation
+     *
+     * @return Array of at least size() elements
+     */
+    public double[] getWidth() {
+        return width;
+    }
+
+    /**
+     * Get the heights of the ellipses, before rotation
+     *
+     * @return Array of at least size() elements
+     */
+    public double[] getHeight() {
+        return height;
+    }
+
+    /**
+     * Get the areas of the ellipses
+     *
+     * @return Array of at least size() elements
+     */
+    public double[] getArea() {
+        return area;
+    }
+
+    /**
+     * Get the eccentricities of the ellipses
+     *
+     * @return Array of at least size() elements
+     */
+    public double[] getEccentricity() {
+        return eccentricity;
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (c) 2016 Arthur Pachachura, LASA Robotics, and contributors
+ * MIT licensed
+ */
+package org.lasarobotics.vision.detection;
+
+import org.lasarobotics.vision.detection.objects.Rectangle;
+import org.lasarobotics.vision.image.ImagePyramid;
+import org.lasarobotics.vision.image.VisionFrame;
+import org.lasarobotics.vision.util.Latency;
+import org.lasarobotics.vision.util.LatencyHistogram;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs several color blob detectors over a single shared HSV image
+ * <p/>
+ * The image is downsampled and converted to HSV once per frame instead of once per detector,
+ * then each detector builds its own mask and contours from the shared image. Results are
+ * retrieved from each detector as usual.
+ * <p/>
+ * Optionally, pixels can be labelled with a ColorLookupTable straight from RGBA instead of
+ * converting the image to HSV and range checking it for each detector.
+ * <p/>
+ * Camera frames can also be processed in their native NV21 format, which skips the conversion
+ * to RGBA entirely.
+ * <p/>
+ * Images are downsampled as set by ColorBlobDetector.setDownsampling(), so all detectors processed
+ * together must use the same downsampling.
+ */
+public class MultiColorBlobDetector {
+    private static final LatencyHistogram LATENCY_CLASSIFY = Latency.get("blob.classify");
+
+    // Cache
+    private final Mat mPyrDownMat = new Mat();
+    private final Mat mHsvMat = new Mat();
+    private final Mat mLumaMat = new Mat();
+    private final Mat mChromaMat = new Mat();
+    private final List<Mat> mMasks = new ArrayList<>();
+    private final ColorLookupTable lookupTable = new ColorLookupTable();
+    private boolean useLookupTable = false;
+
+    /**
+     * Create a detector that converts images to HSV
+     */
+    public MultiColorBlobDetector() {
+
+    }
+
+    /**
+     * Create a detector
+     *
+     * @param useLookupTable True to label pixels with a lookup table, false to convert images to HSV
+     */
+    public MultiColorBlobDetector(boolean useLookupTable) {
+        this.useLookupTable = useLookupTable;
+    }
+
+    /**
+     * Test whether pixels are labelled with a lookup table
+     *
+     * @return True if the lookup table is used, false if images are converted to HSV
+     */
+    public boolean isLookupTableEnabled() {
+        return useLookupTable;
+    }
+
+    /**
+     * Set whether pixels are labelled with a lookup table instead of an HSV conversion
+     * The lookup table quantizes colors into 32 levels per channel, so results may differ very
+     * slightly from the HSV path near the edges of each detector's bounds.
+     *
+     * @param enabled True to use the lookup table, false to convert images to HSV
+     */
+    public void setLookupTableEnabled(boolean enabled) {
+        this.useLookupTable = enabled;
+    }
+
+    /**
+     * Process an rgba image with every detector. The results can be retrieved from each detector.
+     * This method does not modify the image.
+     *
+     * @param rgbaImage An RGBA image matrix
+     * @param detectors Color blob detectors to run
+     */
+    public void process(Mat rgbaImage, ColorBlobDetector... detectors) {
+        long t = Latency.start();
+        Mat downsampled = ColorBlobDetector.downsample(rgbaImage, mPyrDownMat, getDownsampling(detectors));
+        ColorBlobDetector.LATENCY_PYRDOWN.lap(t);
+
+        segment(downsampled, 0, 0, detectors);
+    }
+
+    /**
+     * Process a frame with every detector, using the frame's shared pyramid
+     * The results can be retrieved from each detector.
+     *
+     * @param frame     Frame to process
+     * @param detectors Color blob detectors to run
+     */
+    public void process(VisionFrame frame, ColorBlobDetector... detectors) {
+        int levels = getDownsampling(detectors);
+        long t = Latency.start();
+        Mat level = frame.pyramid().get(variant(), levels);
+        ColorBlobDetector.LATENCY_PYRDOWN.lap(t);
+
+        segmentLevel(level, 0, 0, detectors);
+    }
+
+    /**
+     * Process only the region of a frame within a set of bounds with every detector
+     * The region is cut out of the frame's shared pyramid, so no downsampling is repeated.
+     * Contours are returned in the coordinates of the full image, but are cut off at the bounds.
+     *
+     * @param frame     Frame to process
+     * @param bounds    Region of the image to process
+     * @param detectors Color blob detectors to run
+     */
+    public void process(VisionFrame frame, Rectangle bounds, ColorBlobDetector... detectors) {
+        int levels = getDownsampling(detectors);
+        long t = Latency.start();
+        Mat full = frame.pyramid().get(variant(), levels);
+        ColorBlobDetector.LATENCY_PYRDOWN.lap(t);
+
+        //The level is built from the full RGBA image, so getting it converts nothing more
+        Size fullSize = frame.pyramid().get(ImagePyramid.Variant.RGBA, 0).size();
+        Rect region = ColorBlobDetector.getRegion(fullSize, full.size(), bounds, levels);
+        if (region == null) {
+            for (ColorBlobDetector detector : detectors)
+                detector.clearContours();
+            return;
+        }
+
+        Mat level = full.submat(region);
+        segmentLevel(level, region.x << levels, region.y << levels, detectors);
+        level.release();
+    }
+
+    private ImagePyramid.Variant variant() {
+        //The lookup table classifies RGBA directly
+        return useLookupTable ? ImagePyramid.Variant.RGBA : ImagePyramid.Variant.HSV;
+    }
+
+    private void segmentLevel(Mat level, double offsetX, double offsetY, ColorBlobDetector[] detectors) {
+        if (useLookupTable) {
+            segment(level, offsetX, offsetY, detectors);
+            return;
+        }
+        for (ColorBlobDetector detector : detectors)
+            detector.processHsv(level, offsetX, offsetY);
+    }
+
+    /**
+     * Process only the region of an rgba image within a set of bounds with every detector
+     * Only the region is downsampled, converted, and searched, so smaller bounds process faster.
+     * Contours are returned in the coordinates of the full image, but are cut off at the bounds.
+     * This method does not modify the image.
+     *
+     * @param rgbaImage An RGBA image matrix
+     * @param bounds    Region of the image to process
+     * @param detectors Color blob detectors to run
+     */
+    public void process(Mat rgbaImage, Rectangle bounds, ColorBlobDetector... detectors) {
+        Rect region = ColorBlobDetector.getRegion(rgbaImage.size(), bounds);
+        if (region == null) {
+            for (ColorBlobDetector detector : detectors)
+                detector.clearContours();
+            return;
+        }
+
+        long t = Latency.start();
+        Mat roi = rgbaImage.submat(region);
+        Mat downsampled = ColorBlobDetector.downsample(roi, mPyrDownMat, getDownsampling(detectors));
+        ColorBlobDetector.LATENCY_PYRDOWN.lap(t);
+
+        segment(downsampled, region.x, region.y, detectors);
+        roi.release();
+    }
+
+    /**
+     * Process an NV21 camera frame with every detector. The results can be retrieved from each detector.
+     * Pixels are always labelled with the lookup table, directly from YUV.
+     * This method does not modify the image.
+     *
+     * @param yuvImage  An NV21 image matrix (1 channel, height * 3 / 2 rows), as given by the camera
+     * @param detectors Color blob detectors to run
+     */
+    public void processNV21(Mat yuvImage, ColorBlobDetector... detectors) {
+        processNV21(yuvImage, new Rect(0, 0, yuvImage.cols(), yuvImage.rows() * 2 / 3), detectors);
+    }
+
+    /**
+     * Process only the region of an NV21 camera frame within a set of bounds with every detector
+     * Contours are returned in the coordinates of the full image, but are cut off at the bounds.
+     * This method does not modify the image.
+     *
+     * @param yuvImage  An NV21 image matrix (1 channel, height * 3 / 2 rows), as given by the camera
+     * @param bounds    Region of the image to process
+     * @param detectors Color blob detectors to run
+     */
+    public void processNV21(Mat yuvImage, Rectangle bounds, ColorBlobDetector... detectors) {
+        Rect region = ColorBlobDetector.getRegion(new Size(yuvImage.cols(), yuvImage.rows() * 2 / 3), bounds);
+        if (region == null) {
+            for (ColorBlobDetector detector : detectors)
+                detector.clearContours();
+            return;
+        }
+        processNV21(yuvImage, region, detectors);
+    }
+
+    private void processNV21(Mat yuvImage, Rect region, ColorBlobDetector[] detectors) {
+        int height = yuvImage.rows() * 2 / 3;
+        int levels = getDownsampling(detectors);
+
+        //Chroma is subsampled by two, so the region must start and end on even pixels
+        int left = region.x & ~1;
+        int top = region.y & ~1;
+        int right = Math.min(yuvImage.cols(), (region.x + region.width + 1) & ~1);
+        int bottom = Math.min(height, (region.y + region.height + 1) & ~1);
+
+        //Chroma is already half size, so it is downsampled one less time than luma
+        long t = Latency.start();
+        Mat luma = yuvImage.submat(top, bottom, left, right);
+        if (levels == 0)
+            luma.copyTo(mLumaMat);
+        else
+            ColorBlobDetector.downsample(luma, mLumaMat, levels);
+        luma.release();
+
+        Mat chromaBytes = yuvImage.submat(height + top / 2, height + bottom / 2, left, right);
+        Mat chroma = chromaBytes.reshape(2);
+        if (levels <= 1)
+            chroma.copyTo(mChromaMat);
+        else
+            ColorBlobDetector.downsample(chroma, mChromaMat, levels - 1);
+        chroma.release();
+        chromaBytes.release();
+        if (mChromaMat.rows() != mLumaMat.rows() || mChromaMat.cols() != mLumaMat.cols())
+            Imgproc.resize(mChromaMat, mChromaMat, mLumaMat.size());
+        t = ColorBlobDetector.LATENCY_PYRDOWN.lap(t);
+
+        lookupTable.update(detectors);
+        while (mMasks.size() < detectors.length)
+            mMasks.add(new Mat());
+        lookupTable.classify(mLumaMat, mChromaMat, mMasks);
+        LATENCY_CLASSIFY.lap(t);
+
+        for (int i = 0; i < detectors.length; i++)
+            detectors[i].processMask(mMasks.get(i), left, top);
+    }
+
+    private static int getDownsampling(ColorBlobDetector[] detectors) {
+        if (detectors.length == 0)
+            return 2;
+        int levels = detectors[0].getDownsampling();
+        for (ColorBlobDetector detector : detectors)
+            if (detector.getDownsampling() != levels)
+                throw new IllegalArgumentException("All detectors must use the same downsampling!");
+        return levels;
+    }
+
+    private void segment(Mat downsampled, double offsetX, double offsetY, ColorBlobDetector[] detectors) {
+        long t = Latency.start();
+        if (useLookupTable) {
+            //Rebuilds only if the detectors or their bounds changed
+            lookupTable.update(detectors);
+            while (mMasks.size() < detectors.length)
+                mMasks.add(new Mat());
+
+            lookupTable.classify(downsampled, mMasks);
+            LATENCY_CLASSIFY.lap(t);
+            for (int i = 0; i < detectors.length; i++)
+                detectors[i].processMask(mMasks.get(i), offsetX, offsetY);
+            return;
+        }
+
+        Imgproc.cvtColor(downsampled, mHsvMat, Imgproc.COLOR_RGB2HSV_FULL);
+        ColorBlobDetector.LATENCY_CVTCOLOR.lap(t);
+
+        for (ColorBlobDetector detector : detectors)
+            detector.processHsv(mHsvMat, offsetX, offsetY);
+    }
+
+    /**
+     * Get the downsampled HSV image of the last processed frame
+     * The image is not updated while the lookup table is enabled.
+     *
+     * @return HSV image, downsampled as set on the detectors
+     */
+    public Mat getHsv() {
+        return mHsvMat;
+    }
+}
@@ -11,7 +11,7 @@ package org.lasarobotics.vision.detection;
 import org.lasarobotics.vision.detection.objects.Contour;
 import org.lasarobotics.vision.detection.objects.Ellipse;
 import org.lasarobotics.vision.detection.objects.Rectangle;
-import org.lasarobotics.vision.image.Filter;
+import org.lasarobotics.vision.image.ImagePyramid;
 import org.lasarobotics.vision.util.MathUtil;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfPoint;
@@ -33,48 +33,29 @@ public class PrimitiveDetection {
 
     /**
      * Locate ellipses within an image
+     * Use an EllipseLocator directly to reject unlikely contours before fitting, or to reuse buffers between calls.
      *
      * @param grayImage Grayscale image
      * @return Ellipse locations
      */
     public static EllipseLocationResult locateEllipses(Mat grayImage) {
-        Mat gray = grayImage.clone();
-
-        Filter.downsample(gray, 2);
-        Filter.upsample(gray, 2);
-
-        Imgproc.Canny(gray, gray, 5, 75, 3, true);
-        Filter.dilate(gray, 2);
-
-        Mat cacheHierarchy = new Mat();
-
-        List<MatOfPoint> contoursTemp = new ArrayList<>();
-        //Find contours - the parameters here are very important to compression and retention
-        Imgproc.findContours(gray, contoursTemp, cacheHierarchy, Imgproc.CV_RETR_TREE, Imgproc.CHAIN_APPROX_TC89_KCOS);
-
-        //List contours
-        List<Contour> contours = new ArrayList<>();
-        for (MatOfPoint co : contoursTemp) {
-            contours.add(new Contour(co));
-        }
-
-        //Find ellipses by finding fit
-        List<Ellipse> ellipses = new ArrayList<>();
-        for (MatOfPoint co : contoursTemp) {
-            contours.add(new Contour(co));
-            //Contour must have at least 6 points for fitEllipse
-            if (co.toArray().length < 6)
-                continue;
-            //Copy MatOfPoint to MatOfPoint2f
-            MatOfPoint2f matOfPoint2f = new MatOfPoint2f(co.toArray());
-            //Fit an ellipse to the current contour
-            Ellipse ellipse = new Ellipse(Imgproc.fitEllipse(matOfPoint2f));
-
-            //Draw ellipse
-            ellipses.add(ellipse);
-        }
+        EllipseLocator locator = new EllipseLocator();
+        EllipseLocationResult result = locator.locate(grayImage);
+        locator.release();
+        return result;
+    }
 
-        return new EllipseLocationResult(contours, ellipses);
+    /**
+     * Locate ellipses within an image, sharing the image's pyramid with other consumers
+     *
+     * @param pyramid Image pyramid, of which the grayscale variant is used
+     * @return Ellipse locations
+     */
+    public static EllipseLocationResult locateEllipses(ImagePyramid pyramid) {
+        EllipseLocator locator = new EllipseLocator();
+        EllipseLocationResult result = locator.locate(pyramid);
+        locator.release();
+        return result;
     }
 
 
@@ -88,11 +69,23 @@ public class PrimitiveDetection {
      * @return Rectangle locations
      */
     public RectangleLocationResult locateRectangles(Mat grayImage) {
-        Mat gray = grayImage.clone();
+        ImagePyramid pyramid = new ImagePyramid();
+        pyramid.set(null, grayImage);
+        RectangleLocationResult result = locateRectangles(pyramid);
+        pyramid.release();
+        return result;
+    }
 
+    /**
+     * Locate rectangles in an image, sharing the image's pyramid with other consumers
+     *
+     * @param pyramid Image pyramid, of which the grayscale variant is used
+     * @return Rectangle locations
+     */
+    public RectangleLocationResult locateRectangles(ImagePyramid pyramid) {
         //Filter out some noise by halving then doubling size
-        Filter.downsample(gray, 2);
-        Filter.upsample(gray, 2);
+        //The pyramid is shared, so its images are only read
+        Mat gray = pyramid.getSmoothed(ImagePyramid.Variant.GRAY);
 
         //Mat is short for Matrix, and here is used to store an image.
         //it is n-dimensional, but as an image, is two-dimensional
@@ -109,8 +102,6 @@ public class PrimitiveDetection {
         //Note: the edges are stored in "grayTemp", which is an image where everything
         //is black except for gray-scale lines delineating the edges.
         Imgproc.Canny(gray, grayTemp, 0, THRESHOLD_CANNY, APERTURE_CANNY, true);
-        //make the white lines twice as big, while leaving the image size constant
-        Filter.dilate(gray, 2);
 
         List<MatOfPoint> contoursTemp = new ArrayList<>();
         //Find contours - the parameters here are very important to compression and retention
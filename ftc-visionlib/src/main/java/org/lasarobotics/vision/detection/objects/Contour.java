@@ -4,6 +4,7 @@
  */
 package org.lasarobotics.vision.detection.objects;
 
+import org.opencv.core.CvType;
 import org.opencv.core.MatOfPoint;
 import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.Point;
@@ -13,12 +14,27 @@ import org.opencv.imgproc.Imgproc;
 
 /**
  * Implements a single contour (MatOfPoint) with advanced measurement utilities
+ * <p/>
+ * The points are copied once into a primitive array the first time any measurement is requested,
+ * and area, centroid, bounds and arc length are computed from it on first use and then cached.
+ * Points and sizes returned by this class are copies of the cached values, so callers may modify them.
+ * If the underlying matrix is modified directly, call setData() to clear the cached values.
  */
 public class Contour extends Detectable {
 
-    private final MatOfPoint mat;
+    private MatOfPoint mat;
+    //Interleaved x, y coordinates of the first count points
+    private int[] coords = null;
+    private int count = -1;
+
     private Point topLeft = null;
     private Size size = null;
+    private Point center = null;
+    private Point centroid = null;
+    private double area = Double.NaN;
+    private double arcLengthOpen = Double.NaN;
+    private double arcLengthClosed = Double.NaN;
+    private Boolean convex = null;
 
     /**
      * Instantiate a contour from an OpenCV matrix of points (float)
@@ -35,33 +51,65 @@ public class Contour extends Detectable {
      * @param data OpenCV matrix of points
      */
     public Contour(MatOfPoint2f data) {
-        this.mat = new MatOfPoint(data.toArray());
+        this.mat = new MatOfPoint();
+        data.convertTo(mat, CvType.CV_32SC2);
+    }
+
+    /**
+     * Copy the points out of the matrix, reusing the previous buffer if it is large enough
+     */
+    private void load() {
+        if (count >= 0)
+            return;
+
+        int n = mat.rows();
+        if (coords == null || coords.length < n * 2)
+            coords = new int[n * 2];
+        if (n > 0)
+            mat.get(0, 0, coords);
+        count = n;
+    }
+
+    private void invalidate() {
+        count = -1;
+        topLeft = null;
+        size = null;
+        center = null;
+        centroid = null;
+        area = Double.NaN;
+        arcLengthOpen = Double.NaN;
+        arcLengthClosed = Double.NaN;
+        convex = null;
     }
 
     private void calculate() {
         if (topLeft != null)
             return;
+        load();
+
+        if (count == 0) {
+            size = new Size(0, 0);
+            topLeft = new Point(0, 0);
+            return;
+        }
 
         //Calculate size and topLeft at the same time
-        double minX = Double.MAX_VALUE;
-        double maxX = Double.MIN_VALUE;
-        double minY = Double.MAX_VALUE;
-        double maxY = Double.MIN_VALUE;
-
-        Point[] points = getPoints();
-        for (Point p : points) {
-            if (p.x < minX) {
-                minX = p.x;
-            }
-            if (p.y < minY) {
-                minY = p.y;
-            }
-            if (p.x > maxX) {
-                maxX = p.x;
-            }
-            if (p.y > maxY) {
-                maxY = p.y;
-            }
+        int minX = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE;
+        int minY = Integer.MAX_VALUE;
+        int maxY = Integer.MIN_VALUE;
+
+        for (int i = 0; i < count * 2; i += 2) {
+            int x = coords[i];
+            int y = coords[i + 1];
+            if (x < minX)
+                minX = x;
+            if (y < minY)
+                minY = y;
+            if (x > maxX)
+                maxX = x;
+            if (y > maxY)
+                maxY = y;
         }
 
         size = new Size(maxX - minX, maxY - minY);
@@ -77,13 +125,26 @@ public class Contour extends Detectable {
         return mat;
     }
 
+    /**
+     * Replace the points of this contour, clearing any cached geometry
+     * This allows contour instances to be recycled between frames.
+     *
+     * @param data OpenCV matrix of points
+     */
+    public void setData(MatOfPoint data) {
+        this.mat = data;
+        invalidate();
+    }
+
     /**
      * Get data as a double
      *
      * @return OpenCV matrix of points
      */
     public MatOfPoint2f getDoubleData() {
-        return new MatOfPoint2f(mat.toArray());
+        MatOfPoint2f data = new MatOfPoint2f();
+        mat.convertTo(data, CvType.CV_32FC2);
+        return data;
     }
 
     /**
@@ -92,7 +153,9 @@ public class Contour extends Detectable {
      * @return Number of points, i.e. length
      */
     public int count() {
-        return getData().rows();
+        if (count >= 0)
+            return count;
+        return mat.rows();
     }
 
     /**
@@ -103,7 +166,18 @@ public class Contour extends Detectable {
      * @return Area of the contour
      */
     public double area() {
-        return Imgproc.contourArea(mat);
+        if (!Double.isNaN(area))
+            return area;
+        load();
+
+        //Shoelace formula over the closed polygon, the same as Imgproc.contourArea()
+        long sum = 0;
+        for (int i = 0; i < count; i++) {
+            int j = (i + 1) % count;
+            sum += (long) coords[i * 2] * coords[j * 2 + 1] - (long) coords[j * 2] * coords[i * 2 + 1];
+        }
+        area = Math.abs(sum) / 2.0;
+        return area;
     }
 
     /**
@@ -112,7 +186,9 @@ public class Contour extends Detectable {
      * @return True if closed (convex), false otherwise
      */
     public boolean isClosed() {
-        return Imgproc.isContourConvex(mat);
+        if (convex == null)
+            convex = Imgproc.isContourConvex(mat);
+        return convex;
     }
 
     /**
@@ -121,30 +197,47 @@ public class Contour extends Detectable {
      * @return Centroid of the object as a point
      */
     public Point centroid() {
+        Point centroid = getCentroid();
+        return new Point(centroid.x, centroid.y);
+    }
+
+    private Point getCentroid() {
         //C_{\mathrm x} = \frac{1}{6A}\sum_{i=0}^{n-1}(x_i+x_{i+1})(x_i\ y_{i+1} - x_{i+1}\ y_i)
         //C_{\mathrm y} = \frac{1}{6A}\sum_{i=0}^{n-1}(y_i+y_{i+1})(x_i\ y_{i+1} - x_{i+1}\ y_i)
 
-        if (count() < 2)
-            return center();
+        if (centroid != null)
+            return centroid;
+        load();
+
+        if (count < 2) {
+            centroid = getCenter();
+            return centroid;
+        }
 
         double xSum = 0.0;
         double ySum = 0.0;
         double area = 0.0;
-        Point[] points = this.getPoints();
 
-        for (int i = 0; i < points.length - 1; i++) {
+        for (int i = 0; i < (count - 1) * 2; i += 2) {
+            double x0 = coords[i];
+            double y0 = coords[i + 1];
+            double x1 = coords[i + 2];
+            double y1 = coords[i + 3];
             //cross product, (signed) double area of triangle of vertices (origin,p0,p1)
-            double signedArea = (points[i].x * points[i + 1].y) - (points[i + 1].x * points[i].y);
-            xSum += (points[i].x + points[i + 1].x) * signedArea;
-            ySum += (points[i].y + points[i + 1].y) * signedArea;
+            double signedArea = (x0 * y1) - (x1 * y0);
+            xSum += (x0 + x1) * signedArea;
+            ySum += (y0 + y1) * signedArea;
             area += signedArea;
         }
 
-        if (area == 0)
-            return center();
+        if (area == 0) {
+            centroid = getCenter();
+            return centroid;
+        }
 
         double coefficient = 3 * area;
-        return new Point(xSum / coefficient, ySum / coefficient);
+        centroid = new Point(xSum / coefficient, ySum / coefficient);
+        return centroid;
     }
 
     /**
@@ -153,8 +246,16 @@ public class Contour extends Detectable {
      * @return Center of the object as a point
      */
     public Point center() {
-        calculate();
-        return new Point(topLeft.x + (size.width / 2), topLeft.y + (size.height / 2));
+        Point center = getCenter();
+        return new Point(center.x, center.y);
+    }
+
+    private Point getCenter() {
+        if (center == null) {
+            calculate();
+            center = new Point(topLeft.x + (size.width / 2), topLeft.y + (size.height / 2));
+        }
+        return center;
     }
 
     public double height() {
@@ -217,7 +318,7 @@ public class Contour extends Detectable {
      */
     public Point topLeft() {
         calculate();
-        return topLeft;
+        return new Point(topLeft.x, topLeft.y);
     }
 
     /**
@@ -227,7 +328,7 @@ public class Contour extends Detectable {
      */
     public Size size() {
         calculate();
-        return size;
+        return new Size(size.width, size.height);
     }
 
     /**
@@ -237,12 +338,21 @@ public class Contour extends Detectable {
      */
     @Override
     public void offset(Point offset) {
-        Point[] points = this.getPoints();
-
-        for (int i = 0; i < points.length; i++)
-            points[i] = new Point(points[i].x + offset.x, points[i].y + offset.y);
+        load();
 
-        mat.fromArray(points);
+        //Truncate to whole pixels, as converting the points back to a MatOfPoint would
+        for (int i = 0; i < count * 2; i += 2) {
+            coords[i] = (int) (coords[i] + offset.x);
+            coords[i + 1] = (int) (coords[i + 1] + offset.y);
+        }
+        //The buffer may be longer than the matrix - put() stops at the end of the matrix
+        if (count > 0)
+            mat.put(0, 0, coords);
+
+        int n = count;
+        invalidate();
+        //The buffer still matches the matrix
+        count = n;
     }
 
     /**
@@ -253,7 +363,7 @@ public class Contour extends Detectable {
      * @return True if the contour is mostly inside the rectangle, false otherwise
      */
     public boolean isMostlyInside(Rectangle rect) {
-        return centroid().inside(rect.getBoundingRect());
+        return getCentroid().inside(rect.getBoundingRect());
     }
 
     /**
@@ -263,15 +373,18 @@ public class Contour extends Detectable {
      * @return Arc length
      */
     public double arcLength(boolean closed) {
-        return Imgproc.arcLength(getDoubleData(), closed);
-    }
-
-    /**
-     * Get the point array of the contour
-     *
-     * @return Point array of contour
-     */
-    private Point[] getPoints() {
-        return mat.toArray();
+        double cached = closed ? arcLengthClosed : arcLengthOpen;
+        if (!Double.isNaN(cached))
+            return cached;
+        load();
+
+        double length = 0;
+        for (int i = 0; i < (count - 1) * 2; i += 2)
+            length += Math.hypot(coords[i + 2] - coords[i], coords[i + 3] - coords[i + 1]);
+        arcLengthOpen = length;
+        if (count > 1)
+            length += Math.hypot(coords[0] - coords[count * 2 - 2], coords[1] - coords[count * 2 - 1]);
+        arcLengthClosed = length;
+        return closed ? arcLengthClosed : arcLengthOpen;
     }
 }
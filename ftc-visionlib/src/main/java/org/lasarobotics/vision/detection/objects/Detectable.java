@@ -4,6 +4,7 @@
  */
 package org.lasarobotics.vision.detection.objects;
 
+import org.lasarobotics.vision.image.IntegralImage;
 import org.lasarobotics.vision.util.MathUtil;
 import org.lasarobotics.vision.util.color.Color;
 import org.lasarobotics.vision.util.color.ColorSpace;
@@ -90,6 +91,15 @@ public abstract class Detectable {
         return new Point(right(), bottom());
     }
 
+    /**
+     * Get the center of the object
+     *
+     * @return Center of the object as a point
+     */
+    public Point center() {
+        return new Point((left() + right()) / 2, (top() + bottom()) / 2);
+    }
+
     /**
      * Gets the average color of the object
      *
@@ -113,6 +123,25 @@ public abstract class Detectable {
         return Color.create(Core.mean(subMat), imgSpace);
     }
 
+    /**
+     * Gets the average color of the object in constant time, using an integral image
+     * Gives the same result as averageColor(Mat, ColorSpace) on the integral image's source.
+     *
+     * @param integral Integral image of the image matrix, of any color size
+     * @param imgSpace The image's color space
+     * @return The average color of the region
+     */
+    public Color averageColor(IntegralImage integral, ColorSpace imgSpace) {
+        //Coerce values to stay within screen dimensions
+        double leftX = MathUtil.coerce(0, integral.cols() - 1, left());
+        double rightX = MathUtil.coerce(0, integral.cols() - 1, right());
+
+        double topY = MathUtil.coerce(0, integral.rows() - 1, top());
+        double bottomY = MathUtil.coerce(0, integral.rows() - 1, bottom());
+
+        return Color.create(integral.mean((int) topY, (int) bottomY, (int) leftX, (int) rightX), imgSpace);
+    }
+
     /**
      * Offset the object, translating it by a specific offset point
      *
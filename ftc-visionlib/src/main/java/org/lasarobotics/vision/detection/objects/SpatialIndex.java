@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2016 Arthur Pachachura, LASA Robotics, and contributors
+ * MIT licensed
+ */
+package org.lasarobotics.vision.detection.objects;
+
+import org.lasarobotics.vision.util.MathUtil;
+import org.opencv.core.Point;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Uniform grid index over the centers of a list of detectables, for range and containment queries
+ * <p/>
+ * Each object is placed in the grid cell containing its center. A query only tests the objects in
+ * the cells it overlaps, so queries over a small region cost about the same no matter how many
+ * objects are in the scene. A cell size close to the typical query radius works best.
+ * <p/>
+ * The index is a snapshot - it does not follow objects that are moved after it is built.
+ * Queries return objects in the same order as the list the index was built from.
+ *
+ * @param <T> Type of the indexed objects
+ */
+public class SpatialIndex<T extends Detectable> {
+    //Limit the number of cells along each axis, so a tiny cell size over a large area stays small
+    private static final int MAX_CELLS = 64;
+
+    private final List<? extends T> items;
+    private final int count;
+    private final double[] centerX;
+    private final double[] centerY;
+    private final double[] left;
+    private final double[] top;
+    private final double[] right;
+    private final double[] bottom;
+
+    private final double originX;
+    private final double originY;
+    private final double cellWidth;
+    private final double cellHeight;
+    private final int cols;
+    private final int rows;
+    //Objects sorted by cell, where the objects of cell c are cellItems[cellStart[c]..cellStart[c + 1])
+    private final int[] cellStart;
+    private final int[] cellItems;
+
+    //Query state, reused between queries
+    private final int[] stamp;
+    private int query = 0;
+    private int[] found;
+
+    /**
+     * Build an index over a list of objects
+     *
+     * @param items    Objects to index
+     * @param cellSize Width and height of each grid cell, in pixels
+     */
+    public SpatialIndex(List<? extends T> items, double cellSize) {
+        if (!(cellSize > 0))
+            throw new IllegalArgumentException("Cell size must be positive!");
+
+        this.items = items;
+        this.count = items.size();
+        centerX = new double[count];
+        centerY = new double[count];
+        left = new double[count];
+        top = new double[count];
+        right = new double[count];
+        bottom = new double[count];
+        stamp = new int[count];
+        found = new int[Math.min(count, 16)];
+
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < count; i++) {
+            T item = items.get(i);
+            left[i] = item.left();
+            top[i] = item.top();
+            right[i] = item.right();
+            bottom[i] = item.bottom();
+            Point center = item.center();
+            centerX[i] = center.x;
+            centerY[i] = center.y;
+            minX = Math.min(minX, centerX[i]);
+            minY = Math.min(minY, centerY[i]);
+            maxX = Math.max(maxX, centerX[i]);
+            maxY = Math.max(maxY, centerY[i]);
+        }
+        if (count == 0) {
+            minX = minY = maxX = maxY = 0;
+        }
+
+        originX = minX;
+        originY = minY;
+        cols = (int) Math.min(MAX_CELLS, Math.floor((maxX - minX) / cellSize) + 1);
+        rows = (int) Math.min(MAX_CELLS, Math.floor((maxY - minY) / cellSize) + 1);
+        //Widen the cells if there would be too many of them
+        cellWidth = Math.max(cellSize, (maxX - minX) / (cols - 0.5));
+        cellHeight = Math.max(cellSize, (maxY - minY) / (rows - 0.5));
+
+        //Counting sort of the objects by cell
+        int[] cell = new int[count];
+        cellStart = new int[cols * rows + 1];
+        for (int i = 0; i < count; i++) {
+            cell[i] = row(centerY[i]) * cols + col(centerX[i]);
+            cellStart[cell[i] + 1]++;
+        }
+        for (int c = 0; c < cols * rows; c++)
+            cellStart[c + 1] += cellStart[c];
+        cellItems = new int[count];
+        int[] next = Arrays.copyOf(cellStart, cols * rows);
+        for (int i = 0; i < count; i++)
+            cellItems[next[cell[i]]++] = i;
+    }
+
+    private int col(double x) {
+        return (int) MathUtil.coerce(0, cols - 1, Math.floor((x - originX) / cellWidth));
+    }
+
+    private int row(double y) {
+        return (int) MathUtil.coerce(0, rows - 1, Math.floor((y - originY) / cellHeight));
+    }
+
+    /**
+     * Get the number of indexed objects
+     *
+     * @return Number of objects
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Find all objects whose center is within a distance of a point
+     *
+     * @param center Point to search around
+     * @param radius Maximum distance from the point, inclusive
+     * @return Objects found, in list order
+     */
+    public List<T> findNear(Point center, double radius) {
+        return findNearOrInside(center, radius, null);
+    }
+
+    /**
+     * Find all objects whose bounds lie entirely inside a detectable's bounds
+     *
+     * @param bounds Detectable whose bounds to search
+     * @return Objects found, in list order
+     */
+    public List<T> findInside(Detectable bounds) {
+        return findNearOrInside(null, 0, bounds);
+    }
+
+    /**
+     * Find all objects whose center is within a distance of a point, or whose bounds lie entirely
+     * inside a detectable's bounds
+     *
+     * @param center Point to search around, or null to only search inside the bounds
+     * @param radius Maximum distance from the point, inclusive
+     * @param bounds Detectable whose bounds to search, or null to only search around the point
+     * @return Objects found, in list order
+     */
+    public List<T> findNearOrInside(Point center, double radius, Detectable bounds) {
+        int n = search(center, radius, bounds);
+        List<T> result = new ArrayList<>(n);
+        for (int k = 0; k < n; k++)
+            result.add(items.get(found[k]));
+        return result;
+    }
+
+    /**
+     * Find the positions in the indexed list of all objects whose center is within a distance of
+     * a point, or whose bounds lie entirely inside a detectable's bounds
+     * This allows results to be matched with data kept in parallel to the indexed list.
+     *
+     * @param center Point to search around, or null to only search inside the bounds
+     * @param radius Maximum distance from the point, inclusive
+     * @param bounds Detectable whose bounds to search, or null to only search around the point
+     * @return Positions of the objects found, in ascending order
+     */
+    public int[] findIndicesNearOrInside(Point center, double radius, Detectable bounds) {
+        return Arrays.copyOf(found, search(center, radius, bounds));
+    }
+
+    private int search(Point center, double radius, Detectable bounds) {
+        if (++query == 0) {
+            //Stamps wrapped around - start over
+            Arrays.fill(stamp, 0);
+            query = 1;
+        }
+        int n = 0;
+
+        if (center != null && count > 0) {
+            int c0 = col(center.x - radius), c1 = col(center.x + radius);
+            int r0 = row(center.y - radius), r1 = row(center.y + radius);
+            for (int r = r0; r <= r1; r++)
+                for (int c = c0; c <= c1; c++)
+                    for (int k = cellStart[r * cols + c]; k < cellStart[r * cols + c + 1]; k++) {
+                        int i = cellItems[k];
+                        if (stamp[i] != query &&
+                                MathUtil.distance(Math.abs(centerX[i] - center.x), Math.abs(centerY[i] - center.y)) <= radius)
+                            n = add(i, n);
+                    }
+        }
+
+        if (bounds != null && count > 0) {
+            double bLeft = bounds.left(), bRight = bounds.right();
+            double bTop = bounds.top(), bBottom = bounds.bottom();
+            //An object entirely inside the bounds has its center inside them too
+            int c0 = col(bLeft), c1 = col(bRight);
+            int r0 = row(bTop), r1 = row(bBottom);
+            for (int r = r0; r <= r1; r++)
+                for (int c = c0; c <= c1; c++)
+                    for (int k = cellStart[r * cols + c]; k < cellStart[r * cols + c + 1]; k++) {
+                        int i = cellItems[k];
+                        if (stamp[i] != query && left[i] >= bLeft && right[i] <= bRight &&
+                                top[i] >= bTop && bottom[i] <= bBottom)
+                            n = add(i, n);
+                    }
+        }
+
+        Arrays.sort(found, 0, n);
+        return n;
+    }
+
+    private int add(int i, int n) {
+        stamp[i] = query;
+        if (n == found.length)
+            found = Arrays.copyOf(found, Math.max(16, n * 2));
+        found[n] = i;
+        return n + 1;
+    }
+}
@@ -7,8 +7,14 @@
 package org.lasarobotics.vision.ftc.resq;
 
 import org.lasarobotics.vision.detection.ColorBlobDetector;
+import org.lasarobotics.vision.detection.ContourTable;
+import org.lasarobotics.vision.detection.EllipseLocator;
+import org.lasarobotics.vision.detection.MultiColorBlobDetector;
 import org.lasarobotics.vision.detection.objects.Ellipse;
 import org.lasarobotics.vision.detection.objects.Rectangle;
+import org.lasarobotics.vision.image.ImagePyramid;
+import org.lasarobotics.vision.image.IntegralImage;
+import org.lasarobotics.vision.image.VisionFrame;
 import org.lasarobotics.vision.util.MathUtil;
 import org.lasarobotics.vision.util.ScreenOrientation;
 import org.lasarobotics.vision.util.color.ColorHSV;
@@ -21,14 +27,34 @@ import java.text.DecimalFormat;
 
 /**
  * Beacon location and analysis
+ * <p/>
+ * Locations are in pixels of the analyzed frame, so they change scale if the frame size changes.
+ * When it does, the analysis bounds are rescaled to cover the same part of the scene.
  */
 public final class Beacon {
 
     private AnalysisMethod method;
     private Rectangle bounds;
+    //Frame size the bounds refer to, or null to adopt the size of the next frame
+    private Size boundsSize = null;
     private ColorBlobDetector blueDetector = new ColorBlobDetector(Constants.COLOR_BLUE_LOWER, Constants.COLOR_BLUE_UPPER);
     private ColorBlobDetector redDetector = new ColorBlobDetector(Constants.COLOR_RED_LOWER, Constants.COLOR_RED_UPPER);
     private boolean debug = false;
+    private volatile int downsampling = 2;
+    //Red and blue are segmented together in a single pass
+    private final MultiColorBlobDetector segmenter = new MultiColorBlobDetector();
+    private final ColorBlobDetector[] detectors = new ColorBlobDetector[2];
+    private final BeaconTracker tracker = new BeaconTracker();
+    private final BeaconMethodSelector selector = new BeaconMethodSelector();
+    //COMPLEX averages hundreds of ellipses, so it averages from an integral image of the frame
+    private final IntegralImage grayIntegral = new IntegralImage();
+    //Edge and contour buffers for ellipse detection, kept between frames
+    private final EllipseLocator ellipseLocator = BeaconAnalyzer.createEllipseLocator();
+    //Contour bounds for COMPLEX, rebuilt in place once per color per frame
+    private final ContourTable redTable = new ContourTable();
+    private final ContourTable blueTable = new ContourTable();
+    //Frame being analyzed, whose pyramid is shared with other consumers, or null when analyzing images
+    private VisionFrame frame = null;
 
     /**
      * Instantiate a beacon that uses the default method
@@ -100,24 +126,191 @@ public final class Beacon {
      * @return Beacon analysis class
      */
     public BeaconAnalysis analyzeFrame(ColorBlobDetector redDetector, ColorBlobDetector blueDetector, Mat img, Mat gray, ScreenOrientation orientation) {
-        if (this.bounds == null)
-            this.bounds = new Rectangle(img.size());
+        return analyze(redDetector, blueDetector, null, null, img, gray, orientation, this.debug);
+    }
+
+    /**
+     * Analyze a frame using the selected analysis method
+     * <p/>
+     * Colors are segmented from the frame's shared pyramid and ellipses are located in its
+     * smoothed grayscale image, so any level another consumer of the frame already built is
+     * reused instead of downsampled again. Debug information is drawn on the frame's RGBA image.
+     *
+     * @param frame       Frame to analyze
+     * @param orientation Screen orientation compensation, given by the android.Sensors class
+     * @return Beacon analysis class
+     */
+    public BeaconAnalysis analyzeFrame(VisionFrame frame, ScreenOrientation orientation) {
+        return analyze(this.redDetector, this.blueDetector, frame, null, frame.rgba(), frame.gray(),
+                orientation, this.debug);
+    }
+
+    /**
+     * Analyze an NV21 camera frame using the selected analysis method, without converting it to RGBA
+     * <p/>
+     * Colors are segmented directly from YUV and the Y plane is used as the grayscale image.
+     * Debug drawing is only shown if an RGBA image is given to draw on.
+     *
+     * @param yuv         NV21 image to analyze (1 channel, height * 3 / 2 rows), as given by the camera
+     * @param rgba        RGBA image to draw debug information on, or null if not needed
+     * @param orientation Screen orientation compensation, given by the android.Sensors class
+     * @return Beacon analysis class
+     */
+    public BeaconAnalysis analyzeFrameYUV(Mat yuv, Mat rgba, ScreenOrientation orientation) {
+        Mat gray = yuv.submat(0, yuv.rows() * 2 / 3, 0, yuv.cols());
+        try {
+            //Without an RGBA image, the analysis only uses the image for its size
+            return analyze(this.redDetector, this.blueDetector, null, yuv, rgba != null ? rgba : gray, gray,
+                    orientation, this.debug && rgba != null);
+        } finally {
+            gray.release();
+        }
+    }
+
+    private BeaconAnalysis analyze(ColorBlobDetector redDetector, ColorBlobDetector blueDetector,
+                                   VisionFrame frame, Mat yuv, Mat img, Mat gray, ScreenOrientation orientation, boolean debug) {
+        updateBounds(img.size());
+
+        //Apply downsampling here, on the analysis thread, so both detectors always match
+        int levels = downsampling;
+        redDetector.setDownsampling(levels);
+        blueDetector.setDownsampling(levels);
+
+        //Segment both colors in a single pass
+        detectors[0] = redDetector;
+        detectors[1] = blueDetector;
+
+        //Built only if COMPLEX scores ellipses
+        grayIntegral.set(gray);
+        this.frame = frame;
+        try {
+            return analyzeMethod(redDetector, blueDetector, yuv, img, gray, orientation, debug);
+        } finally {
+            grayIntegral.set(null);
+            this.frame = null;
+        }
+    }
+
+    private void updateBounds(Size frameSize) {
+        if (this.bounds == null) {
+            this.bounds = new Rectangle(frameSize);
+            this.boundsSize = frameSize;
+        } else if (this.boundsSize == null) {
+            this.boundsSize = frameSize;
+        } else if (this.boundsSize.width != frameSize.width || this.boundsSize.height != frameSize.height) {
+            //The frame size changed - keep the bounds on the same part of the scene
+            double scaleX = frameSize.width / this.boundsSize.width;
+            double scaleY = frameSize.height / this.boundsSize.height;
+            Point center = this.bounds.center();
+            this.bounds = new Rectangle(new Point(center.x * scaleX, center.y * scaleY),
+                    this.bounds.width() * scaleX, this.bounds.height() * scaleY);
+            this.boundsSize = frameSize;
+            //The tracked location and window are in pixels of the old size
+            tracker.reset();
+        }
+    }
+
+    private BeaconAnalysis analyzeMethod(ColorBlobDetector redDetector, ColorBlobDetector blueDetector,
+                                         Mat yuv, Mat img, Mat gray, ScreenOrientation orientation, boolean debug) {
         switch (method) {
             case REALTIME:
-                blueDetector.process(img);
-                redDetector.process(img);
-                return BeaconAnalyzer.analyze_REALTIME(redDetector.getContours(), blueDetector.getContours(), img, orientation, this.debug);
+                segment(yuv, img, null);
+                return BeaconAnalyzer.analyze_REALTIME(redDetector.getContours(), blueDetector.getContours(), img, orientation, debug);
             case FAST:
             case DEFAULT:
             default:
-                return BeaconAnalyzer.analyze_FAST(redDetector, blueDetector, img, gray, orientation, this.bounds, this.debug);
+                //Only segment the region within the analysis bounds
+                Rectangle region = BeaconAnalyzer.orientBounds(this.bounds, img.size(), orientation);
+                segment(yuv, img, region);
+                return BeaconAnalyzer.analyze_FAST(redDetector.getContours(), blueDetector.getContours(), img, gray, ellipseLocator, orientation, region, debug);
             case COMPLEX:
-                blueDetector.process(img);
-                redDetector.process(img);
-                return BeaconAnalyzer.analyze_COMPLEX(redDetector.getContours(), blueDetector.getContours(), img, gray, orientation, this.bounds, this.debug);
+                segment(yuv, img, null);
+                return analyzeComplex(redDetector, blueDetector, img, gray, orientation, debug);
+            case TRACKING:
+                return analyzeTracking(redDetector, blueDetector, yuv, img, gray, orientation, debug);
+            case AUTO:
+                return analyzeAuto(redDetector, blueDetector, yuv, img, gray, orientation, debug);
+        }
+    }
+
+    private void segment(Mat yuv, Mat img, Rectangle region) {
+        if (frame != null) {
+            if (region != null)
+                segmenter.process(frame, region, detectors);
+            else
+                segmenter.process(frame, detectors);
+        } else if (yuv != null) {
+            if (region != null)
+                segmenter.processNV21(yuv, region, detectors);
+            else
+                segmenter.processNV21(yuv, detectors);
+        } else {
+            if (region != null)
+                segmenter.process(img, region, detectors);
+            else
+                segmenter.process(img, detectors);
         }
     }
 
+    private BeaconAnalysis analyzeComplex(ColorBlobDetector redDetector, ColorBlobDetector blueDetector,
+                                          Mat img, Mat gray, ScreenOrientation orientation, boolean debug) {
+        //Scoring only reads the bounding boxes
+        redTable.setBounds(redDetector.getContours());
+        blueTable.setBounds(blueDetector.getContours());
+        ImagePyramid pyramid = frame != null ? frame.pyramid() : null;
+        return BeaconAnalyzer.analyze_COMPLEX(redTable, blueTable, img, gray, pyramid, grayIntegral, ellipseLocator,
+                orientation, this.bounds, debug);
+    }
+
+    private BeaconAnalysis analyzeTracking(ColorBlobDetector redDetector, ColorBlobDetector blueDetector,
+                                           Mat yuv, Mat img, Mat gray, ScreenOrientation orientation, boolean debug) {
+        Rectangle region = BeaconAnalyzer.orientBounds(this.bounds, img.size(), orientation);
+
+        //Search near the last beacon location, unless a full scan is due
+        boolean fullScan = tracker.needsFullScan();
+        Rectangle window = tracker.predictWindow(region);
+        segment(yuv, img, window);
+        BeaconAnalysis analysis = BeaconAnalyzer.analyze_FAST(redDetector.getContours(), blueDetector.getContours(), img, gray, ellipseLocator, orientation, window, debug);
+
+        //Lost the beacon - fall back to scanning the entire bounds
+        if (!fullScan && !BeaconTracker.isFound(analysis)) {
+            fullScan = true;
+            segment(yuv, img, region);
+            analysis = BeaconAnalyzer.analyze_FAST(redDetector.getContours(), blueDetector.getContours(), img, gray, ellipseLocator, orientation, region, debug);
+        }
+
+        return tracker.update(analysis, fullScan, orientation);
+    }
+
+    private BeaconAnalysis analyzeAuto(ColorBlobDetector redDetector, ColorBlobDetector blueDetector,
+                                       Mat yuv, Mat img, Mat gray, ScreenOrientation orientation, boolean debug) {
+        //Every method picks from the same contours, so the whole frame is only segmented once
+        long start = System.nanoTime();
+        segment(yuv, img, null);
+        BeaconAnalysis analysis = BeaconAnalyzer.analyze_REALTIME(redDetector.getContours(), blueDetector.getContours(), img, orientation, debug);
+        selector.record(AnalysisMethod.REALTIME, System.nanoTime() - start);
+
+        if (selector.shouldRun(AnalysisMethod.FAST, analysis, System.nanoTime() - start)) {
+            long t = System.nanoTime();
+            Rectangle region = BeaconAnalyzer.orientBounds(this.bounds, img.size(), orientation);
+            BeaconAnalysis fast = BeaconAnalyzer.analyze_FAST(redDetector.getContours(), blueDetector.getContours(), img, gray, ellipseLocator, orientation, region, debug);
+            selector.record(AnalysisMethod.FAST, System.nanoTime() - t);
+            if (BeaconTracker.isFound(fast) || !BeaconTracker.isFound(analysis))
+                analysis = fast;
+        }
+
+        if (selector.shouldRun(AnalysisMethod.COMPLEX, analysis, System.nanoTime() - start)) {
+            long t = System.nanoTime();
+            BeaconAnalysis complex = analyzeComplex(redDetector, blueDetector, img, gray, orientation, debug);
+            selector.record(AnalysisMethod.COMPLEX, System.nanoTime() - t);
+            if (BeaconTracker.isFound(complex) || !BeaconTracker.isFound(analysis))
+                analysis = complex;
+        }
+
+        selector.endFrame();
+        return analysis;
+    }
+
     /**
      * Get current analysis method
      *
@@ -134,17 +327,51 @@ public final class Beacon {
      */
     public void setAnalysisMethod(AnalysisMethod method) {
         this.method = method;
+        tracker.reset();
+        selector.reset();
+    }
+
+    /**
+     * Get the time budget per frame for the AUTO analysis method
+     *
+     * @return Time budget, in milliseconds
+     */
+    public double getAnalysisBudget() {
+        return selector.getBudget();
+    }
+
+    /**
+     * Set the time budget per frame for the AUTO analysis method
+     * AUTO runs FAST and COMPLEX after REALTIME whenever their measured cost fits in the budget,
+     * and occasionally regardless of the budget while the beacon is not found with confidence.
+     *
+     * @param milliseconds Time budget, in milliseconds, 30 by default
+     */
+    public void setAnalysisBudget(double milliseconds) {
+        selector.setBudget(milliseconds);
+    }
+
+    /**
+     * Get the measured cost of an analysis method, as tracked by the AUTO analysis method
+     *
+     * @param method REALTIME, FAST, or COMPLEX
+     * @return Average time taken, in milliseconds, or NaN if AUTO has not run the method yet
+     */
+    public double getAnalysisCost(AnalysisMethod method) {
+        return selector.getCost(method);
     }
 
     /**
      * Set a rectangle to contain the analyzed area
      * An orange box will be shown containing the analyzed area
-     * Only currently works on the FAST method
+     * Only currently works on the FAST method, which only processes the image within these bounds
      *
-     * @param bounds Rectangle containing the frame area to analyze
+     * @param bounds Rectangle containing the frame area to analyze, in pixels of the next frame
      */
     public void setAnalysisBounds(Rectangle bounds) {
         this.bounds = bounds;
+        this.boundsSize = null;
+        tracker.reset();
     }
 
     /**
@@ -154,6 +381,8 @@ public final class Beacon {
      */
     public void resetAnalysisBounds(Size frameSize) {
         this.bounds = new Rectangle(new Point(frameSize.width / 2, frameSize.height / 2), frameSize.width, frameSize.height);
+        this.boundsSize = frameSize;
+        tracker.reset();
     }
 
     /**
@@ -192,6 +421,38 @@ public final class Beacon {
         blueDetector = new ColorBlobDetector(new ColorHSV(lower), new ColorHSV(upper));
     }
 
+    /**
+     * Get the number of times frames are downsampled before colors are detected
+     *
+     * @return Number of downsampling levels, 2 by default
+     */
+    public int getDownsampling() {
+        return downsampling;
+    }
+
+    /**
+     * Set the number of times frames are downsampled before colors are detected
+     * See ColorBlobDetector.setDownsampling(). Safe to call while another thread is analyzing;
+     * the change applies from the next analysis.
+     *
+     * @param levels Number of downsampling levels, from 0 to ColorBlobDetector.MAX_DOWNSAMPLING
+     */
+    public void setDownsampling(int levels) {
+        if (levels < 0 || levels > ColorBlobDetector.MAX_DOWNSAMPLING)
+            throw new IllegalArgumentException("Downsampling must be between 0 and " + ColorBlobDetector.MAX_DOWNSAMPLING + "!");
+        this.downsampling = levels;
+    }
+
+    /**
+     * Set whether colors are segmented with a precomputed lookup table or an HSV conversion (default)
+     * The lookup table is faster, but may label a few pixels near the color bounds differently.
+     *
+     * @param enabled True to use the lookup table, false to convert every frame to HSV
+     */
+    public void setColorLookupTable(boolean enabled) {
+        segmenter.setLookupTableEnabled(enabled);
+    }
+
     /**
      * Enable debug displays.
      * Use this only on testing apps, otherwise it might slow your program
@@ -208,6 +469,15 @@ public final class Beacon {
         this.debug = false;
     }
 
+    /**
+     * Test whether debug displays are enabled
+     *
+     * @return True if debug displays are enabled, false otherwise
+     */
+    public boolean isDebug() {
+        return debug;
+    }
+
     /**
      * Analysis method
      */
@@ -231,7 +501,20 @@ public final class Beacon {
          * COMPLEX is highly complex and a work in progress, but is better at selecting
          * the correct beacon at long distances, but requires that the entire beacon be in view.
          */
-        COMPLEX;
+        COMPLEX,
+        /**
+         * FAST analysis that follows the beacon between frames
+         * TRACKING only searches a small window around the last beacon location, and smooths the
+         * beacon center over time. The entire frame is scanned when the beacon is lost and periodically.
+         */
+        TRACKING,
+        /**
+         * REALTIME analysis that escalates to FAST and COMPLEX when needed
+         * AUTO runs REALTIME every frame, then FAST and COMPLEX whenever their measured cost fits
+         * in the analysis budget, or periodically when the beacon is not found with confidence.
+         * The result of the most thorough method that found the beacon is returned.
+         */
+        AUTO;
 
         public String toString() {
             switch (this) {
@@ -243,6 +526,10 @@ public final class Beacon {
                     return "FAST";
                 case COMPLEX:
                     return "COMPLEX";
+                case TRACKING:
+                    return "TRACKING";
+                case AUTO:
+                    return "AUTO";
             }
         }
     }
@@ -9,13 +9,18 @@ package org.lasarobotics.vision.ftc.resq;
 
 import android.util.Log;
 
-import org.lasarobotics.vision.detection.ColorBlobDetector;
+import org.lasarobotics.vision.detection.ContourTable;
+import org.lasarobotics.vision.detection.EllipseLocator;
 import org.lasarobotics.vision.detection.PrimitiveDetection;
 import org.lasarobotics.vision.detection.objects.Contour;
 import org.lasarobotics.vision.detection.objects.Detectable;
 import org.lasarobotics.vision.detection.objects.Ellipse;
 import org.lasarobotics.vision.detection.objects.Rectangle;
 import org.lasarobotics.vision.image.Drawing;
+import org.lasarobotics.vision.image.ImagePyramid;
+import org.lasarobotics.vision.image.IntegralImage;
+import org.lasarobotics.vision.util.Latency;
+import org.lasarobotics.vision.util.LatencyHistogram;
 import org.lasarobotics.vision.util.MathUtil;
 import org.lasarobotics.vision.util.ScreenOrientation;
 import org.lasarobotics.vision.util.color.ColorRGBA;
@@ -31,6 +36,14 @@ import java.util.List;
  * Static beacon analysis methods
  */
 class BeaconAnalyzer {
+    //Phase latencies
+    private static final LatencyHistogram LATENCY_FAST_CONTOURS = Latency.get("beacon.fast.contours");
+    private static final LatencyHistogram LATENCY_FAST_ELLIPSES = Latency.get("beacon.fast.ellipses");
+    private static final LatencyHistogram LATENCY_FAST_SCORING = Latency.get("beacon.fast.scoring");
+    private static final LatencyHistogram LATENCY_COMPLEX_CONTOURS = Latency.get("beacon.complex.contours");
+    private static final LatencyHistogram LATENCY_COMPLEX_ELLIPSES = Latency.get("beacon.complex.ellipses");
+    private static final LatencyHistogram LATENCY_COMPLEX_SCORING = Latency.get("beacon.complex.scoring");
+    private static final LatencyHistogram LATENCY_COMPLEX_ASSOCIATIONS = Latency.get("beacon.complex.associations");
 
     static Beacon.BeaconAnalysis analyze_REALTIME(List<Contour> contoursRed, List<Contour> contoursBlue,
                                                   Mat img, ScreenOrientation orientation, boolean debug) {
@@ -98,14 +111,14 @@ class BeaconAnalyzer {
         //Get the left-most best contour (or top-most if axis swapped) (or right-most if L/R swapped)
         if (readOppositeAxis) {
             //Get top-most best contour
-            leftMostContour = ((largestRed.topLeft().y) < (largestBlue.topLeft().y)) ? largestRed : largestBlue;
+            leftMostContour = ((largestRed.top()) < (largestBlue.top())) ? largestRed : largestBlue;
             //Get bottom-most best contour
-            rightMostContour = ((largestRed.topLeft().y) < (largestBlue.topLeft().y)) ? largestBlue : largestRed;
+            rightMostContour = ((largestRed.top()) < (largestBlue.top())) ? largestBlue : largestRed;
         } else {
             //Get left-most best contour
-            leftMostContour = ((largestRed.topLeft().y) < (largestBlue.topLeft().y)) ? largestRed : largestBlue;
+            leftMostContour = ((largestRed.top()) < (largestBlue.top())) ? largestRed : largestBlue;
             //Get the right-most best contour
-            rightMostContour = ((largestRed.topLeft().y) < (largestBlue.topLeft().y)) ? largestBlue : largestRed;
+            rightMostContour = ((largestRed.top()) < (largestBlue.top())) ? largestBlue : largestRed;
         }
 
         //Swap left and right if necessary
@@ -145,8 +158,16 @@ class BeaconAnalyzer {
             return new Beacon.BeaconAnalysis(Beacon.BeaconColor.BLUE, Beacon.BeaconColor.RED, centerRect, confidence);
     }
 
-    static Beacon.BeaconAnalysis analyze_FAST(ColorBlobDetector detectorRed, ColorBlobDetector detectorBlue,
-                                              Mat img, Mat gray, ScreenOrientation orientation, Rectangle bounds, boolean debug) {
+    /**
+     * Orient the analysis bounds to match the orientation of the image
+     * analyze_FAST() expects bounds that have already been oriented.
+     *
+     * @param bounds      Analysis bounds, relative to the screen
+     * @param imageSize   Size of the image
+     * @param orientation Screen orientation
+     * @return Bounds relative to the image, clipped to the image
+     */
+    static Rectangle orientBounds(Rectangle bounds, Size imageSize, ScreenOrientation orientation) {
         //Figure out which way to read the image
         double orientationAngle = orientation.getAngle();
         boolean swapLeftRight = orientationAngle >= 180; //swap if LANDSCAPE_WEST or PORTRAIT_REVERSE
@@ -158,26 +179,45 @@ class BeaconAnalyzer {
             //Force the analysis box to transpose inself in place
             //noinspection SuspiciousNameCombination
             bounds = new Rectangle(
-                    new Point(bounds.center().y / img.height() * img.width(),
-                            bounds.center().x / img.width() * img.height()),
-                    bounds.height(), bounds.width()).clip(new Rectangle(img.size()));
+                    new Point(bounds.center().y / imageSize.height * imageSize.width,
+                            bounds.center().x / imageSize.width * imageSize.height),
+                    bounds.height(), bounds.width()).clip(new Rectangle(imageSize));
         if (!swapLeftRight && readOppositeAxis)
             //Force the analysis box to flip across its primary axis
             bounds = new Rectangle(
-                    new Point((img.size().width / 2) + Math.abs(bounds.center().x - (img.size().width / 2)),
+                    new Point((imageSize.width / 2) + Math.abs(bounds.center().x - (imageSize.width / 2)),
                             bounds.center().y), bounds.width(), bounds.height());
         else if (swapLeftRight && !readOppositeAxis)
             //Force the analysis box to flip across its primary axis
             bounds = new Rectangle(
-                    new Point(bounds.center().x, img.size().height - bounds.center().y),
+                    new Point(bounds.center().x, imageSize.height - bounds.center().y),
                     bounds.width(), bounds.height());
-        bounds = bounds.clip(new Rectangle(img.size()));
+        return bounds.clip(new Rectangle(imageSize));
+    }
+
+    static Beacon.BeaconAnalysis analyze_FAST(List<Contour> contoursRed, List<Contour> contoursBlue,
+                                              Mat img, Mat gray, ScreenOrientation orientation, Rectangle bounds, boolean debug) {
+        EllipseLocator ellipseLocator = createEllipseLocator();
+        try {
+            return analyze_FAST(contoursRed, contoursBlue, img, gray, ellipseLocator, orientation, bounds, debug);
+        } finally {
+            ellipseLocator.release();
+        }
+    }
 
-        //Get contours within the bounds
-        detectorRed.process(img);
-        detectorBlue.process(img);
-        List<Contour> contoursRed = detectorRed.getContours();
-        List<Contour> contoursBlue = detectorBlue.getContours();
+    /**
+     * Analyze contours with the FAST method
+     *
+     * @param ellipseLocator Locator created by createEllipseLocator(), reused between frames
+     */
+    static Beacon.BeaconAnalysis analyze_FAST(List<Contour> contoursRed, List<Contour> contoursBlue,
+                                              Mat img, Mat gray, EllipseLocator ellipseLocator,
+                                              ScreenOrientation orientation, Rectangle bounds, boolean debug) {
+        //Figure out which way to read the image
+        double orientationAngle = orientation.getAngle();
+        boolean swapLeftRight = orientationAngle >= 180; //swap if LANDSCAPE_WEST or PORTRAIT_REVERSE
+        boolean readOppositeAxis = orientation == ScreenOrientation.PORTRAIT ||
+                orientation == ScreenOrientation.PORTRAIT_REVERSE; //read other axis if any kind of portrait
 
         //DEBUG Draw contours before filtering
         if (debug) Drawing.drawContours(img, contoursRed, new ColorRGBA("#FF0000"), 2);
@@ -187,10 +227,12 @@ class BeaconAnalyzer {
             Drawing.drawRectangle(img, bounds, new ColorRGBA("#aaaaaa"), 4);
 
         //Get the largest contour in each - we're calling this one the main light
+        long t = Latency.start();
         int largestIndexRed = findLargestIndexInBounds(contoursRed, bounds);
         int largestIndexBlue = findLargestIndexInBounds(contoursBlue, bounds);
         Contour largestRed = (largestIndexRed != -1) ? contoursRed.get(largestIndexRed) : null;
         Contour largestBlue = (largestIndexBlue != -1) ? contoursBlue.get(largestIndexBlue) : null;
+        t = LATENCY_FAST_CONTOURS.lap(t);
 
         //If we don't have a main light for one of the colors, we know both colors are the same
         //TODO we should re-filter the contours by size to ensure that we get at least a decent size
@@ -266,14 +308,14 @@ class BeaconAnalyzer {
         //Get the left-most best contour (or top-most if axis swapped) (or right-most if L/R swapped)
         if (readOppositeAxis) {
             //Get top-most best contour
-            leftMostContour = ((largestRed.topLeft().y) < (largestBlue.topLeft().y)) ? largestRed : largestBlue;
+            leftMostContour = ((largestRed.top()) < (largestBlue.top())) ? largestRed : largestBlue;
             //Get bottom-most best contour
-            rightMostContour = ((largestRed.topLeft().y) < (largestBlue.topLeft().y)) ? largestBlue : largestRed;
+            rightMostContour = ((largestRed.top()) < (largestBlue.top())) ? largestBlue : largestRed;
         } else {
             //Get left-most best contour
-            leftMostContour = ((largestRed.topLeft().x) < (largestBlue.topLeft().x)) ? largestRed : largestBlue;
+            leftMostContour = ((largestRed.left()) < (largestBlue.left())) ? largestRed : largestBlue;
             //Get the right-most best contour
-            rightMostContour = ((largestRed.topLeft().x) < (largestBlue.topLeft().x)) ? largestBlue : largestRed;
+            rightMostContour = ((largestRed.left()) < (largestBlue.left())) ? largestBlue : largestRed;
         }
 
         //DEBUG Logging
@@ -336,23 +378,21 @@ class BeaconAnalyzer {
                 (int) rightRect.left(), (int) rightRect.right());
 
         //Locate ellipses in the image to process contours against
-        List<Ellipse> ellipsesLeft =
-                PrimitiveDetection.locateEllipses(leftContourImg).getEllipses();
+        List<Ellipse> ellipsesLeft = ellipseLocator.locate(leftContourImg).getEllipses();
         Detectable.offset(ellipsesLeft, new Point(leftRect.left(), leftRect.top()));
-        List<Ellipse> ellipsesRight =
-                PrimitiveDetection.locateEllipses(rightContourImg).getEllipses();
+        List<Ellipse> ellipsesRight = ellipseLocator.locate(rightContourImg).getEllipses();
         Detectable.offset(ellipsesRight, new Point(rightRect.left(), rightRect.top()));
+        t = LATENCY_FAST_ELLIPSES.lap(t);
 
         //Score ellipses
         BeaconScoringCOMPLEX scorer = new BeaconScoringCOMPLEX(img.size());
         List<BeaconScoringCOMPLEX.ScoredEllipse> scoredEllipsesLeft = scorer.scoreEllipses(ellipsesLeft, null, null, gray);
-        scoredEllipsesLeft = filterEllipses(scoredEllipsesLeft);
-        ellipsesLeft = BeaconScoringCOMPLEX.ScoredEllipse.getList(scoredEllipsesLeft);
-        if (debug) Drawing.drawEllipses(img, ellipsesLeft, new ColorRGBA("#00ff00"), 3);
+        scoredEllipsesLeft = rankEllipses(scoredEllipsesLeft);
+        if (debug) Drawing.drawEllipses(img, BeaconScoringCOMPLEX.ScoredEllipse.getList(scoredEllipsesLeft), new ColorRGBA("#00ff00"), 3);
         List<BeaconScoringCOMPLEX.ScoredEllipse> scoredEllipsesRight = scorer.scoreEllipses(ellipsesRight, null, null, gray);
-        scoredEllipsesRight = filterEllipses(scoredEllipsesRight);
-        ellipsesRight = BeaconScoringCOMPLEX.ScoredEllipse.getList(scoredEllipsesRight);
-        if (debug) Drawing.drawEllipses(img, ellipsesRight, new ColorRGBA("#00ff00"), 3);
+        scoredEllipsesRight = rankEllipses(scoredEllipsesRight);
+        if (debug) Drawing.drawEllipses(img, BeaconScoringCOMPLEX.ScoredEllipse.getList(scoredEllipsesRight), new ColorRGBA("#00ff00"), 3);
+        LATENCY_FAST_SCORING.lap(t);
 
         //Calculate ellipse center if present
         Point centerLeft;
@@ -368,10 +408,10 @@ class BeaconAnalyzer {
 
             //Flip axis if necesary
             if (centerLeft != null && readOppositeAxis) {
-                centerLeft.set(new double[]{centerLeft.y, centerLeft.x});
+                centerLeft = new Point(centerLeft.y, centerLeft.x);
             }
             if (centerRight != null && readOppositeAxis) {
-                centerRight.set(new double[]{centerRight.y, centerRight.x});
+                centerRight = new Point(centerRight.y, centerRight.x);
             }
 
             //Make very, very sure that we didn't just find the same ellipse
@@ -505,11 +545,23 @@ class BeaconAnalyzer {
                     , leftEllipse, rightEllipse);
     }
 
-    private static List<BeaconScoringCOMPLEX.ScoredEllipse> filterEllipses(List<BeaconScoringCOMPLEX.ScoredEllipse> ellipses) {
-        for (int i = ellipses.size() - 1; i >= 0; i--)
-            if (ellipses.get(i).score < Constants.ELLIPSE_SCORE_REQ)
-                ellipses.remove(i);
-        return ellipses;
+    /**
+     * Create an ellipse locator configured for beacon analysis
+     * Owners of a locator should keep it between frames and release it when done.
+     *
+     * @return Ellipse locator
+     */
+    static EllipseLocator createEllipseLocator() {
+        //Only the ellipses are scored, so skip contours and anything too elongated to score
+        EllipseLocator locator = new EllipseLocator();
+        locator.setMaxAspectRatio(Constants.ELLIPSE_ASPECT_MAX);
+        locator.setKeepContours(false);
+        return locator;
+    }
+
+    private static List<BeaconScoringCOMPLEX.ScoredEllipse> rankEllipses(List<BeaconScoringCOMPLEX.ScoredEllipse> ellipses) {
+        //Keep every ellipse that passes, as duplicate rejection may drop any number of them
+        return BeaconScoringCOMPLEX.Scorable.top(ellipses, ellipses.size(), Constants.ELLIPSE_SCORE_REQ);
     }
 
     private static int findLargestIndexInBounds(List<Contour> contours, Rectangle bounds) {
@@ -544,6 +596,38 @@ class BeaconAnalyzer {
 
     static Beacon.BeaconAnalysis analyze_COMPLEX(List<Contour> contoursRed, List<Contour> contoursBlue,
                                                  Mat img, Mat gray, ScreenOrientation orientation, Rectangle bounds, boolean debug) {
+        return analyze_COMPLEX(contoursRed, contoursBlue, img, gray, null, orientation, bounds, debug);
+    }
+
+    static Beacon.BeaconAnalysis analyze_COMPLEX(List<Contour> contoursRed, List<Contour> contoursBlue,
+                                                 Mat img, Mat gray, IntegralImage grayIntegral,
+                                                 ScreenOrientation orientation, Rectangle bounds, boolean debug) {
+        ContourTable tableRed = new ContourTable();
+        ContourTable tableBlue = new ContourTable();
+        tableRed.setBounds(contoursRed);
+        tableBlue.setBounds(contoursBlue);
+        EllipseLocator ellipseLocator = createEllipseLocator();
+        try {
+            return analyze_COMPLEX(tableRed, tableBlue, img, gray, null, grayIntegral, ellipseLocator, orientation, bounds, debug);
+        } finally {
+            ellipseLocator.release();
+        }
+    }
+
+    /**
+     * Analyze contours with the COMPLEX method
+     * Contour scoring only reads bounding boxes, so the tables may be built with setBounds().
+     *
+     * @param pyramid        Pyramid of the frame to locate ellipses in, or null to build one from gray
+     * @param ellipseLocator Locator created by createEllipseLocator(), reused between frames
+     */
+    static Beacon.BeaconAnalysis analyze_COMPLEX(ContourTable tableRed, ContourTable tableBlue,
+                                                 Mat img, Mat gray, ImagePyramid pyramid,
+                                                 IntegralImage grayIntegral, EllipseLocator ellipseLocator,
+                                                 ScreenOrientation orientation, Rectangle bounds, boolean debug) {
+        List<Contour> contoursRed = tableRed.getContours();
+        List<Contour> contoursBlue = tableBlue.getContours();
+
         //The idea behind the SmartScoring algorithm is that the largest score in each contour/ellipse set will become the best
         //DONE First, ellipses and contours are are detected and pre-filtered to remove eccentricities
         //Second, ellipses, and contours are scored independently based on size and color ... higher score is better
@@ -567,9 +651,11 @@ class BeaconAnalyzer {
         if (debug) Drawing.drawContours(img, contoursBlue, new ColorRGBA("#BBDEFB"), 2);
 
         //Score contours
-        BeaconScoringCOMPLEX scorer = new BeaconScoringCOMPLEX(img.size());
-        List<BeaconScoringCOMPLEX.ScoredContour> scoredContoursRed = scorer.scoreContours(contoursRed, null, null, img, gray);
-        List<BeaconScoringCOMPLEX.ScoredContour> scoredContoursBlue = scorer.scoreContours(contoursBlue, null, null, img, gray);
+        long t = Latency.start();
+        BeaconScoringCOMPLEX scorer = new BeaconScoringCOMPLEX(img.size(), grayIntegral);
+        List<BeaconScoringCOMPLEX.ScoredContour> scoredContoursRed = scorer.scoreContours(tableRed, null, null, img, gray);
+        List<BeaconScoringCOMPLEX.ScoredContour> scoredContoursBlue = scorer.scoreContours(tableBlue, null, null, img, gray);
+        t = LATENCY_COMPLEX_CONTOURS.lap(t);
 
         //DEBUG Draw red and blue contours after filtering
         if (debug)
@@ -579,8 +665,10 @@ class BeaconAnalyzer {
 
         //Locate ellipses in the image to process contours against
         //Each contour must have an ellipse of correct specification
-        PrimitiveDetection primitiveDetection = new PrimitiveDetection();
-        PrimitiveDetection.EllipseLocationResult ellipseLocationResult = PrimitiveDetection.locateEllipses(gray);
+        //The frame's pyramid may already hold the smoothed grayscale image
+        PrimitiveDetection.EllipseLocationResult ellipseLocationResult = pyramid != null ?
+                ellipseLocator.locate(pyramid) : ellipseLocator.locate(gray);
+        t = LATENCY_COMPLEX_ELLIPSES.lap(t);
 
         //Filter out bad ellipses - TODO filtering currently ignored
         List<Ellipse> ellipses = ellipseLocationResult.getEllipses();
@@ -589,7 +677,9 @@ class BeaconAnalyzer {
         //Drawing.drawEllipses(img, ellipses, new ColorRGBA("#ff0745"), 1);
 
         //Score ellipses
+        //Unranked - association only needs the best ellipse near each contour
         List<BeaconScoringCOMPLEX.ScoredEllipse> scoredEllipses = scorer.scoreEllipses(ellipses, null, null, gray);
+        t = LATENCY_COMPLEX_SCORING.lap(t);
 
         //DEBUG Ellipse data after filtering
         if (debug)
@@ -597,14 +687,16 @@ class BeaconAnalyzer {
 
         //DEBUG draw top 5 ellipses
         if (scoredEllipses.size() > 0 && debug) {
-            Drawing.drawEllipses(img, BeaconScoringCOMPLEX.ScoredEllipse.getList(scoredEllipses.subList(0, scoredEllipses.size() > 5 ? 5 : scoredEllipses.size()))
+            List<BeaconScoringCOMPLEX.ScoredEllipse> topEllipses = BeaconScoringCOMPLEX.Scorable.top(scoredEllipses, Constants.COMPLEX_ELLIPSE_DEBUG);
+            Drawing.drawEllipses(img, BeaconScoringCOMPLEX.ScoredEllipse.getList(topEllipses)
                     , new ColorRGBA("#d0ff00"), 3);
-            Drawing.drawEllipses(img, BeaconScoringCOMPLEX.ScoredEllipse.getList(scoredEllipses.subList(0, scoredEllipses.size() > 3 ? 3 : scoredEllipses.size()))
+            Drawing.drawEllipses(img, BeaconScoringCOMPLEX.ScoredEllipse.getList(topEllipses.subList(0, topEllipses.size() > 3 ? 3 : topEllipses.size()))
                     , new ColorRGBA("#00ff00"), 3);
         }
 
         //Third, comparative analysis is used on each ellipse and contour to create a score for the contours
         BeaconScoringCOMPLEX.MultiAssociatedContours associations = scorer.scoreAssociations(scoredContoursRed, scoredContoursBlue, scoredEllipses);
+        LATENCY_COMPLEX_ASSOCIATIONS.lap(t);
         double score = (associations.blueContours.size() > 0 ? associations.blueContours.get(0).score : 0) +
                 (associations.redContours.size() > 0 ? associations.redContours.get(0).score : 0);
         double confidence = score / Constants.CONFIDENCE_DIVISOR;
@@ -695,18 +787,18 @@ class BeaconAnalyzer {
         //Get the left-most best contour (or top-most if axis swapped) (or right-most if L/R swapped)
         if (readOppositeAxis) {
             //Get top-most best contour
-            leftMostContour = ((bestRed.topLeft().y) < (bestBlue.topLeft().y)) ? bestRed : bestBlue;
-            leftEllipse = ((bestRed.topLeft().y) < (bestBlue.topLeft().y)) ? bestRedEllipse : bestBlueEllipse;
+            leftMostContour = ((bestRed.top()) < (bestBlue.top())) ? bestRed : bestBlue;
+            leftEllipse = ((bestRed.top()) < (bestBlue.top())) ? bestRedEllipse : bestBlueEllipse;
             //Get bottom-most best contour
-            rightMostContour = ((bestRed.topLeft().y) < (bestBlue.topLeft().y)) ? bestBlue : bestRed;
-            rightEllipse = ((bestRed.topLeft().y) < (bestBlue.topLeft().y)) ? bestBlueEllipse : bestRedEllipse;
+            rightMostContour = ((bestRed.top()) < (bestBlue.top())) ? bestBlue : bestRed;
+            rightEllipse = ((bestRed.top()) < (bestBlue.top())) ? bestBlueEllipse : bestRedEllipse;
         } else {
             //Get left-most best contour
-            leftMostContour = ((bestRed.topLeft().y) < (bestBlue.topLeft().y)) ? bestRed : bestBlue;
-            leftEllipse = ((bestRed.topLeft().y) < (bestBlue.topLeft().y)) ? bestRedEllipse : bestBlueEllipse;
+            leftMostContour = ((bestRed.top()) < (bestBlue.top())) ? bestRed : bestBlue;
+            leftEllipse = ((bestRed.top()) < (bestBlue.top())) ? bestRedEllipse : bestBlueEllipse;
             //Get the right-most best contour
-            rightMostContour = ((bestRed.topLeft().y) < (bestBlue.topLeft().y)) ? bestBlue : bestRed;
-            rightEllipse = ((bestRed.topLeft().y) < (bestBlue.topLeft().y)) ? bestBlueEllipse : bestRedEllipse;
+            rightMostContour = ((bestRed.top()) < (bestBlue.top())) ? bestBlue : bestRed;
+            rightEllipse = ((bestRed.top()) < (bestBlue.top())) ? bestBlueEllipse : bestRedEllipse;
         }
 
         //Swap left and right if necessary
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2016 Arthur Pachachura, LASA Robotics, and contributors
+ * MIT licensed
+ */
+package org.lasarobotics.vision.ftc.resq;
+
+/**
+ * Chooses which analysis methods to run for the AUTO analysis method
+ * <p/>
+ * REALTIME always runs. FAST and then COMPLEX run after it if their expected cost fits in what is
+ * left of the time budget. If they do not fit but the analysis so far is not confident, they are
+ * still tried every few frames, which also keeps their cost estimates current. The cost of each
+ * method is tracked online as an exponentially weighted moving average.
+ */
+class BeaconMethodSelector {
+    private static final Beacon.AnalysisMethod[] STAGES = {
+            Beacon.AnalysisMethod.REALTIME, Beacon.AnalysisMethod.FAST, Beacon.AnalysisMethod.COMPLEX};
+
+    private final double[] cost = new double[STAGES.length];
+    private final int[] framesSinceRun = new int[STAGES.length];
+    private volatile double budget = Constants.AUTO_BUDGET;
+
+    BeaconMethodSelector() {
+        reset();
+    }
+
+    private static int indexOf(Beacon.AnalysisMethod method) {
+        for (int i = 0; i < STAGES.length; i++)
+            if (STAGES[i] == method)
+                return i;
+        throw new IllegalArgumentException("AUTO does not run " + method + "!");
+    }
+
+    /**
+     * Test whether an analysis is confident enough to stop escalating
+     *
+     * @param analysis Beacon analysis
+     * @return True if the beacon was found with at least the minimum confidence
+     */
+    static boolean isConfident(Beacon.BeaconAnalysis analysis) {
+        return BeaconTracker.isFound(analysis) && analysis.getConfidence() >= Constants.AUTO_CONFIDENCE_MIN;
+    }
+
+    /**
+     * Forget all cost estimates
+     */
+    void reset() {
+        for (int i = 0; i < STAGES.length; i++) {
+            cost[i] = Double.NaN;
+            framesSinceRun[i] = 0;
+        }
+    }
+
+    double getBudget() {
+        return budget;
+    }
+
+    void setBudget(double milliseconds) {
+        if (milliseconds <= 0)
+            throw new IllegalArgumentException("Analysis budget must be positive!");
+        this.budget = milliseconds;
+    }
+
+    /**
+     * Get the estimated cost of a method
+     *
+     * @param method REALTIME, FAST, or COMPLEX
+     * @return Estimated time, in milliseconds, or NaN if the method has not run yet
+     */
+    double getCost(Beacon.AnalysisMethod method) {
+        return cost[indexOf(method)];
+    }
+
+    /**
+     * Record how long a method took
+     *
+     * @param method REALTIME, FAST, or COMPLEX
+     * @param nanos  Time taken, in nanoseconds
+     */
+    void record(Beacon.AnalysisMethod method, long nanos) {
+        int i = indexOf(method);
+        double ms = nanos / 1e6;
+        cost[i] = Double.isNaN(cost[i]) ? ms : cost[i] + Constants.AUTO_COST_SMOOTHING * (ms - cost[i]);
+        framesSinceRun[i] = -1;
+    }
+
+    /**
+     * Decide whether to run a more expensive method after the current analysis
+     *
+     * @param method   FAST or COMPLEX
+     * @param analysis Best analysis so far this frame
+     * @param elapsed  Time spent on this frame so far, in nanoseconds
+     * @return True to run the method
+     */
+    boolean shouldRun(Beacon.AnalysisMethod method, Beacon.BeaconAnalysis analysis, long elapsed) {
+        int i = indexOf(method);
+        if (Double.isNaN(cost[i]))
+            return true;
+        if (cost[i] <= budget - elapsed / 1e6)
+            return true;
+        return !isConfident(analysis) && framesSinceRun[i] >= Constants.AUTO_PROBE_FRAMES;
+    }
+
+    /**
+     * Finish the current frame
+     */
+    void endFrame() {
+        for (int i = 0; i < STAGES.length; i++)
+            framesSinceRun[i]++;
+    }
+}
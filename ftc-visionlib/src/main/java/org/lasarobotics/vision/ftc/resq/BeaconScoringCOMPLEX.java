@@ -5,16 +5,20 @@
 
 package org.lasarobotics.vision.ftc.resq;
 
+import org.lasarobotics.vision.detection.ContourTable;
+import org.lasarobotics.vision.detection.EllipseTable;
 import org.lasarobotics.vision.detection.objects.Contour;
 import org.lasarobotics.vision.detection.objects.Ellipse;
+import org.lasarobotics.vision.detection.objects.SpatialIndex;
+import org.lasarobotics.vision.image.IntegralImage;
 import org.lasarobotics.vision.util.MathUtil;
-import org.lasarobotics.vision.util.color.ColorSpace;
+import org.lasarobotics.vision.util.TopK;
+import org.opencv.core.Core;
 import org.opencv.core.Mat;
 import org.opencv.core.Point;
 import org.opencv.core.Size;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -23,10 +27,26 @@ import java.util.List;
  */
 class BeaconScoringCOMPLEX {
 
+    //Best values are the root mean squared of the min and max areas
+    private static final double CONTOUR_AREA_BEST = Math.signum(Constants.CONTOUR_AREA_MIN) * Math.sqrt(Constants.CONTOUR_AREA_MIN * Constants.CONTOUR_AREA_MIN + Constants.CONTOUR_AREA_MAX * Constants.CONTOUR_AREA_MAX) / 2;
+    private static final double ELLIPSE_AREA_BEST = Math.sqrt(Constants.ELLIPSE_AREA_MIN * Constants.ELLIPSE_AREA_MIN + Constants.ELLIPSE_AREA_MAX * Constants.ELLIPSE_AREA_MAX) / 2;
+
     private final Size imgSize;
+    private final IntegralImage grayIntegral;
 
     BeaconScoringCOMPLEX(Size imgSize) {
+        this(imgSize, null);
+    }
+
+    /**
+     * Create a scorer that averages ellipse colors using an integral image of the grayscale image
+     *
+     * @param imgSize      Image size
+     * @param grayIntegral Integral image of the grayscale image passed to scoreEllipses(), or null to average directly
+     */
+    BeaconScoringCOMPLEX(Size imgSize, IntegralImage grayIntegral) {
         this.imgSize = imgSize;
+        this.grayIntegral = grayIntegral;
     }
 
     /**
@@ -49,92 +69,142 @@ class BeaconScoringCOMPLEX {
                 variance, 0) * bias, bias);
     }
 
-    List<ScoredContour> scoreContours(List<Contour> contours,
+    /**
+     * Score contours, keeping those above the minimum score
+     * Only the bounding boxes of the table are read, so it may be built with setBounds().
+     */
+    List<ScoredContour> scoreContours(ContourTable table,
                                       Point estimateLocation,
                                       Double estimateDistance,
                                       Mat rgba,
                                       Mat gray) {
         List<ScoredContour> scores = new ArrayList<>();
+        double[] width = table.getWidth();
+        double[] height = table.getHeight();
+        double imgArea = imgSize.area();
 
-        for (Contour contour : contours) {
+        for (int i = 0; i < table.size(); i++) {
             double score = 1;
 
             //Find ratio - the closer it is to the actual ratio of the beacon, the better
-            Size size = contour.size();
-            double ratio = size.width / size.height;
+            double ratio = width[i] / height[i];
             double ratioSubscore = createSubscore(ratio, Constants.CONTOUR_RATIO_BEST, Constants.CONTOUR_RATIO_NORM, Constants.CONTOUR_RATIO_BIAS, true);
             score *= ratioSubscore;
 
             //Find the area - the closer to a certain range, the better
             //We also take the log for better area comparisons
-            double area = Math.log10(size.area() / imgSize.area());
-            //Best value is the root mean squared of the min and max areas
-            final double areaBestValue = Math.signum(Constants.CONTOUR_AREA_MIN) * Math.sqrt(Constants.CONTOUR_AREA_MIN * Constants.CONTOUR_AREA_MIN + Constants.CONTOUR_AREA_MAX * Constants.CONTOUR_AREA_MAX) / 2;
-            double areaSubscore = createSubscore(area, areaBestValue, Constants.CONTOUR_AREA_NORM, Constants.CONTOUR_AREA_BIAS, true);
+            double area = Math.log10(width[i] * height[i] / imgArea);
+            double areaSubscore = createSubscore(area, CONTOUR_AREA_BEST, Constants.CONTOUR_AREA_NORM, Constants.CONTOUR_AREA_BIAS, true);
             score *= areaSubscore;
 
             //TODO take color estimations into account
 
             //If score is above a value, keep the contour
             if (score >= Constants.CONTOUR_SCORE_MIN)
-                scores.add(new ScoredContour(contour, score));
+                scores.add(new ScoredContour(table.getContour(i), score));
         }
         return scores;
     }
 
-    @SuppressWarnings("unchecked")
+    /**
+     * Score ellipses, keeping those above the minimum score
+     * The returned list is in the same order as the ellipses - use Scorable.top() to rank it.
+     */
     List<ScoredEllipse> scoreEllipses(List<Ellipse> ellipses,
                                       Point estimateLocation,
                                       Double estimateDistance,
                                       Mat gray) {
-        List<ScoredEllipse> scores = new ArrayList<>();
+        return scoreEllipses(new EllipseTable(ellipses), estimateLocation, estimateDistance, gray);
+    }
 
-        for (Ellipse ellipse : ellipses) {
+    /**
+     * Score ellipses, keeping those above the minimum score
+     * The returned list is in the same order as the table - use Scorable.top() to rank it.
+     */
+    List<ScoredEllipse> scoreEllipses(EllipseTable table,
+                                      Point estimateLocation,
+                                      Double estimateDistance,
+                                      Mat gray) {
+        List<ScoredEllipse> scores = new ArrayList<>();
+        double[] centerX = table.getCenterX();
+        double[] centerY = table.getCenterY();
+        double[] width = table.getWidth();
+        double[] height = table.getHeight();
+        double[] eccentricity = table.getEccentricity();
+        double[] ellipseArea = table.getArea();
+        double imgArea = gray.size().area();
+
+        for (int i = 0; i < table.size(); i++) {
             double score = 1;
 
             //Find the eccentricity - the closer it is to 0, the better
-            double eccentricity = ellipse.eccentricity();
-            double eccentricitySubscore = createSubscore(eccentricity, Constants.ELLIPSE_ECCENTRICITY_BEST, Constants.ELLIPSE_ECCENTRICITY_NORM, Constants.ELLIPSE_ECCENTRICITY_BIAS, false);
+            double eccentricitySubscore = createSubscore(eccentricity[i], Constants.ELLIPSE_ECCENTRICITY_BEST, Constants.ELLIPSE_ECCENTRICITY_NORM, Constants.ELLIPSE_ECCENTRICITY_BIAS, false);
             score *= eccentricitySubscore;
             //f(0.3) = 5, f(0.75) = 0
 
             //Find the area - the closer to a certain range, the better
-            double area = ellipse.area() / gray.size().area(); //area as a percentage of the area of the screen
-            //Best value is the root mean squared of the min and max areas
-            final double areaBestValue = Math.sqrt(Constants.ELLIPSE_AREA_MIN * Constants.ELLIPSE_AREA_MIN + Constants.ELLIPSE_AREA_MAX * Constants.ELLIPSE_AREA_MAX) / 2;
-            double areaSubscore = createSubscore(area, areaBestValue, Constants.ELLIPSE_AREA_NORM, Constants.ELLIPSE_AREA_BIAS, true);
+            double area = ellipseArea[i] / imgArea; //area as a percentage of the area of the screen
+            double areaSubscore = createSubscore(area, ELLIPSE_AREA_BEST, Constants.ELLIPSE_AREA_NORM, Constants.ELLIPSE_AREA_BIAS, true);
             score *= areaSubscore;
 
+            //The color subscore is at most its bias, so skip averaging ellipses that can't reach the minimum
+            if (score * Constants.ELLIPSE_CONTRAST_BIAS < Constants.ELLIPSE_SCORE_MIN)
+                continue;
+
             //TODO Find the on-screen location - the closer it is to the estimate, the better
 
             //Find the color - the more black, the better (significantly)
-            Ellipse e = ellipse.scale(0.5); //get the center 50% of data
-            double averageColor = e.averageColor(gray, ColorSpace.GRAY).getScalar().val[0];
+            //Average the center 50% of the bounding box, as Ellipse.scale(0.5).averageColor() does
+            double averageColor = averageGray(gray, centerX[i], centerY[i], width[i] / 2, height[i] / 2);
             double colorSubscore = createSubscore(averageColor, Constants.ELLIPSE_CONTRAST_THRESHOLD, Constants.ELLIPSE_CONTRAST_NORM, Constants.ELLIPSE_CONTRAST_BIAS, false);
             score *= colorSubscore;
 
             //If score is above a value, keep the ellipse
             if (score >= Constants.ELLIPSE_SCORE_MIN)
-                scores.add(new ScoredEllipse(ellipse, score));
+                scores.add(new ScoredEllipse(table.getEllipse(i), score));
         }
 
-        return (List<ScoredEllipse>) Scorable.sort(scores);
+        return scores;
+    }
+
+    private double averageGray(Mat gray, double centerX, double centerY, double width, double height) {
+        //Coerce values to stay within screen dimensions, as Detectable.averageColor() does
+        int leftX = (int) MathUtil.coerce(0, gray.cols() - 1, centerX - width / 2);
+        int rightX = (int) MathUtil.coerce(0, gray.cols() - 1, centerX + width / 2);
+        int topY = (int) MathUtil.coerce(0, gray.rows() - 1, centerY - height / 2);
+        int bottomY = (int) MathUtil.coerce(0, gray.rows() - 1, centerY + height / 2);
+
+        if (grayIntegral != null) {
+            int count = (bottomY - topY) * (rightX - leftX);
+            return count > 0 ? grayIntegral.sum(0, topY, bottomY, leftX, rightX) / count : 0;
+        }
+        Mat subMat = gray.submat(topY, bottomY, leftX, rightX);
+        double mean = Core.mean(subMat).val[0];
+        subMat.release();
+        return mean;
     }
 
-    private List<AssociatedContour> associate(List<ScoredContour> contours, List<ScoredEllipse> ellipses) {
+    private List<AssociatedContour> associate(List<ScoredContour> contours, List<ScoredEllipse> ellipses,
+                                              SpatialIndex<Ellipse> index) {
         //Ellipses with nearby/contained contours associate themselves with the contour
         //Ellipses without nearby/contained contours are removed
 
         List<AssociatedContour> associations = new ArrayList<>();
+        double maxDistance = Constants.ASSOCIATION_MAX_DISTANCE * imgSize.width;
 
         for (ScoredContour contour : contours) {
-            AssociatedContour associatedContour = new AssociatedContour(contour, new ArrayList<ScoredEllipse>());
-            for (ScoredEllipse ellipse : ellipses) {
-                if (ellipse.ellipse.isInside(contour.contour) ||
-                        (MathUtil.distance(ellipse.ellipse.center(), contour.contour.centroid()) <=
-                                Constants.ASSOCIATION_MAX_DISTANCE * imgSize.width))
-                    associatedContour.ellipses.add(ellipse);
-            }
+            //Only ellipses in nearby grid cells are tested
+            List<ScoredEllipse> nearby = new ArrayList<>();
+            for (int i : index.findIndicesNearOrInside(contour.contour.centroid(), maxDistance, contour.contour))
+                nearby.add(ellipses.get(i));
+            //Only the best ellipse is used, so move it to the front rather than sorting
+            int best = 0;
+            for (int i = 1; i < nearby.size(); i++)
+                if (nearby.get(i).score > nearby.get(best).score)
+                    best = i;
+            if (best > 0)
+                Collections.swap(nearby, 0, best);
+            AssociatedContour associatedContour = new AssociatedContour(contour, nearby);
             associatedContour.updateScore();
             //Contours without nearby/contained ellipses lose value
             if (associatedContour.ellipses.size() == 0)
@@ -145,12 +215,15 @@ class BeaconScoringCOMPLEX {
         return associations;
     }
 
-    @SuppressWarnings("unchecked")
     MultiAssociatedContours scoreAssociations(List<ScoredContour> contoursRed,
                                               List<ScoredContour> contoursBlue,
                                               List<ScoredEllipse> ellipses) {
-        List<AssociatedContour> associationsRed = associate(contoursRed, ellipses);
-        List<AssociatedContour> associationsBlue = associate(contoursBlue, ellipses);
+        //Index the ellipses once for both colors, with cells the size of the association distance
+        SpatialIndex<Ellipse> index = new SpatialIndex<>(ScoredEllipse.getList(ellipses),
+                Constants.ASSOCIATION_MAX_DISTANCE * imgSize.width);
+
+        List<AssociatedContour> associationsRed = associate(contoursRed, ellipses, index);
+        List<AssociatedContour> associationsBlue = associate(contoursBlue, ellipses, index);
 
         //TODO Pairs of ellipses (those with similar size and x-position) greatly increase the associated contours' value
         //calculateEllipsePairs()
@@ -159,9 +232,9 @@ class BeaconScoringCOMPLEX {
         //TODO Contours near the expected zone (if any expected zone) increase in value
         //calculateContourZones()
 
-        //Finally, the list is sorted by score
-        return new MultiAssociatedContours((List<AssociatedContour>) Scorable.sort(associationsRed),
-                (List<AssociatedContour>) Scorable.sort(associationsBlue));
+        //Finally, only the best association of each color is kept
+        return new MultiAssociatedContours(Scorable.top(associationsRed, 1),
+                Scorable.top(associationsBlue, 1));
     }
 
     static class Scorable implements Comparable<Scorable> {
@@ -171,12 +244,30 @@ class BeaconScoringCOMPLEX {
             this.score = score;
         }
 
-        public static List<? extends Scorable> sort(List<? extends Scorable> ellipses) {
-            Scorable[] scoredEllipses = ellipses.toArray(new Scorable[ellipses.size()]);
-            Arrays.sort(scoredEllipses);
-            List<Scorable> finalEllipses = new ArrayList<>();
-            Collections.addAll(finalEllipses, scoredEllipses);
-            return finalEllipses;
+        /**
+         * Get the best scored items, from the highest score to the lowest
+         * Equal scores keep their order in the list.
+         *
+         * @param scored List of scored items
+         * @param k      Maximum number of items to return
+         * @param min    Minimum score of returned items
+         * @param <T>    Type of the scored items
+         * @return New list of at most k items
+         */
+        static <T extends Scorable> List<T> top(List<T> scored, int k, double min) {
+            if (k < 1 || scored.isEmpty())
+                return new ArrayList<>();
+            TopK<T> top = new TopK<>(Math.min(k, scored.size()));
+            for (int i = 0; i < scored.size(); i++) {
+                T item = scored.get(i);
+                if (item.score >= min)
+                    top.offer(item, item.score);
+            }
+            return top.drain();
+        }
+
+        static <T extends Scorable> List<T> top(List<T> scored, int k) {
+            return top(scored, k, Double.NEGATIVE_INFINITY);
         }
 
         public int compareTo(Scorable another) {
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2016 Arthur Pachachura, LASA Robotics, and contributors
+ * MIT licensed
+ */
+package org.lasarobotics.vision.ftc.resq;
+
+import org.lasarobotics.vision.detection.objects.Rectangle;
+import org.lasarobotics.vision.util.ScreenOrientation;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.video.KalmanFilter;
+
+/**
+ * Tracks a beacon between frames for the TRACKING analysis method
+ * <p/>
+ * The beacon center is smoothed with a constant-velocity Kalman filter (state x, y, vx, vy).
+ * The predicted center and the size of the last detection define a small search window,
+ * so most frames only process the area immediately around the beacon.
+ * <p/>
+ * The tracker works in image coordinates. In portrait, analyses report their location with the
+ * axes swapped, so locations are transposed on the way in and out.
+ */
+class BeaconTracker {
+    private final KalmanFilter kalman = new KalmanFilter(4, 2, 0, CvType.CV_32F);
+    private final Mat measurement = new Mat(2, 1, CvType.CV_32F);
+    private final Mat state = new Mat(4, 1, CvType.CV_32F);
+    private boolean tracking = false;
+    private int framesSinceScan = 0;
+    private double width = 0, height = 0;
+
+    BeaconTracker() {
+        Mat transition = Mat.eye(4, 4, CvType.CV_32F);
+        transition.put(0, 2, 1);
+        transition.put(1, 3, 1);
+        kalman.set_transitionMatrix(transition);
+        kalman.set_measurementMatrix(Mat.eye(2, 4, CvType.CV_32F));
+
+        Mat processNoise = Mat.eye(4, 4, CvType.CV_32F);
+        Mat measurementNoise = Mat.eye(2, 2, CvType.CV_32F);
+        processNoise.put(0, 0, Constants.TRACKING_PROCESS_NOISE, 0, 0, 0,
+                0, Constants.TRACKING_PROCESS_NOISE, 0, 0,
+                0, 0, Constants.TRACKING_PROCESS_NOISE, 0,
+                0, 0, 0, Constants.TRACKING_PROCESS_NOISE);
+        measurementNoise.put(0, 0, Constants.TRACKING_MEASUREMENT_NOISE, 0,
+                0, Constants.TRACKING_MEASUREMENT_NOISE);
+        kalman.set_processNoiseCov(processNoise);
+        kalman.set_measurementNoiseCov(measurementNoise);
+    }
+
+    /**
+     * Test whether an analysis has located a beacon
+     *
+     * @param analysis Beacon analysis
+     * @return True if both sides of the beacon are known
+     */
+    static boolean isFound(Beacon.BeaconAnalysis analysis) {
+        return analysis.isLeftKnown() && analysis.isRightKnown();
+    }
+
+    /**
+     * Forget the tracked beacon, forcing a full scan on the next frame
+     */
+    void reset() {
+        tracking = false;
+        framesSinceScan = 0;
+    }
+
+    /**
+     * Test whether the next frame should scan the entire analysis bounds
+     *
+     * @return True if the beacon is not tracked or a periodic rescan is due
+     */
+    boolean needsFullScan() {
+        return !tracking || framesSinceScan >= Constants.TRACKING_RESCAN_FRAMES;
+    }
+
+    /**
+     * Predict the beacon location in the current frame and get the window to search
+     * Must be called once per frame, before update().
+     *
+     * @param bounds Analysis bounds, oriented to the image
+     * @return Search window centered on the predicted beacon center, or the entire bounds
+     * if a full scan is needed
+     */
+    Rectangle predictWindow(Rectangle bounds) {
+        if (!tracking)
+            return bounds;
+
+        Mat prediction = kalman.predict();
+        if (needsFullScan())
+            return bounds;
+
+        Point predicted = new Point(prediction.get(0, 0)[0], prediction.get(1, 0)[0]);
+        return new Rectangle(predicted, width * Constants.TRACKING_WINDOW_SCALE,
+                height * Constants.TRACKING_WINDOW_SCALE).clip(bounds);
+    }
+
+    /**
+     * Update the tracker with the analysis of the current frame
+     *
+     * @param analysis    Analysis of the current frame
+     * @param fullScan    True if the analysis covered the entire analysis bounds
+     * @param orientation Screen orientation the analysis was made with
+     * @return Analysis with a smoothed beacon location, or the original analysis if not tracking
+     */
+    Beacon.BeaconAnalysis update(Beacon.BeaconAnalysis analysis, boolean fullScan, ScreenOrientation orientation) {
+        framesSinceScan = fullScan ? 0 : framesSinceScan + 1;
+
+        if (!isFound(analysis)) {
+            tracking = false;
+            return analysis;
+        }
+
+        //Portrait analyses transpose the location, so transpose it back to the image
+        boolean transposed = isTransposed(orientation);
+        Rectangle box = transposed ? analysis.getBoundingBox().transpose() : analysis.getBoundingBox();
+        Point center = box.center();
+        width = box.width();
+        height = box.height();
+
+        if (!tracking) {
+            //Start tracking from rest at the detected center
+            state.put(0, 0, center.x, center.y, 0, 0);
+            kalman.set_statePost(state);
+            kalman.set_errorCovPost(Mat.eye(4, 4, CvType.CV_32F));
+            tracking = true;
+            return analysis;
+        }
+
+        measurement.put(0, 0, center.x, center.y);
+        Mat corrected = kalman.correct(measurement);
+        Point smoothed = new Point(corrected.get(0, 0)[0], corrected.get(1, 0)[0]);
+        Rectangle smoothedBox = new Rectangle(smoothed, width, height);
+
+        return new Beacon.BeaconAnalysis(analysis.getStateLeft(), analysis.getStateRight(),
+                transposed ? smoothedBox.transpose() : smoothedBox, analysis.getConfidence(),
+                analysis.getLeftButton(), analysis.getRightButton());
+    }
+
+    private static boolean isTransposed(ScreenOrientation orientation) {
+        return orientation == ScreenOrientation.PORTRAIT || orientation == ScreenOrientation.PORTRAIT_REVERSE;
+    }
+}
@@ -28,6 +28,16 @@ public abstract class Constants {
     static final double FAST_CONFIDENCE_NORM = 5.0;
     static final double FAST_CONFIDENCE_ROUNDNESS = 2.0;
     static final double FAST_ELLIPSE_MISMATCH_DIVISOR = 3.0;
+    //TRACKING
+    static final double TRACKING_WINDOW_SCALE = 2.0;        //search window size relative to the last beacon size
+    static final int TRACKING_RESCAN_FRAMES = 15;           //frames between full scans while tracking
+    static final double TRACKING_PROCESS_NOISE = 1.0;       //variance of beacon motion per frame, px^2
+    static final double TRACKING_MEASUREMENT_NOISE = 16.0;  //variance of measured beacon center, px^2
+    //AUTO
+    static final double AUTO_BUDGET = 30.0;                 //default analysis time budget per frame, ms
+    static final double AUTO_CONFIDENCE_MIN = 0.5;          //confidence below which more expensive methods are tried
+    static final double AUTO_COST_SMOOTHING = 0.2;          //weight of each new measurement in the cost estimates
+    static final int AUTO_PROBE_FRAMES = 10;                //frames between over-budget attempts while not confident
     //COMPLEX
     static final double CONFIDENCE_DIVISOR = 800;
     static final double CONTOUR_RATIO_NORM = 0.2; //normal distribution variance for ratio
@@ -48,6 +58,8 @@ public abstract class Constants {
     static final double ELLIPSE_CONTRAST_BIAS = 7.0;
     static final double ELLIPSE_CONTRAST_NORM = 0.1;
     static final double ELLIPSE_SCORE_MIN = 1; //minimum score to keep the ellipse - theoretically, should be 1
+    static final int COMPLEX_ELLIPSE_DEBUG = 5; //best ellipses drawn in debug mode
+    static final double ELLIPSE_ASPECT_MAX = 2.0; //maximum contour bounding box aspect ratio fit to an ellipse - eccentricities this high never score
     static final double ASSOCIATION_MAX_DISTANCE = 0.10; //as fraction of screen
     static final double ASSOCIATION_NO_ELLIPSE_FACTOR = 0.50;
     static final double ASSOCIATION_ELLIPSE_SCORE_MULTIPLIER = 0.75;
@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2016 Arthur Pachachura, LASA Robotics, and contributors
+ * MIT licensed
+ */
+package org.lasarobotics.vision.image;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.videoio.VideoCapture;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Frame source that reads frames from an image file, a directory of images, or a recorded video
+ * <p/>
+ * Images are decoded once and replayed from memory, so frames can be delivered far faster
+ * than any camera can capture them. This makes it suitable for profiling and regression testing
+ * vision pipelines on a desktop JVM.
+ */
+public class FileFrameSource implements FrameSource {
+    private static final String[] IMAGE_EXTENSIONS = {".png", ".jpg", ".jpeg", ".bmp"};
+
+    private final List<Mat> imagesRgba = new ArrayList<>();
+    private final List<Mat> imagesGray = new ArrayList<>();
+    private final Mat rgba = new Mat();
+    private final Mat gray = new Mat();
+    private final Mat bgr = new Mat();
+    private VideoCapture video = null;
+    private FrameListener listener = null;
+    private Size frameSize = new Size();
+    private boolean looping = false;
+    private int index = 0;
+    private long frameCount = 0;
+    private volatile boolean running = false;
+    private Thread thread = null;
+
+    /**
+     * Create a frame source from a file or directory
+     * <p/>
+     * Directories are read in filename order and may only contain images. Single files that are not
+     * images are opened as a video.
+     *
+     * @param path Path to an image, a directory of images, or a video file
+     */
+    public FileFrameSource(String path) {
+        this(new File(path));
+    }
+
+    /**
+     * Create a frame source from a file or directory
+     * <p/>
+     * Directories are read in filename order and may only contain images. Single files that are not
+     * images are opened as a video.
+     *
+     * @param file Image, directory of images, or video file
+     */
+    public FileFrameSource(File file) {
+        if (!file.exists())
+            throw new IllegalArgumentException("Frame source does not exist: " + file.getAbsolutePath());
+
+        if (file.isDirectory()) {
+            File[] files = file.listFiles();
+            if (files == null)
+                throw new IllegalArgumentException("Cannot list directory: " + file.getAbsolutePath());
+            Arrays.sort(files);
+            for (File f : files)
+                if (isImage(f))
+                    loadImage(f);
+            if (imagesRgba.size() == 0)
+                throw new IllegalArgumentException("Directory contains no images: " + file.getAbsolutePath());
+        } else if (isImage(file)) {
+            loadImage(file);
+        } else {
+            video = new VideoCapture(file.getAbsolutePath());
+            if (!video.isOpened())
+                throw new IllegalArgumentException("Cannot open video: " + file.getAbsolutePath());
+            if (video.read(bgr))
+                frameSize = bgr.size();
+            video.release();
+            video.open(file.getAbsolutePath());
+        }
+    }
+
+    private static boolean isImage(File file) {
+        String name = file.getName().toLowerCase();
+        for (String extension : IMAGE_EXTENSIONS)
+            if (name.endsWith(extension))
+                return true;
+        return false;
+    }
+
+    private void loadImage(File file) {
+        Mat image = Imgcodecs.imread(file.getAbsolutePath(), Imgcodecs.IMREAD_COLOR);
+        if (image.empty())
+            throw new IllegalArgumentException("Cannot read image: " + file.getAbsolutePath());
+
+        Mat imageRgba = new Mat();
+        Mat imageGray = new Mat();
+        Imgproc.cvtColor(image, imageRgba, Imgproc.COLOR_BGR2RGBA);
+        Imgproc.cvtColor(imageRgba, imageGray, Imgproc.COLOR_RGBA2GRAY);
+        image.release();
+
+        imagesRgba.add(imageRgba);
+        imagesGray.add(imageGray);
+        if (imagesRgba.size() == 1)
+            frameSize = imageRgba.size();
+    }
+
+    /**
+     * Set whether the source restarts from the first frame once all frames are delivered
+     *
+     * @param looping True to loop forever, false to stop after the last frame
+     */
+    public void setLooping(boolean looping) {
+        this.looping = looping;
+    }
+
+    /**
+     * Get the number of frames delivered since this source was created
+     *
+     * @return Number of frames delivered
+     */
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Get the number of frames in the source
+     *
+     * @return Number of images, or number of video frames as reported by the video decoder
+     */
+    public int getLength() {
+        if (video != null)
+            return (int) video.get(org.opencv.videoio.Videoio.CAP_PROP_FRAME_COUNT);
+        return imagesRgba.size();
+    }
+
+    @Override
+    public void setFrameListener(FrameListener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public Size getFrameSize() {
+        return frameSize;
+    }
+
+    /**
+     * Synchronously deliver the next frame to the listener on the calling thread
+     * <p/>
+     * The frame is copied before delivery, so the listener may freely draw on the matrices.
+     *
+     * @return True if a frame was delivered, false if the source is exhausted
+     */
+    public synchronized boolean next() {
+        if (!readFrame())
+            return false;
+
+        frameCount++;
+        if (listener != null)
+            listener.frame(rgba, gray);
+        return true;
+    }
+
+    private boolean readFrame() {
+        if (video != null) {
+            if (!video.read(bgr)) {
+                if (!looping)
+                    return false;
+                video.set(org.opencv.videoio.Videoio.CAP_PROP_POS_FRAMES, 0);
+                if (!video.read(bgr))
+                    return false;
+            }
+            Imgproc.cvtColor(bgr, rgba, Imgproc.COLOR_BGR2RGBA);
+            Imgproc.cvtColor(rgba, gray, Imgproc.COLOR_RGBA2GRAY);
+            return true;
+        }
+
+        if (index >= imagesRgba.size()) {
+            if (!looping)
+                return false;
+            index = 0;
+        }
+        imagesRgba.get(index).copyTo(rgba);
+        imagesGray.get(index).copyTo(gray);
+        index++;
+        return true;
+    }
+
+    /**
+     * Rewind the source to the first frame
+     */
+    public synchronized void rewind() {
+        index = 0;
+        if (video != null)
+            video.set(org.opencv.videoio.Videoio.CAP_PROP_POS_FRAMES, 0);
+    }
+
+    /**
+     * Start delivering frames on a background thread as fast as the listener accepts them
+     *
+     * @return True if the source started, false if it was already running
+     */
+    @Override
+    public boolean start() {
+        if (running)
+            return false;
+
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running && next()) {
+                    Thread.yield();
+                }
+                running = false;
+            }
+        }, "FileFrameSource");
+        thread.start();
+        return true;
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        thread = null;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Release all decoded frames and close the video, if any
+     */
+    public void release() {
+        //Stop before taking the lock - the worker may be waiting for it inside next()
+        stop();
+        synchronized (this) {
+            for (Mat m : imagesRgba)
+                m.release();
+            for (Mat m : imagesGray)
+                m.release();
+            imagesRgba.clear();
+            imagesGray.clear();
+            if (video != null)
+                video.release();
+            rgba.release();
+            gray.release();
+            bgr.release();
+        }
+    }
+}
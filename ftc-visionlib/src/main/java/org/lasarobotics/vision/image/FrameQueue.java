@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2016 Arthur Pachachura, LASA Robotics, and contributors
+ * MIT licensed
+ */
+package org.lasarobotics.vision.image;
+
+import org.opencv.core.Mat;
+
+/**
+ * Bounded, latest-frame-wins handoff of frames from a producer thread to a consumer thread
+ * <p/>
+ * Frames are copied into a ring of preallocated slots, so the producer (usually the camera thread)
+ * never waits on the consumer. If the consumer falls behind, older unread frames are dropped in
+ * favor of the newest frame. At least three slots are used, so the producer always has a free
+ * slot while the consumer reads one slot and another waits to be read.
+ */
+public class FrameQueue {
+    private static final int FREE = 0;
+    private static final int WRITING = 1;
+    private static final int PENDING = 2;
+    private static final int READING = 3;
+
+    private final Frame[] slots;
+    private final int[] states;
+    private int pending = -1;
+    private int reading = -1;
+    private long sequence = 0;
+    private long dropped = 0;
+    private boolean closed = false;
+
+    /**
+     * Create a frame queue with three slots
+     */
+    public FrameQueue() {
+        this(3);
+    }
+
+    /**
+     * Create a frame queue
+     *
+     * @param size Number of slots, at least 3
+     */
+    public FrameQueue(int size) {
+        if (size < 3)
+            throw new IllegalArgumentException("A frame queue needs at least 3 slots!");
+        slots = new Frame[size];
+        states = new int[size];
+        for (int i = 0; i < size; i++)
+            slots[i] = new Frame();
+    }
+
+    /**
+     * Copy a frame into the queue, replacing any frame that has not been taken yet
+     * This method never blocks on the consumer.
+     *
+     * @param rgba      RGBA image
+     * @param gray      Grayscale image
+     * @param timestamp Capture time of the frame, in nanoseconds (System.nanoTime())
+     * @return True if the frame was queued, false if the queue is closed or full
+     */
+    public boolean offer(Mat rgba, Mat gray, long timestamp) {
+        return offer(rgba, gray, timestamp, 0);
+    }
+
+    /**
+     * Copy a frame into the queue with its own sequence number, replacing any frame that has not
+     * been taken yet
+     * This method never blocks on the consumer.
+     *
+     * @param rgba      RGBA image
+     * @param gray      Grayscale image
+     * @param timestamp Capture time of the frame, in nanoseconds (System.nanoTime())
+     * @param sequence  Sequence number of the frame, such as VisionFrame.getSequence(), or 0 to
+     *                  number frames in the order they are offered
+     * @return True if the frame was queued, false if the queue is closed or full
+     */
+    public boolean offer(Mat rgba, Mat gray, long timestamp, long sequence) {
+        int slot;
+        synchronized (this) {
+            if (closed)
+                return false;
+            slot = findFree();
+            if (slot == -1) {
+                dropped++;
+                return false;
+            }
+            states[slot] = WRITING;
+        }
+
+        //Copy outside of the lock so the consumer is never blocked by the copy
+        Frame frame = slots[slot];
+        rgba.copyTo(frame.rgba);
+        gray.copyTo(frame.gray);
+        frame.timestamp = timestamp;
+
+        synchronized (this) {
+            ++this.sequence;
+            frame.sequence = sequence > 0 ? sequence : this.sequence;
+            if (pending != -1) {
+                //The consumer never saw the previous frame
+                states[pending] = FREE;
+                dropped++;
+            }
+            states[slot] = PENDING;
+            pending = slot;
+            notifyAll();
+        }
+        return true;
+    }
+
+    private int findFree() {
+        for (int i = 0; i < states.length; i++)
+            if (states[i] == FREE)
+                return i;
+        return -1;
+    }
+
+    /**
+     * Wait for the newest frame that has not been taken yet
+     * The frame previously returned by this method is released back to the queue, so it must
+     * not be used after calling take() again.
+     *
+     * @param timeout Maximum time to wait, in milliseconds
+     * @return The newest frame, or null if no frame arrived in time or the queue was closed
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+    public synchronized Frame take(long timeout) throws InterruptedException {
+        discard();
+
+        long deadline = System.currentTimeMillis() + timeout;
+        while (pending == -1 && !closed) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0)
+                return null;
+            wait(remaining);
+        }
+        if (pending == -1 || closed)
+            return null;
+
+        reading = pending;
+        pending = -1;
+        states[reading] = READING;
+        return slots[reading];
+    }
+
+    /**
+     * Hand the frame last returned by take() back to the queue without waiting for another
+     * Call this once the consumer stops taking frames, so that release() does not wait for it.
+     */
+    public synchronized void discard() {
+        if (reading != -1) {
+            states[reading] = FREE;
+            reading = -1;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Test whether a frame is waiting to be taken
+     *
+     * @return True if take() would return a frame immediately, false otherwise
+     */
+    public synchronized boolean hasPending() {
+        return pending != -1;
+    }
+
+    /**
+     * Get the number of frames offered to the queue
+     *
+     * @return Number of frames, which is also the sequence number of the newest frame
+     */
+    public synchronized long getFrameCount() {
+        return sequence;
+    }
+
+    /**
+     * Get the number of frames that were dropped before the consumer took them
+     *
+     * @return Number of dropped frames
+     */
+    public synchronized long getDroppedCount() {
+        return dropped;
+    }
+
+    /**
+     * Close the queue, waking up any waiting consumer
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * Close the queue and release all frames
+     * Waits until the producer has finished copying any frame it is offering and the consumer has
+     * handed back the frame it is reading, either by calling take() again or discard().
+     */
+    public synchronized void release() {
+        close();
+        boolean interrupted = false;
+        while (isBusy()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+        for (Frame frame : slots) {
+            frame.rgba.release();
+            frame.gray.release();
+        }
+    }
+
+    private boolean isBusy() {
+        for (int state : states)
+            if (state == WRITING || state == READING)
+                return true;
+        return false;
+    }
+
+    /**
+     * A frame held by the queue
+     */
+    public static final class Frame {
+        private final Mat rgba = new Mat();
+        private final Mat gray = new Mat();
+        private long sequence = 0;
+        private long timestamp = 0;
+
+        private Frame() {
+
+        }
+
+        /**
+         * Get the RGBA image
+         *
+         * @return RGBA image
+         */
+        public Mat rgba() {
+            return rgba;
+        }
+
+        /**
+         * Get the grayscale image
+         *
+         * @return Grayscale image
+         */
+        public Mat gray() {
+            return gray;
+        }
+
+        /**
+         * Get the sequence number of this frame, as given to offer(), or otherwise increasing by
+         * one for every frame offered
+         *
+         * @return Sequence number, starting at 1
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * Get the capture time of this frame
+         *
+         * @return Capture time, in nanoseconds (System.nanoTime())
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2016 Arthur Pachachura, LASA Robotics, and contributors
+ * MIT licensed
+ */
+package org.lasarobotics.vision.image;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+/**
+ * A source of image frames, such as a camera, an image directory, or a recorded video
+ * <p/>
+ * Every frame is delivered as an RGBA and a grayscale matrix to the attached FrameListener,
+ * the same path used by VisionOpModes. This allows vision pipelines to run without a camera.
+ */
+public interface FrameSource {
+    /**
+     * Set the listener that receives every frame
+     *
+     * @param listener Frame listener
+     */
+    void setFrameListener(FrameListener listener);
+
+    /**
+     * Get the size of the frames delivered by this source
+     *
+     * @return Frame size in pixels
+     */
+    Size getFrameSize();
+
+    /**
+     * Start delivering frames to the listener
+     *
+     * @return True if the source started, false otherwise
+     */
+    boolean start();
+
+    /**
+     * Stop delivering frames to the listener
+     */
+    void stop();
+
+    /**
+     * Test whether the source is currently delivering frames
+     *
+     * @return True if running, false otherwise
+     */
+    boolean isRunning();
+
+    /**
+     * Receives frames from a frame source
+     */
+    interface FrameListener {
+        /**
+         * Called for every frame delivered by a frame source
+         *
+         * @param rgba RGBA image
+         * @param gray Grayscale image
+         * @return The image to display, if any
+         */
+        Mat frame(Mat rgba, Mat gray);
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2016 Arthur Pachachura, LASA Robotics, and contributors
+ * MIT licensed
+ */
+package org.lasarobotics.vision.image;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Gaussian image pyramid of a single frame, in RGBA, grayscale and HSV
+ * <p/>
+ * Each level is half the width and height of the level before it (level 0 is the full image).
+ * Levels are built the first time they are requested and then shared by every consumer of the
+ * frame, so several detectors working on the same frame only pay for each pyrDown once.
+ * <p/>
+ * Images returned by the pyramid are owned by it and reused for the next frame. Treat them as
+ * read-only, and do not keep references to them after the next call to set() or invalidate().
+ */
+public final class ImagePyramid {
+    /**
+     * Highest level that can be requested, a sixteenth of the width and height of the image
+     */
+    public static final int MAX_LEVEL = 4;
+    private static final Variant[] VARIANTS = Variant.values();
+
+    private final Object lock;
+    private final VisionFrame frame;
+    private final Mat[][] levels = new Mat[VARIANTS.length][MAX_LEVEL + 1];
+    private final Mat[][] buffers = new Mat[VARIANTS.length][MAX_LEVEL + 1];
+    private final Mat[] smoothed = new Mat[VARIANTS.length];
+    private final Mat[] smoothedBuffers = new Mat[VARIANTS.length];
+    private Mat rgba = null;
+    private Mat gray = null;
+
+    /**
+     * Create an empty pyramid. Call set() before requesting any level.
+     */
+    public ImagePyramid() {
+        this.frame = null;
+        this.lock = this;
+    }
+
+    /**
+     * Create the pyramid of a frame, which provides level 0 of each variant
+     *
+     * @param frame Frame that owns the pyramid
+     */
+    ImagePyramid(VisionFrame frame) {
+        this.frame = frame;
+        this.lock = frame;
+    }
+
+    /**
+     * Get the region of a level covering a region of the full image
+     * The region is rounded outwards to whole pixels of the level.
+     *
+     * @param region Region of the full image (level 0)
+     * @param level  Pyramid level
+     * @return Region of the level
+     */
+    public static Rect scale(Rect region, int level) {
+        int mask = (1 << level) - 1;
+        int left = region.x >> level;
+        int top = region.y >> level;
+        int right = (region.x + region.width + mask) >> level;
+        int bottom = (region.y + region.height + mask) >> level;
+        return new Rect(left, top, right - left, bottom - top);
+    }
+
+    /**
+     * Set the full image, discarding all levels built so far
+     * Not available for the pyramid of a VisionFrame, which follows the frame instead.
+     *
+     * @param rgba RGBA image, or null if only the grayscale variant is used
+     * @param gray Grayscale image, or null to convert it from the RGBA image when needed
+     */
+    public void set(Mat rgba, Mat gray) {
+        if (frame != null)
+            throw new IllegalStateException("The pyramid of a frame follows the frame!");
+        synchronized (lock) {
+            this.rgba = rgba;
+            this.gray = gray;
+            invalidate();
+        }
+    }
+
+    /**
+     * Discard all levels built so far, because the full image was modified
+     */
+    public void invalidate() {
+        synchronized (lock) {
+            for (int v = 0; v < VARIANTS.length; v++) {
+                for (int i = 0; i <= MAX_LEVEL; i++)
+                    levels[v][i] = null;
+                smoothed[v] = null;
+            }
+        }
+    }
+
+    /**
+     * Get a level of the pyramid, building it and any levels before it if needed
+     *
+     * @param variant Color variant
+     * @param level   Level, from 0 (the full image) to MAX_LEVEL
+     * @return Image of the level
+     */
+    public Mat get(Variant variant, int level) {
+        if (level < 0 || level > MAX_LEVEL)
+            throw new IllegalArgumentException("Pyramid level must be between 0 and " + MAX_LEVEL + "!");
+
+        synchronized (lock) {
+            int v = variant.ordinal();
+            if (levels[v][level] != null)
+                return levels[v][level];
+
+            Mat out;
+            if (level == 0) {
+                out = base(variant);
+            } else {
+                out = buffer(v, level);
+                if (variant == Variant.HSV)
+                    Imgproc.cvtColor(get(Variant.RGBA, level), out, Imgproc.COLOR_RGB2HSV_FULL);
+                else
+                    Imgproc.pyrDown(get(variant, level - 1), out);
+            }
+            levels[v][level] = out;
+            return out;
+        }
+    }
+
+    /**
+     * Get the part of a level that covers a region of the full image
+     * The submatrix shares data with the level, and must be released by the caller.
+     *
+     * @param variant Color variant
+     * @param level   Level, from 0 (the full image) to MAX_LEVEL
+     * @param region  Region of the full image (level 0), see scale()
+     * @return Submatrix of the level
+     */
+    public Mat get(Variant variant, int level, Rect region) {
+        Mat image = get(variant, level);
+        Rect scaled = scale(region, level);
+        int right = Math.min(image.cols(), scaled.x + scaled.width);
+        int bottom = Math.min(image.rows(), scaled.y + scaled.height);
+        return image.submat(scaled.y, bottom, scaled.x, right);
+    }
+
+    /**
+     * Get the full image after a round trip through level 1, which removes fine noise
+     *
+     * @param variant Color variant
+     * @return Smoothed image, the same size as the full image
+     */
+    public Mat getSmoothed(Variant variant) {
+        synchronized (lock) {
+            int v = variant.ordinal();
+            if (smoothed[v] != null)
+                return smoothed[v];
+
+            if (smoothedBuffers[v] == null)
+                smoothedBuffers[v] = new Mat();
+            Imgproc.pyrUp(get(variant, 1), smoothedBuffers[v], get(variant, 0).size());
+            smoothed[v] = smoothedBuffers[v];
+            return smoothed[v];
+        }
+    }
+
+    /**
+     * Test whether a level has already been built
+     *
+     * @param variant Color variant
+     * @param level   Level, from 0 to MAX_LEVEL
+     * @return True if the level is available without computation, false otherwise
+     */
+    public boolean isComputed(Variant variant, int level) {
+        synchronized (lock) {
+            return levels[variant.ordinal()][level] != null;
+        }
+    }
+
+    /**
+     * Release all buffers owned by this pyramid
+     */
+    public void release() {
+        synchronized (lock) {
+            invalidate();
+            for (int v = 0; v < VARIANTS.length; v++) {
+                for (int i = 0; i <= MAX_LEVEL; i++)
+                    if (buffers[v][i] != null) {
+                        buffers[v][i].release();
+                        buffers[v][i] = null;
+                    }
+                if (smoothedBuffers[v] != null) {
+                    smoothedBuffers[v].release();
+                    smoothedBuffers[v] = null;
+                }
+            }
+            rgba = null;
+            gray = null;
+        }
+    }
+
+    private Mat buffer(int variant, int level) {
+        if (buffers[variant][level] == null)
+            buffers[variant][level] = new Mat();
+        return buffers[variant][level];
+    }
+
+    private Mat base(Variant variant) {
+        if (frame != null) {
+            switch (variant) {
+                case RGBA:
+                    return frame.rgba();
+                case GRAY:
+                    return frame.gray();
+                default:
+                    return frame.hsv();
+            }
+        }
+
+        if (variant == Variant.GRAY && gray != null)
+            return gray;
+        if (rgba == null)
+            throw new IllegalStateException("No RGBA image has been set!");
+        switch (variant) {
+            case RGBA:
+                return rgba;
+            case GRAY:
+                Mat grayOut = buffer(Variant.GRAY.ordinal(), 0);
+                Imgproc.cvtColor(rgba, grayOut, Imgproc.COLOR_RGBA2GRAY);
+                return grayOut;
+            default:
+                Mat hsvOut = buffer(Variant.HSV.ordinal(), 0);
+                Imgproc.cvtColor(rgba, hsvOut, Imgproc.COLOR_RGB2HSV_FULL);
+                return hsvOut;
+        }
+    }
+
+    /**
+     * Color variants of the pyramid
+     */
+    public enum Variant {
+        /**
+         * RGBA images, downsampled by pyrDown
+         */
+        RGBA,
+        /**
+         * Grayscale images, downsampled by pyrDown
+         */
+        GRAY,
+        /**
+         * HSV images (COLOR_RGB2HSV_FULL), converted from the RGBA image of the same level
+         */
+        HSV
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2016 Arthur Pachachura, LASA Robotics, and contributors
+ * MIT licensed
+ */
+package org.lasarobotics.vision.image;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.Arrays;
+
+/**
+ * Integral image (summed-area table) for constant-time mean color queries over rectangles
+ * <p/>
+ * The table is built from the image the first time it is queried, which takes a single pass over
+ * the image. After that, the mean of any rectangle costs four lookups per channel, no matter how
+ * large the rectangle is. This pays off when many regions of the same image are averaged, such as
+ * when scoring hundreds of candidate ellipses.
+ * <p/>
+ * The table stays in native memory, and only the rows that queries touch are copied into Java.
+ * Sums of 8-bit images are stored as 32-bit integers, which are exact for images of up to about
+ * 8.4 million pixels; other images use doubles.
+ * <p/>
+ * Buffers are reused when a new image is set. An integral image is not thread-safe.
+ */
+public final class IntegralImage {
+    //Largest 8-bit image whose sums still fit in a 32-bit integer
+    private static final long MAX_INT_PIXELS = Integer.MAX_VALUE / 255;
+
+    private final Mat sum = new Mat();
+    private Mat source = null;
+    private boolean integer = false;
+    private int[][] intRows = new int[0][];
+    private double[][] doubleRows = new double[0][];
+    private boolean[] loaded = new boolean[0];
+    private int channels = 0;
+    private boolean computed = false;
+
+    /**
+     * Set the image to query. The table is built on the first query.
+     *
+     * @param image Image of up to four channels, or null to drop the reference to the previous image
+     */
+    public void set(Mat image) {
+        this.source = image;
+        this.computed = false;
+    }
+
+    /**
+     * Test whether the table has been built for the current image
+     *
+     * @return True if queries are available without computation, false otherwise
+     */
+    public boolean isComputed() {
+        return computed;
+    }
+
+    private void compute() {
+        if (computed)
+            return;
+        if (source == null)
+            throw new IllegalStateException("No image has been set!");
+
+        //Sums are (rows + 1) x (cols + 1), with a leading row and column of zeros
+        integer = source.depth() == CvType.CV_8U && source.total() <= MAX_INT_PIXELS;
+        Imgproc.integral(source, sum, integer ? CvType.CV_32S : CvType.CV_64F);
+        channels = sum.channels();
+        int rows = sum.rows();
+        int stride = sum.cols() * channels;
+        if (loaded.length < rows) {
+            loaded = new boolean[rows];
+            intRows = new int[rows][];
+            doubleRows = new double[rows][];
+        } else {
+            Arrays.fill(loaded, false);
+        }
+        for (int r = 0; r < rows; r++) {
+            if (integer && (intRows[r] == null || intRows[r].length < stride))
+                intRows[r] = new int[stride];
+            else if (!integer && (doubleRows[r] == null || doubleRows[r].length < stride))
+                doubleRows[r] = new double[stride];
+        }
+        computed = true;
+    }
+
+    //Copy a row of the table into Java the first time it is read
+    private void load(int row) {
+        if (loaded[row])
+            return;
+        if (integer)
+            sum.get(row, 0, intRows[row]);
+        else
+            sum.get(row, 0, doubleRows[row]);
+        loaded[row] = true;
+    }
+
+    /**
+     * Get the number of rows of the image
+     *
+     * @return Image height
+     */
+    public int rows() {
+        compute();
+        return sum.rows() - 1;
+    }
+
+    /**
+     * Get the number of columns of the image
+     *
+     * @return Image width
+     */
+    public int cols() {
+        compute();
+        return sum.cols() - 1;
+    }
+
+    /**
+     * Get the number of channels of the image
+     *
+     * @return Number of channels
+     */
+    public int channels() {
+        compute();
+        return channels;
+    }
+
+    /**
+     * Get the sum of a channel over a rectangle of the image
+     *
+     * @param channel Channel
+     * @param top     First row, inclusive
+     * @param bottom  Last row, exclusive
+     * @param left    First column, inclusive
+     * @param right   Last column, exclusive
+     * @return Sum of the channel
+     */
+    public double sum(int channel, int top, int bottom, int left, int right) {
+        compute();
+        load(top);
+        load(bottom);
+        int l = left * channels + channel;
+        int r = right * channels + channel;
+        if (integer) {
+            int[] topRow = intRows[top], bottomRow = intRows[bottom];
+            return (double) bottomRow[r] - bottomRow[l] - topRow[r] + topRow[l];
+        }
+        double[] topRow = doubleRows[top], bottomRow = doubleRows[bottom];
+        return bottomRow[r] - bottomRow[l] - topRow[r] + topRow[l];
+    }
+
+    /**
+     * Get the mean of every channel over a rectangle of the image, the same as Core.mean() of the submatrix
+     *
+     * @param top    First row, inclusive
+     * @param bottom Last row, exclusive
+     * @param left   First column, inclusive
+     * @param right  Last column, exclusive
+     * @return Mean of each channel, or zero if the rectangle is empty
+     */
+    public Scalar mean(int top, int bottom, int left, int right) {
+        compute();
+        double[] mean = new double[4];
+        int count = (bottom - top) * (right - left);
+        if (count > 0)
+            for (int c = 0; c < channels && c < 4; c++)
+                mean[c] = sum(c, top, bottom, left, right) / count;
+        return new Scalar(mean);
+    }
+
+    /**
+     * Release all buffers owned by this integral image
+     */
+    public void release() {
+        sum.release();
+        intRows = new int[0][];
+        doubleRows = new double[0][];
+        loaded = new boolean[0];
+        source = null;
+        computed = false;
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2016 Arthur Pachachura, LASA Robotics, and contributors
+ * MIT licensed
+ */
+package org.lasarobotics.vision.image;
+
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * A single frame with lazily computed, memoized views such as grayscale, HSV, and downsampled images
+ * <p/>
+ * Each view is computed the first time it is requested and then reused until the next frame, so
+ * every representation is built at most once per frame and only if something reads it. Frames
+ * may come from RGBA images or straight from an NV21 camera buffer, in which case even the RGBA
+ * image is only converted when requested.
+ * <p/>
+ * Downsampled views come from the frame's image pyramid, which detectors can also use directly
+ * through pyramid() to share any level between them.
+ * <p/>
+ * Views are stored in buffers owned by this object and reused between frames. Do not keep
+ * references to views after the next frame is set.
+ */
+public final class VisionFrame {
+    private static final View[] VIEWS = View.values();
+
+    private final Mat[] views = new Mat[VIEWS.length];
+    private final Mat[] buffers = new Mat[VIEWS.length];
+    private final ImagePyramid pyramid = new ImagePyramid(this);
+    private Mat yuv = null;
+    private Mat yuvGray = null;
+    private Mat yuvGraySource = null;
+    private long sequence = 0;
+    private long timestamp = 0;
+
+    /**
+     * Set the current frame from RGBA and grayscale images
+     * All previously computed views are discarded.
+     *
+     * @param rgba RGBA image
+     * @param gray Grayscale image of the RGBA image, or null to compute it when needed
+     */
+    public synchronized void set(Mat rgba, Mat gray) {
+        clear();
+        yuv = null;
+        views[View.RGBA.ordinal()] = rgba;
+        views[View.GRAY.ordinal()] = gray;
+        sequence++;
+        timestamp = System.nanoTime();
+    }
+
+    /**
+     * Set the current frame from an NV21 camera buffer
+     * All previously computed views are discarded. The grayscale view is the Y plane of the buffer,
+     * so it is available without any conversion.
+     *
+     * @param yuv NV21 image (1 channel, height * 3 / 2 rows)
+     */
+    public synchronized void setNV21(Mat yuv) {
+        clear();
+        this.yuv = yuv;
+
+        //Camera buffers are reused, so only create a new header for a new buffer
+        if (yuvGraySource != yuv) {
+            if (yuvGray != null)
+                yuvGray.release();
+            yuvGray = yuv.submat(0, yuv.rows() * 2 / 3, 0, yuv.cols());
+            yuvGraySource = yuv;
+        }
+        views[View.GRAY.ordinal()] = yuvGray;
+        sequence++;
+        timestamp = System.nanoTime();
+    }
+
+    /**
+     * Mark the RGBA image as modified
+     * All views except RGBA are discarded and recomputed from the modified image when requested.
+     * The NV21 buffer, if any, no longer matches the frame and is no longer available.
+     */
+    public synchronized void invalidate() {
+        Mat rgba = get(View.RGBA);
+        clear();
+        yuv = null;
+        views[View.RGBA.ordinal()] = rgba;
+    }
+
+    private void clear() {
+        for (int i = 0; i < views.length; i++)
+            views[i] = null;
+        pyramid.invalidate();
+    }
+
+    /**
+     * Get a view of the frame, computing it if it has not been computed for this frame
+     *
+     * @param view View to get
+     * @return Image matrix of the view
+     */
+    public synchronized Mat get(View view) {
+        int i = view.ordinal();
+        if (views[i] != null)
+            return views[i];
+
+        //Downsampled views are shared with the pyramid
+        switch (view) {
+            case RGBA_HALF:
+                views[i] = pyramid.get(ImagePyramid.Variant.RGBA, 1);
+                return views[i];
+            case RGBA_QUARTER:
+                views[i] = pyramid.get(ImagePyramid.Variant.RGBA, 2);
+                return views[i];
+            case HSV_QUARTER:
+                views[i] = pyramid.get(ImagePyramid.Variant.HSV, 2);
+                return views[i];
+        }
+
+        if (buffers[i] == null)
+            buffers[i] = new Mat();
+        Mat out = buffers[i];
+        switch (view) {
+            case RGBA:
+                if (yuv == null)
+                    throw new IllegalStateException("No frame has been set!");
+                Imgproc.cvtColor(yuv, out, Imgproc.COLOR_YUV2RGBA_NV21, 4);
+                break;
+            case GRAY:
+                Imgproc.cvtColor(get(View.RGBA), out, Imgproc.COLOR_RGBA2GRAY);
+                break;
+            case HSV:
+                Imgproc.cvtColor(get(View.RGBA), out, Imgproc.COLOR_RGB2HSV_FULL);
+                break;
+        }
+        views[i] = out;
+        return out;
+    }
+
+    /**
+     * Test whether a view has already been computed for this frame
+     *
+     * @param view View to test
+     * @return True if the view is available without computation, false otherwise
+     */
+    public synchronized boolean isComputed(View view) {
+        return views[view.ordinal()] != null;
+    }
+
+    /**
+     * Get the RGBA image
+     *
+     * @return RGBA image
+     */
+    public Mat rgba() {
+        return get(View.RGBA);
+    }
+
+    /**
+     * Get the grayscale image
+     *
+     * @return Grayscale image
+     */
+    public Mat gray() {
+        return get(View.GRAY);
+    }
+
+    /**
+     * Get the HSV image (COLOR_RGB2HSV_FULL)
+     *
+     * @return HSV image
+     */
+    public Mat hsv() {
+        return get(View.HSV);
+    }
+
+    /**
+     * Get the image pyramid of the frame
+     * Levels are built once per frame, the first time any consumer requests them.
+     *
+     * @return Image pyramid
+     */
+    public ImagePyramid pyramid() {
+        return pyramid;
+    }
+
+    /**
+     * Get the NV21 camera buffer the frame was set from
+     *
+     * @return NV21 image, or null if the frame was set from RGBA or the RGBA image has been modified
+     */
+    public synchronized Mat yuv() {
+        return yuv;
+    }
+
+    /**
+     * Get the sequence number of the current frame
+     *
+     * @return Number of frames set, including the current frame
+     */
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Get the capture time of the current frame
+     *
+     * @return Capture time, in nanoseconds (System.nanoTime())
+     */
+    public synchronized long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Set the capture time of the current frame, if it is known more precisely than the time the
+     * frame was set
+     *
+     * @param timestamp Capture time, in nanoseconds (System.nanoTime())
+     */
+    public synchronized void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Release all buffers owned by this frame
+     */
+    public synchronized void release() {
+        clear();
+        yuv = null;
+        for (int i = 0; i < buffers.length; i++)
+            if (buffers[i] != null) {
+                buffers[i].release();
+                buffers[i] = null;
+            }
+        if (yuvGray != null)
+            yuvGray.release();
+        yuvGray = null;
+        yuvGraySource = null;
+        pyramid.release();
+    }
+
+    /**
+     * Views of a frame
+     */
+    public enum View {
+        /**
+         * RGBA image
+         */
+        RGBA,
+        /**
+         * Grayscale image
+         */
+        GRAY,
+        /**
+         * HSV image (COLOR_RGB2HSV_FULL)
+         */
+        HSV,
+        /**
+         * RGBA image downsampled once by pyrDown, at half the width and height
+         */
+        RGBA_HALF,
+        /**
+         * RGBA image downsampled twice by pyrDown, at a quarter of the width and height
+         */
+        RGBA_QUARTER,
+        /**
+         * HSV image of RGBA_QUARTER, as used by color blob detection
+         */
+        HSV_QUARTER
+    }
+}
@@ -11,9 +11,9 @@ package org.lasarobotics.vision.opmode;
 import com.qualcomm.robotcore.util.ElapsedTime;
 import com.qualcomm.robotcore.util.RobotLog;
 
-import org.lasarobotics.vision.util.color.Color;
+import org.lasarobotics.vision.image.FrameQueue;
+import org.lasarobotics.vision.image.VisionFrame;
 import org.opencv.core.Mat;
-import org.opencv.imgproc.Imgproc;
 
 /**
  * Linear version of the Vision OpMode
@@ -24,9 +24,9 @@ public abstract class LinearVisionOpMode extends VisionOpMode {
     private Threader threader = null;
     private Thread thread = null;
     private volatile boolean opModeStarted = false;
-    private Mat rgba;
-    private Mat gray;
-    private boolean hasNewFrame = false;
+    private FrameQueue frames = null;
+    private FrameQueue.Frame currentFrame = null;
+    private boolean currentFrameDiscarded = true;
 
     public LinearVisionOpMode() {
 
@@ -35,26 +35,84 @@ public abstract class LinearVisionOpMode extends VisionOpMode {
     @Override
     public final Mat frame(Mat rgba, Mat gray) {
         if (!opModeStarted) return rgba;
-        this.rgba = super.frame(rgba, gray);
-        Imgproc.cvtColor(rgba, this.gray, Imgproc.COLOR_RGBA2GRAY);
-        hasNewFrame = true;
+        rgba = super.frame(rgba, gray);
+
+        //Hand a copy to the op mode thread, replacing any frame it has not taken yet
+        VisionFrame frame = getFrame();
+        frames.offer(rgba, frame.gray(), frame.getTimestamp());
         return rgba;
     }
 
+    @Override
+    public final Mat frameYUV(VisionFrame frame) {
+        //The op mode reads frames as RGBA, so they are always converted
+        return frame(frame.rgba(), frame.gray());
+    }
+
+    /**
+     * Wait for a frame newer than the last frame returned
+     * <p/>
+     * The frame is a snapshot that the camera thread never writes to, so it can be read without
+     * tearing. It stays valid until this method, getFrameRgba(), or getFrameGray() takes the next frame.
+     * If several frames arrive between calls, only the newest is returned.
+     *
+     * @param timeout Maximum time to wait, in milliseconds
+     * @return The next frame, with its sequence number and capture time, or null if no frame arrived in time
+     * @throws InterruptedException If the op mode is stopped while waiting
+     */
+    public final FrameQueue.Frame waitForNextFrame(long timeout) throws InterruptedException {
+        FrameQueue.Frame frame = frames.take(timeout);
+        if (frame != null) {
+            currentFrame = frame;
+            currentFrameDiscarded = true;
+        }
+        return frame;
+    }
+
+    private FrameQueue.Frame peekFrame() {
+        //Only move on to a new frame once the current one is discarded, so rgba and gray always match
+        if ((currentFrame == null || currentFrameDiscarded) && frames != null && frames.hasPending()) {
+            try {
+                FrameQueue.Frame frame = frames.take(0);
+                if (frame != null) {
+                    currentFrame = frame;
+                    currentFrameDiscarded = false;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return currentFrame;
+    }
+
+    /**
+     * Get the RGBA image of the current frame
+     * The same frame is returned until discardFrame() is called.
+     *
+     * @return RGBA image, or null if no frame has arrived yet
+     */
     public final Mat getFrameRgba() {
-        return rgba;
+        FrameQueue.Frame frame = peekFrame();
+        return frame != null ? frame.rgba() : null;
     }
 
+    /**
+     * Get the grayscale image of the current frame
+     * The same frame is returned until discardFrame() is called.
+     *
+     * @return Grayscale image, or null if no frame has arrived yet
+     */
     public final Mat getFrameGray() {
-        return gray;
+        FrameQueue.Frame frame = peekFrame();
+        return frame != null ? frame.gray() : null;
     }
 
     public boolean hasNewFrame() {
-        return hasNewFrame;
+        return (currentFrame != null && !currentFrameDiscarded) || (frames != null && frames.hasPending());
     }
 
     public void discardFrame() {
-        hasNewFrame = false;
+        currentFrameDiscarded = true;
     }
 
     public abstract void runOpMode() throws InterruptedException;
@@ -102,9 +160,9 @@ public abstract class LinearVisionOpMode extends VisionOpMode {
     @Override
     public final void init() {
         super.init();
-        hasNewFrame = false;
-        this.rgba = Color.createMatRGBA(width, height);
-        this.gray = Color.createMatGRAY(width, height);
+        this.frames = new FrameQueue();
+        this.currentFrame = null;
+        this.currentFrameDiscarded = true;
         this.threader = new Threader(this);
         this.thread = new Thread(this.threader, "Linear OpMode Helper");
         this.thread.start();
@@ -133,8 +191,7 @@ public abstract class LinearVisionOpMode extends VisionOpMode {
     public final void stop() {
         super.stop();
         this.opModeStarted = false;
-        this.rgba.release();
-        this.gray.release();
+        this.frames.close();
 
         if (!this.threader.isReady()) {
             this.thread.interrupt();
@@ -153,6 +210,12 @@ public abstract class LinearVisionOpMode extends VisionOpMode {
             RobotLog.e("*****************************************************************");
             System.exit(-1);
         }
+
+        //super.stop() waited for the camera thread to finish its frame, and the op mode thread has
+        //exited, so hand back the frame it was reading and release the queue
+        this.currentFrame = null;
+        this.frames.discard();
+        this.frames.release();
     }
 
     private void notifyOrThrowError() {
@@ -4,12 +4,23 @@
  */
 package org.lasarobotics.vision.opmode;
 
+import org.lasarobotics.vision.image.VisionFrame;
+import org.lasarobotics.vision.opmode.extensions.AdaptiveResolutionExtension;
 import org.lasarobotics.vision.opmode.extensions.BeaconExtension;
 import org.lasarobotics.vision.opmode.extensions.CameraControlExtension;
 import org.lasarobotics.vision.opmode.extensions.ImageRotationExtension;
 import org.lasarobotics.vision.opmode.extensions.VisionExtension;
+import org.lasarobotics.vision.opmode.extensions.YuvVisionExtension;
+import org.lasarobotics.vision.util.Latency;
+import org.lasarobotics.vision.util.LatencyHistogram;
 import org.opencv.core.Mat;
-import org.opencv.imgproc.Imgproc;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Easy-to-use, extensible vision op mode
@@ -25,6 +36,7 @@ public abstract class VisionOpMode extends VisionOpModeCore {
     public static final BeaconExtension beacon = new BeaconExtension();
     public static final ImageRotationExtension rotation = new ImageRotationExtension();
     public static final CameraControlExtension cameraControl = new CameraControlExtension();
+    public static final AdaptiveResolutionExtension adaptiveResolution = new AdaptiveResolutionExtension();
 
     private boolean enableOpenCV = true;
     /**
@@ -34,6 +46,12 @@ public abstract class VisionOpMode extends VisionOpModeCore {
     private int extensions = 0;
     private boolean extensionsInitialized = false;
 
+    //Parallel extension execution
+    private boolean parallelExtensions = false;
+    private volatile ExecutorService extensionPool = null;
+    private final ExtensionTask[] extensionTasks = new ExtensionTask[Extensions.values().length];
+    private final Future<?>[] extensionFutures = new Future<?>[Extensions.values().length];
+
     public VisionOpMode() {
         super();
     }
@@ -71,15 +89,51 @@ public abstract class VisionOpMode extends VisionOpModeCore {
         extension.instance.stop(this);
     }
 
+    /**
+     * Test whether read-only extensions run in parallel
+     *
+     * @return True if read-only extensions run in parallel, false if all extensions run serially
+     */
+    public boolean isParallelExtensions() {
+        return parallelExtensions;
+    }
+
+    /**
+     * Set whether read-only extensions run in parallel on a small thread pool
+     * <p/>
+     * Extensions still run in the order of the Extensions enum, so results match serial mode.
+     * Consecutive extensions that only read the frame (such as BEACON) run at the same time, while
+     * an extension that modifies the frame (such as ROTATION) runs alone once the extensions before
+     * it are done. BEACON modifies the frame while debug drawing is enabled on the camera thread.
+     * <p/>
+     * Call this before init().
+     *
+     * @param parallel True to run read-only extensions in parallel, false to run all extensions serially
+     */
+    public void setParallelExtensions(boolean parallel) {
+        this.parallelExtensions = parallel;
+    }
+
     @Override
     public void init() {
-        if (enableOpenCV) super.init();
+        //Camera frames are only processed once the extensions are initialized
+        if (enableOpenCV) initCamera();
+
+        if (parallelExtensions) {
+            //The calling (camera) thread runs one extension itself
+            int threads = Math.max(1, Math.min(3, Runtime.getRuntime().availableProcessors() - 1));
+            extensionPool = Executors.newFixedThreadPool(threads);
+            for (Extensions extension : Extensions.values())
+                extensionTasks[extension.ordinal()] = new ExtensionTask(extension);
+        }
 
         for (Extensions extension : Extensions.values())
             if (isEnabled(extension))
                 extension.instance.init(this);
 
         extensionsInitialized = true;
+
+        if (enableOpenCV) startFrames();
     }
 
     @Override
@@ -93,40 +147,233 @@ public abstract class VisionOpMode extends VisionOpModeCore {
 
     @Override
     public Mat frame(Mat rgba, Mat gray) {
+        VisionFrame frame = bindFrame(rgba, gray);
+        //Read once, as stop() may clear it while a frame from another source is being processed
+        ExecutorService pool = extensionPool;
+        if (pool != null)
+            return frameParallel(rgba, frame, pool);
 
         for (Extensions extension : Extensions.values())
             if (isEnabled(extension)) {
-                //Pipe the rgba of the previous point into the gray of the next
-                Imgproc.cvtColor(rgba, gray, Imgproc.COLOR_RGBA2GRAY);
-                extension.instance.frame(this, rgba, gray);
+                //Gray is only converted again if an extension modified rgba and another reads it
+                runExtension(extension, rgba, frame.gray());
+                if (extension.getAccess() == ExtensionAccess.MODIFY)
+                    frame.invalidate();
+            }
+
+        return rgba;
+    }
+
+    private Mat frameParallel(Mat rgba, VisionFrame frame, ExecutorService pool) {
+        //Consecutive read-only extensions run at the same time, keeping the last one on this thread
+        Extensions local = null;
+        for (Extensions extension : Extensions.values()) {
+            if (!isEnabled(extension))
+                continue;
+
+            if (extension.getAccess() == ExtensionAccess.MODIFY) {
+                //Finish the read-only extensions before this one, then run it alone
+                finishParallel(local, rgba, frame);
+                local = null;
+                runExtension(extension, rgba, frame.gray());
+                frame.invalidate();
+                continue;
             }
 
+            if (local != null)
+                submitExtension(pool, local, rgba, frame.gray());
+            local = extension;
+        }
+        finishParallel(local, rgba, frame);
+
         return rgba;
     }
 
+    private void submitExtension(ExecutorService pool, Extensions extension, Mat rgba, Mat gray) {
+        ExtensionTask task = extensionTasks[extension.ordinal()];
+        task.set(rgba, gray);
+        try {
+            extensionFutures[extension.ordinal()] = pool.submit(task);
+        } catch (RejectedExecutionException e) {
+            //The pool was shut down by stop() - run the extension on this thread instead
+            runExtension(extension, rgba, gray);
+        }
+    }
+
+    private void finishParallel(Extensions local, Mat rgba, VisionFrame frame) {
+        try {
+            if (local != null)
+                runExtension(local, rgba, frame.gray());
+        } finally {
+            awaitExtensions();
+        }
+    }
+
+    private void awaitExtensions() {
+        //Wait for every extension, even if interrupted, so none still uses the frame afterwards
+        boolean interrupted = false;
+        Throwable failure = null;
+        for (int i = 0; i < extensionFutures.length; i++) {
+            Future<?> future = extensionFutures[i];
+            if (future == null)
+                continue;
+            extensionFutures[i] = null;
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (failure == null)
+                        failure = e.getCause();
+                    break;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        if (failure != null)
+            throw new RuntimeException(failure);
+    }
+
+    /**
+     * Process a camera frame in its native YUV format
+     * Extensions that accept YUV frames receive it directly, and the frame is only converted to RGBA
+     * for the remaining extensions. If any enabled extension modifies the frame, or none accept YUV
+     * frames, the frame is converted to RGBA and processed by frame() instead.
+     * Extensions always run serially in this mode.
+     *
+     * @param frame Camera frame, where yuv() is not null
+     * @return The image to display - RGBA if it was needed, grayscale otherwise
+     */
+    @Override
+    public Mat frameYUV(VisionFrame frame) {
+        boolean anyYuv = false;
+        for (Extensions extension : Extensions.values())
+            if (isEnabled(extension)) {
+                if (extension.getAccess() == ExtensionAccess.MODIFY)
+                    return super.frameYUV(frame);
+                if (acceptsYuv(extension))
+                    anyYuv = true;
+            }
+        if (!anyYuv)
+            return super.frameYUV(frame);
+
+        Mat yuv = frame.yuv();
+        Mat gray = frame.gray();
+        for (Extensions extension : Extensions.values())
+            if (isEnabled(extension)) {
+                if (acceptsYuv(extension)) {
+                    long start = Latency.start();
+                    ((YuvVisionExtension) extension.instance).frameYUV(this, yuv, gray);
+                    extension.latency.lap(start);
+                } else {
+                    //RGBA is converted once something needs it
+                    runExtension(extension, frame.rgba(), gray);
+                }
+            }
+
+        return frame.isComputed(VisionFrame.View.RGBA) ? frame.rgba() : gray;
+    }
+
+    private static boolean acceptsYuv(Extensions extension) {
+        return extension.instance instanceof YuvVisionExtension &&
+                ((YuvVisionExtension) extension.instance).acceptsYuv();
+    }
+
+    private Mat runExtension(Extensions extension, Mat rgba, Mat gray) {
+        long start = Latency.start();
+        Mat result = extension.instance.frame(this, rgba, gray);
+        extension.latency.lap(start);
+        return result;
+    }
+
     @Override
     public void stop() {
+        //Waits for a camera frame in progress, so the pool is no longer in use below
         super.stop();
 
+        ExecutorService pool = extensionPool;
+        if (pool != null) {
+            extensionPool = null;
+            pool.shutdown();
+        }
+
         for (Extensions extension : Extensions.values())
             if (isEnabled(extension))
                 disableExtension(extension); //disable and stop
     }
 
+    /**
+     * How a Vision Extension uses the frame
+     */
+    public enum ExtensionAccess {
+        /**
+         * The extension only reads the frame, so it can run alongside other read-only extensions
+         */
+        READ_ONLY,
+        /**
+         * The extension modifies the frame, so it must run alone
+         */
+        MODIFY
+    }
+
     /**
      * List of Vision Extensions
      */
     public enum Extensions {
-        BEACON(2, beacon),
-        CAMERA_CONTROL(1, cameraControl), //high priority
-        ROTATION(4, rotation); //low priority
+        BEACON(2, beacon, ExtensionAccess.READ_ONLY), //modifies the frame when drawing debug info
+        CAMERA_CONTROL(1, cameraControl, ExtensionAccess.READ_ONLY), //high priority
+        ROTATION(4, rotation, ExtensionAccess.MODIFY), //low priority
+        ADAPTIVE_RESOLUTION(8, adaptiveResolution, ExtensionAccess.READ_ONLY); //measures the previous frame
 
         final int id;
         final VisionExtension instance;
+        final ExtensionAccess access;
+        final LatencyHistogram latency;
 
-        Extensions(int id, VisionExtension instance) {
+        Extensions(int id, VisionExtension instance, ExtensionAccess access) {
             this.id = id;
             this.instance = instance;
+            this.access = access;
+            this.latency = Latency.get("extension." + name().toLowerCase());
+        }
+
+        /**
+         * Get how the extension currently uses the frame
+         *
+         * @return Access level, which may change while the extension is enabled
+         */
+        ExtensionAccess getAccess() {
+            //Debug drawing writes into the frame, unless the analysis runs on a copy of it
+            if (this == BEACON && beacon.isDebug() && !beacon.isAsync())
+                return ExtensionAccess.MODIFY;
+            return access;
+        }
+    }
+
+    /**
+     * Runs a single extension on the extension pool
+     * Allocated once per extension and reused every frame.
+     */
+    private final class ExtensionTask implements Callable<Mat> {
+        private final Extensions extension;
+        private Mat rgba;
+        private Mat gray;
+
+        ExtensionTask(Extensions extension) {
+            this.extension = extension;
+        }
+
+        void set(Mat rgba, Mat gray) {
+            this.rgba = rgba;
+            this.gray = gray;
+        }
+
+        @Override
+        public Mat call() {
+            return runExtension(extension, rgba, gray);
         }
     }
 }
@@ -7,34 +7,47 @@ package org.lasarobotics.vision.opmode;
 
 import android.app.Activity;
 import android.util.Log;
-import android.view.View;
-import android.view.ViewGroup;
-import android.widget.LinearLayout;
 
 import com.qualcomm.robotcore.eventloop.opmode.OpMode;
 
 import org.lasarobotics.vision.android.Cameras;
 import org.lasarobotics.vision.android.Sensors;
+import org.lasarobotics.vision.image.FrameSource;
+import org.lasarobotics.vision.image.VisionFrame;
 import org.lasarobotics.vision.util.FPS;
-import org.opencv.android.BaseLoaderCallback;
+import org.lasarobotics.vision.util.Latency;
+import org.lasarobotics.vision.util.LatencyHistogram;
 import org.opencv.android.CameraBridgeViewBase;
 import org.opencv.android.JavaCameraView;
-import org.opencv.android.LoaderCallbackInterface;
-import org.opencv.android.OpenCVLoader;
 import org.opencv.core.Mat;
 import org.opencv.core.Size;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Core OpMode class containing most OpenCV functionality
  */
-abstract class VisionOpModeCore extends OpMode implements CameraBridgeViewBase.CvCameraViewListener2 {
-    private static final int initialMaxSize = 1200;
+abstract class VisionOpModeCore extends OpMode implements CameraBridgeViewBase.CvCameraViewListener2, FrameSource.FrameListener {
+    static final int initialMaxSize = 1200;
+    private static final long WARM_UP_TIMEOUT = 1000;
+    private static final LatencyHistogram FRAME_LATENCY = Latency.get("frame");
     public static JavaCameraView openCVCamera;
     private static boolean initialized = false;
-    private static boolean openCVInitialized = false;
     public int width, height;
     public FPS fps;
     public Sensors sensors;
+    private boolean latencyTelemetry = false;
+    private boolean yuvNative = false;
+    private final VisionFrame visionFrame = new VisionFrame();
+    private boolean frameBound = false;
+    private int warmUpFrames = 3;
+    private volatile CountDownLatch warmUpLatch = null;
+    private volatile boolean processingFrames = false;
+    //Held for the whole of onCameraFrame(), so stop() can wait for a frame in progress
+    private final Object frameLock = new Object();
+    private boolean cameraReconfigured = false;
+    private volatile long frameTime = 0;
 
     public VisionOpModeCore() {
         initialized = false;
@@ -59,6 +72,7 @@ abstract class VisionOpModeCore extends OpMode implements CameraBridgeViewBase.C
     public void setCamera(Cameras camera) {
         if (openCVCamera == null)
             return;
+        cameraReconfigured = true;
         openCVCamera.disableView();
         if (initialized) openCVCamera.disconnectCamera();
         openCVCamera.setCameraIndex(camera.getID());
@@ -82,6 +96,7 @@ abstract class VisionOpModeCore extends OpMode implements CameraBridgeViewBase.C
         if (openCVCamera == null)
             return null;
 
+        cameraReconfigured = true;
         openCVCamera.disableView();
         if (initialized) openCVCamera.disconnectCamera();
         openCVCamera.setMaxFrameSize((int) frameSize.width, (int) frameSize.height);
@@ -113,123 +128,192 @@ abstract class VisionOpModeCore extends OpMode implements CameraBridgeViewBase.C
         return new Size(width, height);
     }
 
+    /**
+     * Test whether per-stage latencies are shown in telemetry
+     *
+     * @return True if latencies are shown, false otherwise
+     */
+    public boolean isLatencyTelemetry() {
+        return latencyTelemetry;
+    }
+
+    /**
+     * Set whether per-stage latencies are shown in telemetry
+     * Enabling this also enables latency recording. Use Latency.dump() to log all stages instead.
+     *
+     * @param enabled True to record latencies and show their 50th, 95th and 99th percentiles
+     */
+    public void setLatencyTelemetry(boolean enabled) {
+        this.latencyTelemetry = enabled;
+        if (enabled)
+            Latency.setEnabled(true);
+    }
+
+    /**
+     * Get how long the last camera frame took to process, from receiving it to returning the
+     * image to display
+     * This is always measured, whether or not latency recording is enabled.
+     *
+     * @return Processing time of the last frame, in milliseconds
+     */
+    public double getFrameProcessingTime() {
+        return frameTime / 1e6;
+    }
+
+    /**
+     * Get the frame currently being processed
+     * Views of the frame, such as grayscale or HSV, are computed at most once per frame and only
+     * when requested, so extensions and detectors should get them here instead of converting
+     * the frame themselves.
+     *
+     * @return Current frame
+     */
+    public VisionFrame getFrame() {
+        return visionFrame;
+    }
+
+    /**
+     * Bind the images passed to frame() to the current frame
+     * Camera frames are already bound, in which case views computed so far are kept.
+     *
+     * @param rgba RGBA image passed to frame()
+     * @param gray Grayscale image passed to frame()
+     * @return Current frame
+     */
+    VisionFrame bindFrame(Mat rgba, Mat gray) {
+        if (!frameBound || !visionFrame.isComputed(VisionFrame.View.RGBA) || visionFrame.rgba() != rgba)
+            visionFrame.set(rgba, gray);
+        frameBound = false;
+        return visionFrame;
+    }
+
+    /**
+     * Test whether camera frames are processed in their native YUV format when possible
+     *
+     * @return True if native YUV processing is enabled, false otherwise
+     */
+    public boolean isYuvNative() {
+        return yuvNative;
+    }
+
+    /**
+     * Set whether camera frames are processed in their native YUV (NV21) format when possible
+     * <p/>
+     * When enabled, frames are passed to frameYUV() instead of being converted to RGBA first.
+     * This saves a full-frame color conversion for every frame that does not need RGBA.
+     * The preview is shown in grayscale while no RGBA image is produced.
+     *
+     * @param enabled True to process frames as YUV when possible, false to always convert to RGBA
+     */
+    public void setYuvNative(boolean enabled) {
+        this.yuvNative = enabled;
+    }
+
+    /**
+     * Get the number of frames processed before init() returns
+     *
+     * @return Number of warm-up frames
+     */
+    public int getWarmUpFrames() {
+        return warmUpFrames;
+    }
+
+    /**
+     * Set the number of camera frames processed before init() returns
+     * Running a few real frames through frame() during init means that the JIT and any native
+     * allocations are done before the op mode starts, so the first frame after start is as fast
+     * as any other. The results of the warm-up frames are kept, so the first analysis is also
+     * available right away. init() waits at most one second for these frames.
+     * <p/>
+     * Call this before init().
+     *
+     * @param frames Number of frames, or 0 to return as soon as the camera is open
+     */
+    public void setWarmUpFrames(int frames) {
+        this.warmUpFrames = Math.max(0, frames);
+    }
+
     @Override
     public void init() {
-        //Initialize camera view
-        BaseLoaderCallback openCVLoaderCallback = null;
-        try {
-            openCVLoaderCallback = new BaseLoaderCallback(hardwareMap.appContext) {
-                @Override
-                public void onManagerConnected(int status) {
-                    switch (status) {
-                        case LoaderCallbackInterface.SUCCESS: {
-                            //Woohoo!
-                            Log.d("OpenCV", "OpenCV Manager connected!");
-                            openCVInitialized = true;
-                        }
-                        break;
-                        default: {
-                            super.onManagerConnected(status);
-                        }
-                        break;
-                    }
-                }
-            };
-        } catch (NullPointerException e) {
-            error("Could not find OpenCV Manager!\r\n" +
-                    "Please install the app from the Google Play Store.");
-        }
+        initCamera();
+        startFrames();
+    }
 
-        final Activity activity = (Activity) hardwareMap.appContext;
-        final VisionOpModeCore t = this;
-
-        if (!OpenCVLoader.initDebug()) {
-            Log.d("OpenCV", "Internal OpenCV library not found. Using OpenCV Manager for initialization");
-            boolean success = OpenCVLoader.initAsync(OpenCVLoader.OPENCV_VERSION_3_0_0, hardwareMap.appContext, openCVLoaderCallback);
-            if (!success) {
-                Log.e("OpenCV", "Asynchronous initialization failed!");
-                error("Could not initialize OpenCV!\r\n" +
-                        "Did you install the OpenCV Manager from the Play Store?");
-            } else {
-                Log.d("OpenCV", "Asynchronous initialization succeeded!");
-            }
-        } else {
-            Log.d("OpenCV", "OpenCV library found inside package. Using it!");
-            if (openCVLoaderCallback != null)
-                openCVLoaderCallback.onManagerConnected(LoaderCallbackInterface.SUCCESS);
-            else {
-                Log.e("OpenCV", "Failed to load OpenCV from package!");
-                return;
-            }
+    /**
+     * Load OpenCV and open the camera, if they are not already preloaded
+     * Camera frames are not processed until startFrames() is called.
+     */
+    void initCamera() {
+        Activity activity = (Activity) hardwareMap.appContext;
+        VisionPreloader.loadOpenCV(activity);
+        if (!VisionPreloader.awaitOpenCV()) {
+            error("Could not initialize OpenCV!\r\n" +
+                    "Did you install the OpenCV Manager from the Play Store?");
+            return;
         }
 
-        while (!openCVInitialized) {
-            try {
-                Thread.sleep(50);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+        //Initialize FPS counter and sensors
+        fps = new FPS();
+        sensors = new Sensors();
+
+        cameraReconfigured = false;
+        openCVCamera = VisionPreloader.acquireCamera(activity, initialMaxSize, this);
+        if (openCVCamera == null) {
+            error("Could not initialize camera!\r\n" +
+                    "This may occur because the OpenCV Manager is not installed,\r\n" +
+                    "CAMERA permission is not allowed in AndroidManifest.xml,\r\n" +
+                    "or because another app is currently locking it.");
+            return;
         }
 
-        activity.runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                LinearLayout layout = new LinearLayout(activity);
-                layout.setOrientation(LinearLayout.VERTICAL);
-
-                layout.setLayoutParams(new LinearLayout.LayoutParams(
-                        ViewGroup.LayoutParams.WRAP_CONTENT, ViewGroup.LayoutParams.WRAP_CONTENT));
-
-                openCVCamera = new JavaCameraView(hardwareMap.appContext, 0);
-
-                layout.addView(openCVCamera);
-                layout.setVisibility(View.VISIBLE);
-
-                openCVCamera.setCvCameraViewListener(t);
-                if (openCVCamera != null)
-                    openCVCamera.disableView();
-                openCVCamera.enableView();
-                if (!openCVCamera.connectCamera(initialMaxSize, initialMaxSize))
-                    error("Could not initialize camera!\r\n" +
-                            "This may occur because the OpenCV Manager is not installed,\r\n" +
-                            "CAMERA permission is not allowed in AndroidManifest.xml,\r\n" +
-                            "or because another app is currently locking it.");
-
-                //Initialize FPS counter and sensors
-                fps = new FPS();
-                sensors = new Sensors();
-
-                //Done!
-                width = openCVCamera.getFrameWidth();
-                height = openCVCamera.getFrameHeight();
-                initialized = true;
-            }
-        });
-
-        while (!initialized) {
-            try {
-                Thread.sleep(50);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+        //Done!
+        width = openCVCamera.getFrameWidth();
+        height = openCVCamera.getFrameHeight();
+        initialized = true;
+    }
+
+    /**
+     * Start processing camera frames, then wait for the warm-up frames to be processed
+     * Called once everything frame() depends on is initialized.
+     */
+    void startFrames() {
+        if (!initialized)
+            return;
+
+        CountDownLatch warmUp = new CountDownLatch(warmUpFrames);
+        warmUpLatch = warmUp;
+        processingFrames = true;
+        try {
+            warmUp.await(WARM_UP_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        warmUpLatch = null;
     }
 
     @Override
     public void loop() {
-
+        if (latencyTelemetry)
+            for (LatencyHistogram histogram : Latency.getHistograms())
+                telemetry.addData("Latency " + histogram.getName(), histogram.getSummary());
     }
 
     @Override
     public void stop() {
-        if (openCVCamera != null) {
-            openCVCamera.disableView();
-            openCVCamera.disconnectCamera();
+        processingFrames = false;
+        VisionPreloader.releaseCamera(openCVCamera, cameraReconfigured);
+
+        //A warm camera keeps running, so wait for a frame that was already being processed.
+        //Frames that start after this see that processing has stopped and return at once.
+        synchronized (frameLock) {
+            frameBound = false;
         }
 
         if (sensors != null)
             sensors.stop();
 
+        visionFrame.release();
+
         initialized = false;
         openCVCamera = null;
 
@@ -250,15 +334,67 @@ abstract class VisionOpModeCore extends OpMode implements CameraBridgeViewBase.C
 
     @Override
     public Mat onCameraFrame(CameraBridgeViewBase.CvCameraViewFrame inputFrame) {
-        if (!initialized) {
+        synchronized (frameLock) {
+            return processFrame(inputFrame);
+        }
+    }
+
+    private Mat processFrame(CameraBridgeViewBase.CvCameraViewFrame inputFrame) {
+        if (!initialized || !processingFrames) {
             return inputFrame.rgba();
         }
 
         // telemetry.addData("Vision Status", "Ready!");
 
         fps.update();
-        return frame(inputFrame.rgba(), inputFrame.gray());
+        long start = System.nanoTime();
+        //Nothing is converted until something reads it
+        Mat yuv = inputFrame.yuv();
+        if (yuv != null)
+            visionFrame.setNV21(yuv);
+        else
+            visionFrame.set(inputFrame.rgba(), inputFrame.gray());
+        if (openCVCamera != null)
+            visionFrame.setTimestamp(openCVCamera.getCurrentCaptureTime());
+        frameBound = true;
+
+        Mat result;
+        if (yuvNative && yuv != null)
+            result = frameYUV(visionFrame);
+        else
+            result = frame(visionFrame.rgba(), visionFrame.gray());
+        frameBound = false;
+        long elapsed = System.nanoTime() - start;
+        frameTime = elapsed;
+        if (Latency.isEnabled())
+            FRAME_LATENCY.record(elapsed);
+
+        CountDownLatch warmUp = warmUpLatch;
+        if (warmUp != null)
+            warmUp.countDown();
+        return result;
     }
 
+    /**
+     * Process a single camera frame in its native YUV (NV21) format
+     * Called instead of frame() when native YUV processing is enabled. By default, this converts
+     * the frame to RGBA and calls frame().
+     *
+     * @param frame Camera frame, where yuv() is not null
+     * @return The image to display
+     */
+    public Mat frameYUV(VisionFrame frame) {
+        return frame(frame.rgba(), frame.gray());
+    }
+
+    /**
+     * Process a single frame
+     * Frames are delivered by the camera, or by any FrameSource this OpMode is attached to.
+     *
+     * @param rgba RGBA image
+     * @param gray Grayscale image
+     * @return The image to display
+     */
+    @Override
     public abstract Mat frame(Mat rgba, Mat gray);
 }
@@ -0,0 +1,326 @@
+/*
+ * Copyright (c) 2016 Arthur Pachachura, LASA Robotics, and contributors
+ * MIT licensed
+ */
+package org.lasarobotics.vision.opmode;
+
+import android.app.Activity;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.LinearLayout;
+
+import org.opencv.android.BaseLoaderCallback;
+import org.opencv.android.CameraBridgeViewBase;
+import org.opencv.android.JavaCameraView;
+import org.opencv.android.LoaderCallbackInterface;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.core.Mat;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads OpenCV and opens the camera ahead of time, and keeps the camera open between op modes
+ * <p/>
+ * Call preload() from the robot controller activity's onCreate(). OpenCV is then loaded and the
+ * camera connected in the background while the robot is being set up, so vision op modes find
+ * both ready when they initialize. When a vision op mode stops, the camera is kept open (warm)
+ * for the next op mode instead of being disconnected.
+ * <p/>
+ * Vision op modes work without calling preload() - they simply load OpenCV and open the camera
+ * themselves on the first init().
+ */
+public final class VisionPreloader {
+    private static final String TAG = "FTCVision";
+    private static final long OPENCV_TIMEOUT = 10000;
+    private static final long CAMERA_TIMEOUT = 5000;
+
+    private static final CountDownLatch openCVLoaded = new CountDownLatch(1);
+    private static volatile boolean openCVAvailable = false;
+    private static boolean openCVLoading = false;
+    private static JavaCameraView camera = null;
+    private static boolean cameraInUse = false;
+    private static boolean keepWarm = true;
+    private static final Object acquireLock = new Object();
+
+    //Frames of a warm camera that no op mode is using are dropped without any conversion
+    private static final CameraBridgeViewBase.CvCameraViewListener2 idleListener = new CameraBridgeViewBase.CvCameraViewListener2() {
+        @Override
+        public void onCameraViewStarted(int width, int height) {
+
+        }
+
+        @Override
+        public void onCameraViewStopped() {
+
+        }
+
+        @Override
+        public Mat onCameraFrame(CameraBridgeViewBase.CvCameraViewFrame inputFrame) {
+            return null;
+        }
+    };
+
+    private VisionPreloader() {
+
+    }
+
+    /**
+     * Load OpenCV and open the camera in the background
+     * Returns immediately. Safe to call more than once.
+     *
+     * @param activity Robot controller activity
+     */
+    public static void preload(final Activity activity) {
+        loadOpenCV(activity);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                if (awaitOpenCV() && acquireCamera(activity, VisionOpModeCore.initialMaxSize, idleListener) == null)
+                    Log.w(TAG, "Could not open the camera ahead of time");
+            }
+        }, "VisionPreloader").start();
+    }
+
+    /**
+     * Test whether the camera is kept open between op modes
+     *
+     * @return True if the camera is kept open, false if it is closed when each op mode stops
+     */
+    public static synchronized boolean isKeepWarm() {
+        return keepWarm;
+    }
+
+    /**
+     * Set whether the camera is kept open between op modes
+     * Keeping the camera open makes vision op modes start almost instantly, but keeps the camera
+     * (and some power) in use while no vision op mode is running.
+     *
+     * @param enabled True to keep the camera open, false to close it when each op mode stops
+     */
+    public static synchronized void setKeepWarm(boolean enabled) {
+        keepWarm = enabled;
+        if (!enabled && camera != null && !cameraInUse)
+            closeCamera();
+    }
+
+    /**
+     * Close the camera if no op mode is using it
+     * Call this when the robot controller activity is destroyed.
+     */
+    public static synchronized void release() {
+        if (camera != null && !cameraInUse)
+            closeCamera();
+    }
+
+    /**
+     * Start loading OpenCV, if not already loaded or loading
+     *
+     * @param activity Robot controller activity
+     */
+    static void loadOpenCV(final Activity activity) {
+        synchronized (VisionPreloader.class) {
+            if (openCVLoading)
+                return;
+            openCVLoading = true;
+        }
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                if (OpenCVLoader.initDebug()) {
+                    Log.d("OpenCV", "OpenCV library found inside package. Using it!");
+                    openCVAvailable = true;
+                    openCVLoaded.countDown();
+                    return;
+                }
+
+                Log.d("OpenCV", "Internal OpenCV library not found. Using OpenCV Manager for initialization");
+                BaseLoaderCallback callback = new BaseLoaderCallback(activity) {
+                    @Override
+                    public void onManagerConnected(int status) {
+                        if (status == LoaderCallbackInterface.SUCCESS) {
+                            Log.d("OpenCV", "OpenCV Manager connected!");
+                            openCVAvailable = true;
+                            openCVLoaded.countDown();
+                        } else {
+                            super.onManagerConnected(status);
+                            openCVLoaded.countDown();
+                        }
+                    }
+                };
+                if (!OpenCVLoader.initAsync(OpenCVLoader.OPENCV_VERSION_3_0_0, activity, callback)) {
+                    Log.e("OpenCV", "Asynchronous initialization failed!");
+                    openCVLoaded.countDown();
+                }
+            }
+        }, "OpenCVLoader").start();
+    }
+
+    /**
+     * Wait for OpenCV to load
+     * loadOpenCV() must have been called first.
+     *
+     * @return True if OpenCV is loaded, false if it failed to load or took too long
+     */
+    static boolean awaitOpenCV() {
+        try {
+            openCVLoaded.await(OPENCV_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return openCVAvailable;
+    }
+
+    /**
+     * Get the open camera, or open it if it is not open yet
+     * The camera is created and connected on the UI thread, so this must not be called from it.
+     * The class lock is not held while waiting for the UI thread, since the UI thread may itself
+     * be waiting for it in release().
+     *
+     * @param activity Robot controller activity
+     * @param maxSize  Maximum frame width and height, if the camera must be opened
+     * @param listener Listener that receives frames from now on
+     * @return The connected camera, or null if it could not be opened
+     */
+    static JavaCameraView acquireCamera(final Activity activity, final int maxSize,
+                                        CameraBridgeViewBase.CvCameraViewListener2 listener) {
+        //Only one caller opens the camera at a time, the others then find it open
+        synchronized (acquireLock) {
+            synchronized (VisionPreloader.class) {
+                if (camera != null && camera.getCamera() != null)
+                    return useCamera(listener);
+            }
+
+            final CameraRequest request = new CameraRequest();
+            activity.runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (request.isAbandoned())
+                        return;
+
+                    LinearLayout layout = new LinearLayout(activity);
+                    layout.setOrientation(LinearLayout.VERTICAL);
+
+                    layout.setLayoutParams(new LinearLayout.LayoutParams(
+                            ViewGroup.LayoutParams.WRAP_CONTENT, ViewGroup.LayoutParams.WRAP_CONTENT));
+
+                    JavaCameraView view = new JavaCameraView(activity, 0);
+
+                    layout.addView(view);
+                    layout.setVisibility(View.VISIBLE);
+
+                    view.setCvCameraViewListener(idleListener);
+                    view.disableView();
+                    view.enableView();
+                    boolean connected = view.connectCamera(maxSize, maxSize);
+                    if (!request.complete(connected ? view : null) && connected) {
+                        //Nobody is waiting for the camera any more
+                        view.disableView();
+                        view.disconnectCamera();
+                    }
+                }
+            });
+
+            JavaCameraView view = request.await(CAMERA_TIMEOUT);
+            if (view == null)
+                return null;
+
+            synchronized (VisionPreloader.class) {
+                camera = view;
+                return useCamera(listener);
+            }
+        }
+    }
+
+    private static JavaCameraView useCamera(CameraBridgeViewBase.CvCameraViewListener2 listener) {
+        camera.setCvCameraViewListener(listener);
+        cameraInUse = listener != idleListener;
+        return camera;
+    }
+
+    /**
+     * Return the camera after an op mode is done with it
+     * The camera is kept open for the next op mode unless it was reconfigured or keeping it open
+     * is disabled.
+     *
+     * @param view         Camera returned by acquireCamera()
+     * @param reconfigured True if the op mode changed the camera or frame size
+     */
+    static synchronized void releaseCamera(JavaCameraView view, boolean reconfigured) {
+        if (view == null)
+            return;
+        view.setCvCameraViewListener(idleListener);
+        if (view != camera) {
+            //Not the camera we manage - always close it
+            view.disableView();
+            view.disconnectCamera();
+        } else {
+            cameraInUse = false;
+            if (!keepWarm || reconfigured)
+                closeCamera();
+        }
+    }
+
+    private static void closeCamera() {
+        camera.disableView();
+        camera.disconnectCamera();
+        camera = null;
+    }
+
+    /**
+     * A camera being opened on the UI thread for acquireCamera()
+     * Once the caller stops waiting, the request is abandoned and a camera opened for it is closed.
+     */
+    private static final class CameraRequest {
+        private JavaCameraView view = null;
+        private boolean abandoned = false;
+        private boolean done = false;
+
+        synchronized boolean isAbandoned() {
+            return abandoned;
+        }
+
+        /**
+         * Hand over the camera once connecting is done
+         *
+         * @param view Connected camera, or null if it could not be connected
+         * @return True if it was handed over, false if the request was abandoned
+         */
+        synchronized boolean complete(JavaCameraView view) {
+            if (abandoned)
+                return false;
+            this.view = view;
+            done = true;
+            notifyAll();
+            return true;
+        }
+
+        /**
+         * Wait for the camera, abandoning the request if it is not connected in time
+         *
+         * @param timeout Maximum time to wait, in milliseconds
+         * @return Connected camera, or null if it was not connected in time
+         */
+        synchronized JavaCameraView await(long timeout) {
+            long deadline = System.currentTimeMillis() + timeout;
+            long remaining = timeout;
+            boolean interrupted = false;
+            while (!done && remaining > 0) {
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    break;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            if (!done)
+                abandoned = true;
+            return view;
+        }
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright (c) 2016 Arthur Pachachura, LASA Robotics, and contributors
+ * MIT licensed
+ */
+package org.lasarobotics.vision.opmode.extensions;
+
+import android.hardware.Camera;
+import android.util.Log;
+
+import org.lasarobotics.vision.detection.ColorBlobDetector;
+import org.lasarobotics.vision.opmode.VisionOpMode;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Adaptive resolution extension
+ * <p/>
+ * Measures how long each frame takes to process and steps the camera resolution and the color
+ * detection downsampling up or down to stay within a latency budget. Settings are ordered by the
+ * number of pixels searched for color, from the most detailed to the cheapest, using only preview
+ * sizes the camera supports with the same aspect ratio as the current frame.
+ * <p/>
+ * To avoid oscillating, the extension steps down as soon as the average frame time over a window
+ * exceeds the target, but only steps up once the next setting is predicted to fit comfortably
+ * within the target. Every step is followed by a full window of new measurements.
+ * <p/>
+ * Downsampling is applied to the beacon extension and any detectors added with addDetector().
+ * Resolution changes reconnect the camera, which is done in loop() rather than on the camera thread.
+ * Beacon locations are in pixels of the current frame, so they change scale along with the frame
+ * size; the beacon's analysis bounds are rescaled automatically.
+ * <p/>
+ * If beacon analysis is asynchronous, the time of each completed analysis is measured instead of
+ * the camera thread's time, which then only covers copying the frame.
+ */
+@SuppressWarnings("deprecation")
+public class AdaptiveResolutionExtension implements YuvVisionExtension {
+    private static final String TAG = "AdaptiveResolution";
+    //Sizes whose aspect ratio differs by more than this are not used
+    private static final double ASPECT_TOLERANCE = 0.05;
+
+    private final List<ColorBlobDetector> detectors = new ArrayList<>();
+    private final List<Setting> settings = new ArrayList<>();
+    private double targetTime = 1000.0 / 15.0;
+    private double headroom = 0.75;
+    private int window = 15;
+    private int minDownsampling = 1;
+    private int maxDownsampling = 3;
+    private int maxWidth = 0;
+    private int maxHeight = 0;
+
+    private int current = 0;
+    private double total = 0;
+    private int count = 0;
+    private double average = 0;
+    private Size pendingSize = null;
+    private long lastSequence = 0;
+
+    /**
+     * Get the target frame processing time
+     *
+     * @return Target time per frame, in milliseconds
+     */
+    public synchronized double getTargetLatency() {
+        return targetTime;
+    }
+
+    /**
+     * Set the target frame processing time
+     *
+     * @param milliseconds Target time per frame, in milliseconds
+     */
+    public synchronized void setTargetLatency(double milliseconds) {
+        if (milliseconds <= 0)
+            throw new IllegalArgumentException("Target latency must be positive!");
+        this.targetTime = milliseconds;
+    }
+
+    /**
+     * Set the target frame rate, which is the same as a target latency of 1000 / fps
+     *
+     * @param fps Target frames per second, 15 by default
+     */
+    public synchronized void setTargetFPS(double fps) {
+        if (fps <= 0)
+            throw new IllegalArgumentException("Target FPS must be positive!");
+        this.targetTime = 1000.0 / fps;
+    }
+
+    /**
+     * Set how much of the target time the next more detailed setting may be predicted to use
+     * before the extension steps up to it
+     * Lower values step up less eagerly and oscillate less.
+     *
+     * @param fraction Fraction of the target time, from 0 to 1, 0.75 by default
+     */
+    public synchronized void setHeadroom(double fraction) {
+        if (fraction <= 0 || fraction > 1)
+            throw new IllegalArgumentException("Headroom must be between 0 and 1!");
+        this.headroom = fraction;
+    }
+
+    /**
+     * Set the number of frames averaged before each decision
+     *
+     * @param frames Number of frames, 15 by default
+     */
+    public synchronized void setWindow(int frames) {
+        if (frames < 1)
+            throw new IllegalArgumentException("Window must be at least one frame!");
+        this.window = frames;
+    }
+
+    /**
+     * Set the range of downsampling levels to choose from
+     * Call this before init().
+     *
+     * @param min Minimum (most detailed) downsampling, 1 by default
+     * @param max Maximum (cheapest) downsampling, 3 by default
+     */
+    public synchronized void setDownsamplingRange(int min, int max) {
+        if (min < 0 || max > ColorBlobDetector.MAX_DOWNSAMPLING || min > max)
+            throw new IllegalArgumentException("Invalid downsampling range!");
+        this.minDownsampling = min;
+        this.maxDownsampling = max;
+    }
+
+    /**
+     * Set the largest camera frame size to use
+     * By default, the frame size when init() is called is the largest size used.
+     * Call this before init().
+     *
+     * @param maxSize Maximum frame size
+     */
+    public synchronized void setMaxFrameSize(Size maxSize) {
+        this.maxWidth = (int) maxSize.width;
+        this.maxHeight = (int) maxSize.height;
+    }
+
+    /**
+     * Add a color blob detector whose downsampling is controlled by this extension
+     *
+     * @param detector Color blob detector
+     */
+    public synchronized void addDetector(ColorBlobDetector detector) {
+        detectors.add(detector);
+        if (current < settings.size())
+            detector.setDownsampling(settings.get(current).downsampling);
+    }
+
+    /**
+     * Get the average frame processing time over the last full window
+     *
+     * @return Average time per frame, in milliseconds
+     */
+    public synchronized double getAverageLatency() {
+        return average;
+    }
+
+    /**
+     * Get the downsampling currently applied to detectors
+     *
+     * @return Number of downsampling levels
+     */
+    public synchronized int getDownsampling() {
+        return settings.isEmpty() ? minDownsampling : settings.get(current).downsampling;
+    }
+
+    /**
+     * Get the camera frame size currently selected
+     * The camera switches to this size on the next loop() if it has not already.
+     *
+     * @return Selected frame size, or null if the camera size cannot be controlled
+     */
+    public synchronized Size getSelectedFrameSize() {
+        if (settings.isEmpty())
+            return null;
+        Setting setting = settings.get(current);
+        return new Size(setting.width, setting.height);
+    }
+
+    @SuppressWarnings("AccessStaticViaInstance")
+    @Override
+    public synchronized void init(VisionOpMode opmode) {
+        settings.clear();
+        int width = maxWidth > 0 ? maxWidth : opmode.width;
+        int height = maxHeight > 0 ? maxHeight : opmode.height;
+
+        List<Size> sizes = new ArrayList<>();
+        if (opmode.openCVCamera != null && opmode.openCVCamera.getCamera() != null && width > 0 && height > 0) {
+            double aspect = opmode.width > 0 && opmode.height > 0 ? (double) opmode.width / opmode.height : (double) width / height;
+            for (Camera.Size size : opmode.openCVCamera.getCamera().getParameters().getSupportedPreviewSizes())
+                if (size.width <= width && size.height <= height &&
+                        Math.abs((double) size.width / size.height - aspect) <= aspect * ASPECT_TOLERANCE)
+                    sizes.add(new Size(size.width, size.height));
+        }
+        if (sizes.isEmpty())
+            sizes.add(new Size(opmode.width, opmode.height));
+
+        for (Size size : sizes)
+            for (int levels = minDownsampling; levels <= maxDownsampling; levels++)
+                settings.add(new Setting((int) size.width, (int) size.height, levels));
+        Collections.sort(settings, new Comparator<Setting>() {
+            @Override
+            public int compare(Setting lhs, Setting rhs) {
+                //Most detailed first - for equal detail, prefer the smaller (cheaper) camera frame
+                if (lhs.cost != rhs.cost)
+                    return lhs.cost > rhs.cost ? -1 : 1;
+                return (lhs.width * lhs.height) - (rhs.width * rhs.height);
+            }
+        });
+
+        //Start at the current frame size with the default downsampling, or the closest setting to it
+        current = 0;
+        double currentCost = (double) opmode.width * opmode.height / 16;
+        for (int i = 0; i < settings.size(); i++)
+            if (Math.abs(settings.get(i).cost - currentCost) < Math.abs(settings.get(current).cost - currentCost))
+                current = i;
+        pendingSize = null;
+        resetWindow();
+        applyDownsampling(settings.get(current).downsampling);
+        if (settings.get(current).width != opmode.width || settings.get(current).height != opmode.height)
+            pendingSize = new Size(settings.get(current).width, settings.get(current).height);
+    }
+
+    @Override
+    public void loop(VisionOpMode opmode) {
+        Size size;
+        synchronized (this) {
+            size = pendingSize;
+            pendingSize = null;
+        }
+        if (size == null)
+            return;
+
+        //Reconnects the camera, so keep this off the camera thread
+        Log.d(TAG, "Changing frame size to " + (int) size.width + "x" + (int) size.height);
+        opmode.setFrameSize(size);
+        synchronized (this) {
+            resetWindow();
+        }
+    }
+
+    @Override
+    public synchronized Mat frame(VisionOpMode opmode, Mat rgba, Mat gray) {
+        if (settings.isEmpty())
+            return rgba;
+
+        //The previous frame's processing time is the latest complete measurement
+        double time = opmode.getFrameProcessingTime();
+        if (VisionOpMode.beacon.isAsync()) {
+            //Only the analysis thread's time reflects the resolution - count each analysis once
+            BeaconExtension.Result result = VisionOpMode.beacon.getResult();
+            if (result.getSequence() == lastSequence)
+                return rgba;
+            lastSequence = result.getSequence();
+            time = Math.max(time, result.getAnalysisTime());
+        }
+        if (time <= 0 || pendingSize != null)
+            return rgba;
+        total += time;
+        if (++count < window)
+            return rgba;
+        average = total / count;
+        resetWindow();
+
+        int next = current;
+        if (average > targetTime && current < settings.size() - 1) {
+            next = current + 1;
+        } else if (current > 0) {
+            //Only step up if the more detailed setting should still fit within the target
+            double predicted = average * settings.get(current - 1).cost / settings.get(current).cost;
+            if (predicted < targetTime * headroom)
+                next = current - 1;
+        }
+        if (next != current)
+            select(next);
+
+        return rgba;
+    }
+
+    private void select(int index) {
+        Setting from = settings.get(current);
+        Setting to = settings.get(index);
+        current = index;
+        if (to.downsampling != from.downsampling)
+            applyDownsampling(to.downsampling);
+        if (to.width != from.width || to.height != from.height)
+            pendingSize = new Size(to.width, to.height);
+    }
+
+    private void applyDownsampling(int levels) {
+        VisionOpMode.beacon.setDownsampling(levels);
+        for (ColorBlobDetector detector : detectors)
+            detector.setDownsampling(levels);
+    }
+
+    private void resetWindow() {
+        total = 0;
+        count = 0;
+    }
+
+    @Override
+    public boolean acceptsYuv() {
+        //Only the processing time is measured, the frame itself is never read
+        return true;
+    }
+
+    @Override
+    public Mat frameYUV(VisionOpMode opmode, Mat yuv, Mat gray) {
+        frame(opmode, gray, gray);
+        return gray;
+    }
+
+    @Override
+    public synchronized void stop(VisionOpMode opmode) {
+        pendingSize = null;
+    }
+
+    /**
+     * A camera frame size and downsampling combination
+     */
+    private static final class Setting {
+        final int width;
+        final int height;
+        final int downsampling;
+        //Pixels searched for color per frame
+        final double cost;
+
+        Setting(int width, int height, int downsampling) {
+            this.width = width;
+            this.height = height;
+            this.downsampling = downsampling;
+            this.cost = (double) width * height / (1 << (2 * downsampling));
+        }
+    }
+}
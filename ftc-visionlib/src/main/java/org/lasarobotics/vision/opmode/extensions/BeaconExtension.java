@@ -6,6 +6,8 @@ package org.lasarobotics.vision.opmode.extensions;
 
 import org.lasarobotics.vision.detection.objects.Rectangle;
 import org.lasarobotics.vision.ftc.resq.Beacon;
+import org.lasarobotics.vision.image.FrameQueue;
+import org.lasarobotics.vision.image.VisionFrame;
 import org.lasarobotics.vision.opmode.VisionOpMode;
 import org.lasarobotics.vision.util.ScreenOrientation;
 import org.opencv.core.Mat;
@@ -13,10 +15,17 @@ import org.opencv.core.Mat;
 /**
  * Extension that supports finding and reading beacon color data
  */
-public class BeaconExtension implements VisionExtension {
+public class BeaconExtension implements YuvVisionExtension {
     private Beacon beacon;
+    private int downsampling = 2;
 
-    private Beacon.BeaconAnalysis analysis = new Beacon.BeaconAnalysis();
+    private volatile Result result = new Result(new Beacon.BeaconAnalysis(), 0, 0, 0, 0);
+
+    //Asynchronous analysis
+    private boolean async = false;
+    private FrameQueue queue = null;
+    private Thread worker = null;
+    private volatile boolean running = false;
 
     /**
      * Get latest beacon analysis
@@ -24,7 +33,51 @@ public class BeaconExtension implements VisionExtension {
      * @return A Beacon.BeaconAnalysis struct
      */
     public Beacon.BeaconAnalysis getAnalysis() {
-        return analysis;
+        return result.getAnalysis();
+    }
+
+    /**
+     * Get the latest beacon analysis along with the timing of the frame it was computed from
+     * The result is immutable, so all of its values always refer to the same frame.
+     *
+     * @return Latest analysis result
+     */
+    public Result getResult() {
+        return result;
+    }
+
+    /**
+     * Test whether frames are analyzed on a separate thread
+     *
+     * @return True if asynchronous, false if frames are analyzed on the camera thread
+     */
+    public boolean isAsync() {
+        return async;
+    }
+
+    /**
+     * Set whether frames are analyzed on a separate thread
+     * <p/>
+     * In asynchronous mode, the camera thread copies each frame into a queue and returns immediately,
+     * so a slow analysis never stalls the camera preview. If the analysis falls behind, only the
+     * newest frame is analyzed. Debug drawing is not shown on the preview in this mode.
+     * <p/>
+     * Call this before the extension is enabled.
+     *
+     * @param async True to analyze frames on a separate thread, false to analyze on the camera thread
+     */
+    public void setAsync(boolean async) {
+        this.async = async;
+    }
+
+    /**
+     * Get the number of frames dropped because the asynchronous analysis fell behind
+     *
+     * @return Number of dropped frames, or zero if not asynchronous
+     */
+    public long getDroppedFrameCount() {
+        FrameQueue queue = this.queue;
+        return queue != null ? queue.getDroppedCount() : 0;
     }
 
     /**
@@ -45,6 +98,15 @@ public class BeaconExtension implements VisionExtension {
         beacon.setAnalysisMethod(method);
     }
 
+    /**
+     * Set the time budget per frame for the AUTO analysis method
+     *
+     * @param milliseconds Time budget, in milliseconds
+     */
+    public void setAnalysisBudget(double milliseconds) {
+        beacon.setAnalysisBudget(milliseconds);
+    }
+
     /**
      * Set color tolerance for red beacon detector
      *
@@ -67,6 +129,17 @@ public class BeaconExtension implements VisionExtension {
         beacon.setColorToleranceBlue(tolerance);
     }
 
+    /**
+     * Set the number of times frames are downsampled before colors are detected
+     *
+     * @param levels Number of downsampling levels, from 0 to ColorBlobDetector.MAX_DOWNSAMPLING
+     */
+    public void setDownsampling(int levels) {
+        this.downsampling = levels;
+        if (beacon != null)
+            beacon.setDownsampling(levels);
+    }
+
     /**
      * Set analysis bounds
      * Areas of the image outside of the bounded area will not be processed
@@ -91,10 +164,64 @@ public class BeaconExtension implements VisionExtension {
         beacon.disableDebug();
     }
 
+    /**
+     * Test whether debug drawing is enabled
+     *
+     * @return True if debug drawing is enabled, false otherwise
+     */
+    public boolean isDebug() {
+        return beacon != null && beacon.isDebug();
+    }
+
     @Override
     public void init(VisionOpMode opmode) {
         //Initialize all detectors here
         beacon = new Beacon();
+        beacon.setDownsampling(downsampling);
+
+        if (async) {
+            queue = new FrameQueue();
+            running = true;
+            worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    analyzeQueue();
+                }
+            }, "Beacon Analysis");
+            worker.start();
+        }
+    }
+
+    private void analyzeQueue() {
+        try {
+            while (running) {
+                try {
+                    FrameQueue.Frame frame = queue.take(100);
+                    if (frame == null)
+                        continue;
+                    analyze(frame.rgba(), frame.gray(), frame.getSequence(), frame.getTimestamp());
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        } finally {
+            //Hand back the last frame so the queue can be released
+            queue.discard();
+        }
+    }
+
+    private void analyze(Mat rgba, Mat gray, long sequence, long timestamp) {
+        //Get color analysis
+        long start = System.nanoTime();
+        Beacon.BeaconAnalysis analysis = beacon.analyzeFrame(rgba, gray, getOrientation());
+        this.result = new Result(analysis, sequence, timestamp, start, System.nanoTime());
+    }
+
+    private static ScreenOrientation getOrientation() {
+        //Get screen orientation data
+        return ScreenOrientation.getFromAngle(VisionOpMode.rotation.getRotationCompensationAngle());
     }
 
     @Override
@@ -104,14 +231,22 @@ public class BeaconExtension implements VisionExtension {
 
     @Override
     public Mat frame(VisionOpMode opmode, Mat rgba, Mat gray) {
-        try {
-            //Get screen orientation data
-            ScreenOrientation orientation = ScreenOrientation.getFromAngle(
-                    VisionOpMode.rotation.getRotationCompensationAngle());
+        //Results are timed from the capture of the frame, not from when this extension got it
+        VisionFrame frame = opmode.getFrame();
+        long timestamp = frame.getTimestamp();
+        long sequence = frame.getSequence();
 
-            //Get color analysis
-            this.analysis = beacon.analyzeFrame(rgba, gray, orientation);
+        //Hand the frame to the analysis thread and return immediately
+        if (queue != null) {
+            queue.offer(rgba, gray, timestamp, sequence);
+            return rgba;
+        }
 
+        try {
+            //Share the frame's pyramid with the other extensions
+            long start = System.nanoTime();
+            Beacon.BeaconAnalysis analysis = beacon.analyzeFrame(frame, getOrientation());
+            this.result = new Result(analysis, sequence, timestamp, start, System.nanoTime());
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -119,8 +254,135 @@ public class BeaconExtension implements VisionExtension {
         return rgba;
     }
 
+    @Override
+    public boolean acceptsYuv() {
+        //Debug drawing and the analysis queue both need RGBA frames
+        return queue == null && !beacon.isDebug();
+    }
+
+    @Override
+    public Mat frameYUV(VisionOpMode opmode, Mat yuv, Mat gray) {
+        VisionFrame frame = opmode.getFrame();
+        long timestamp = frame.getTimestamp();
+        long sequence = frame.getSequence();
+
+        try {
+            long start = System.nanoTime();
+            Beacon.BeaconAnalysis analysis = beacon.analyzeFrameYUV(yuv, null, getOrientation());
+            this.result = new Result(analysis, sequence, timestamp, start, System.nanoTime());
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        return gray;
+    }
+
     @Override
     public void stop(VisionOpMode opmode) {
+        running = false;
+        if (queue != null)
+            queue.close();
+        if (worker != null) {
+            //The queue is only released once the worker is no longer reading from it
+            boolean interrupted = false;
+            while (worker.isAlive()) {
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            worker = null;
+        }
+        if (queue != null) {
+            queue.release();
+            queue = null;
+        }
+    }
+
+    /**
+     * Immutable beacon analysis result, with the timing of the frame it was computed from
+     */
+    public static final class Result {
+        private final Beacon.BeaconAnalysis analysis;
+        private final long sequence;
+        private final long captureTime;
+        private final long startTime;
+        private final long completeTime;
+
+        Result(Beacon.BeaconAnalysis analysis, long sequence, long captureTime, long startTime, long completeTime) {
+            this.analysis = analysis;
+            this.sequence = sequence;
+            this.captureTime = captureTime;
+            this.startTime = startTime;
+            this.completeTime = completeTime;
+        }
+
+        /**
+         * Get the beacon analysis
+         *
+         * @return Beacon analysis
+         */
+        public Beacon.BeaconAnalysis getAnalysis() {
+            return analysis;
+        }
+
+        /**
+         * Get the sequence number of the analyzed frame
+         *
+         * @return Frame sequence number, or zero if no frame has been analyzed
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * Get the time the analyzed frame was captured by the camera
+         *
+         * @return Capture time, in nanoseconds (System.nanoTime())
+         */
+        public long getCaptureTime() {
+            return captureTime;
+        }
+
+        /**
+         * Get the time the analysis completed
+         *
+         * @return Completion time, in nanoseconds (System.nanoTime())
+         */
+        public long getCompleteTime() {
+            return completeTime;
+        }
 
+        /**
+         * Get the time between capturing the frame and completing its analysis
+         * This includes any time the frame spent waiting for earlier extensions or for the
+         * analysis thread.
+         *
+         * @return Analysis latency, in milliseconds
+         */
+        public double getLatency() {
+            return (completeTime - captureTime) / 1000000.0;
+        }
+
+        /**
+         * Get the time the analysis itself took, without any time the frame spent waiting
+         *
+         * @return Analysis time, in milliseconds
+         */
+        public double getAnalysisTime() {
+            return (completeTime - startTime) / 1000000.0;
+        }
+
+        /**
+         * Get the age of this result
+         *
+         * @return Time since the analyzed frame was captured, in milliseconds
+         */
+        public double getAge() {
+            return (System.nanoTime() - captureTime) / 1000000.0;
+        }
     }
 }
\ No newline at end of file
@@ -19,7 +19,7 @@ import org.opencv.core.Mat;
  * Allows manual control of white balance, exposure, etc.
  */
 @SuppressWarnings("deprecation")
-public class CameraControlExtension implements VisionExtension {
+public class CameraControlExtension implements YuvVisionExtension {
 
     private boolean paramsSet = false;
     private ColorTemperature colorTemp = ColorTemperature.AUTO;
@@ -169,6 +169,18 @@ public class CameraControlExtension implements VisionExtension {
         return rgba;
     }
 
+    @Override
+    public boolean acceptsYuv() {
+        //Only camera parameters are changed, the frame itself is never read
+        return true;
+    }
+
+    @Override
+    public Mat frameYUV(VisionOpMode opmode, Mat yuv, Mat gray) {
+        frame(opmode, gray, gray);
+        return gray;
+    }
+
     @SuppressWarnings("AccessStaticViaInstance")
     @Override
     public void stop(VisionOpMode opmode) {
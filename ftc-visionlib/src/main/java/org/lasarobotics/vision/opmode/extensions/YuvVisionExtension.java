@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 2016 Arthur Pachachura, LASA Robotics, and contributors
+ * MIT licensed
+ */
+package org.lasarobotics.vision.opmode.extensions;
+
+import org.lasarobotics.vision.opmode.VisionOpMode;
+import org.opencv.core.Mat;
+
+/**
+ * Interface for vision extensions that can process camera frames in their native NV21 format
+ * <p/>
+ * When native YUV processing is enabled in the op mode, these extensions receive the camera frame
+ * without it being converted to RGBA. The frame is only converted if another extension needs it.
+ */
+public interface YuvVisionExtension extends VisionExtension {
+    /**
+     * Test whether the extension can currently process NV21 frames
+     *
+     * @return True if frameYUV() may be called, false if the extension currently needs RGBA frames,
+     * for example to draw a debug overlay
+     */
+    boolean acceptsYuv();
+
+    /**
+     * Process an NV21 camera frame. The frame must not be modified.
+     *
+     * @param opmode Vision op mode
+     * @param yuv    NV21 image (1 channel, height * 3 / 2 rows)
+     * @param gray   Grayscale image, which is the Y plane of the NV21 image
+     * @return The image to display, if any
+     */
+    Mat frameYUV(VisionOpMode opmode, Mat yuv, Mat gray);
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2016 Arthur Pachachura, LASA Robotics, and contributors
+ * MIT licensed
+ */
+package org.lasarobotics.vision.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of latency histograms for each stage of the vision pipeline
+ * <p/>
+ * Stages are timed with consecutive laps:
+ * <pre>
+ * long t = Latency.start();
+ * //...first stage...
+ * t = FIRST_STAGE.lap(t);
+ * //...second stage...
+ * t = SECOND_STAGE.lap(t);
+ * </pre>
+ * Recording is disabled by default, in which case timing costs a single volatile read per stage.
+ */
+public final class Latency {
+    private static final ConcurrentHashMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private static volatile boolean enabled = false;
+
+    private Latency() {
+
+    }
+
+    /**
+     * Test whether latency recording is enabled
+     *
+     * @return True if enabled, false otherwise
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enable or disable latency recording for all stages
+     *
+     * @param enabled True to record latencies, false to stop recording
+     */
+    public static void setEnabled(boolean enabled) {
+        Latency.enabled = enabled;
+    }
+
+    /**
+     * Start timing a stage
+     *
+     * @return The current time, or 0 if latency recording is disabled
+     */
+    public static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Get the histogram of a stage, creating it if it does not exist
+     * Cache the result rather than calling this for every sample.
+     *
+     * @param name Stage name, such as "blob.pyrDown"
+     * @return Latency histogram
+     */
+    public static LatencyHistogram get(String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        if (histogram != null)
+            return histogram;
+        histogram = new LatencyHistogram(name);
+        LatencyHistogram existing = histograms.putIfAbsent(name, histogram);
+        return existing != null ? existing : histogram;
+    }
+
+    /**
+     * Get every histogram that has at least one sample, sorted by stage name
+     *
+     * @return List of histograms
+     */
+    public static List<LatencyHistogram> getHistograms() {
+        List<LatencyHistogram> list = new ArrayList<>();
+        for (LatencyHistogram histogram : histograms.values())
+            if (histogram.getCount() > 0)
+                list.add(histogram);
+        Collections.sort(list, new Comparator<LatencyHistogram>() {
+            @Override
+            public int compare(LatencyHistogram lhs, LatencyHistogram rhs) {
+                return lhs.getName().compareTo(rhs.getName());
+            }
+        });
+        return list;
+    }
+
+    /**
+     * Remove all samples from every histogram
+     */
+    public static void reset() {
+        for (LatencyHistogram histogram : histograms.values())
+            histogram.reset();
+    }
+
+    /**
+     * Get a summary of every stage that has at least one sample
+     *
+     * @return One line per stage, with the 50th, 95th, and 99th percentiles in milliseconds
+     */
+    public static String dump() {
+        StringBuilder builder = new StringBuilder();
+        for (LatencyHistogram histogram : getHistograms())
+            builder.append(histogram.toString()).append('\n');
+        return builder.toString();
+    }
+}
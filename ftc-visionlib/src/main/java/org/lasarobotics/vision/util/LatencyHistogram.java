@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2016 Arthur Pachachura, LASA Robotics, and contributors
+ * MIT licensed
+ */
+package org.lasarobotics.vision.util;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size, thread-safe latency histogram with logarithmic buckets
+ * <p/>
+ * Samples are counted in microsecond buckets. Values under 16us are exact, and larger values are
+ * grouped into 8 buckets per power of two (within 12.5%). Recording a sample never allocates.
+ * Use lap() with the Latency registry to time consecutive stages of a pipeline.
+ */
+public class LatencyHistogram {
+    private static final int LINEAR_BUCKETS = 16;
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 36; //about 19 hours
+    private static final int BUCKETS = LINEAR_BUCKETS + (MAX_EXPONENT - 4 + 1) * SUB_BUCKETS;
+
+    private final String name;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Create a latency histogram
+     * Use Latency.get() to create histograms that are visible in the registry.
+     *
+     * @param name Name of the timed stage
+     */
+    public LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    private static int bucketOf(long micros) {
+        if (micros < LINEAR_BUCKETS)
+            return (int) Math.max(0, micros);
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT)
+            return BUCKETS - 1;
+        int sub = (int) (micros >> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_BUCKETS + (exponent - 4) * SUB_BUCKETS + sub;
+    }
+
+    private static double bucketMidpoint(int bucket) {
+        if (bucket < LINEAR_BUCKETS)
+            return bucket + 0.5;
+        int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 4;
+        int sub = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+        double width = Math.pow(2, exponent - SUB_BUCKET_BITS);
+        return Math.pow(2, exponent) + (sub + 0.5) * width;
+    }
+
+    /**
+     * Get the name of the timed stage
+     *
+     * @return Stage name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Record a single sample
+     *
+     * @param nanos Duration, in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = nanos / 1000;
+        buckets.incrementAndGet(bucketOf(micros));
+        count.incrementAndGet();
+        sum.addAndGet(nanos);
+
+        long currentMax = max.get();
+        while (nanos > currentMax && !max.compareAndSet(currentMax, nanos))
+            currentMax = max.get();
+    }
+
+    /**
+     * Record the time since the start of a stage, and return the start of the next stage
+     * Does nothing if latency recording is disabled.
+     *
+     * @param start Start of the stage, as returned by Latency.start() or a previous lap()
+     * @return The current time, to start the next stage, or 0 if latency recording is disabled
+     */
+    public long lap(long start) {
+        if (!Latency.isEnabled())
+            return 0;
+        long now = System.nanoTime();
+        //Recording may have been enabled in the middle of a stage
+        if (start != 0)
+            record(now - start);
+        return now;
+    }
+
+    /**
+     * Get the number of samples
+     *
+     * @return Number of samples
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Get the mean latency
+     *
+     * @return Mean latency, in milliseconds
+     */
+    public double getMean() {
+        long n = count.get();
+        return n > 0 ? sum.get() / (double) n / 1000000.0 : 0;
+    }
+
+    /**
+     * Get the largest latency
+     *
+     * @return Maximum latency, in milliseconds
+     */
+    public double getMax() {
+        return max.get() / 1000000.0;
+    }
+
+    /**
+     * Get a latency percentile
+     *
+     * @param percentile Percentile, from 0 to 100
+     * @return Latency at the percentile, in milliseconds, accurate to within one bucket
+     */
+    public double getPercentile(double percentile) {
+        long n = count.get();
+        if (n == 0)
+            return 0;
+        long target = (long) Math.ceil(MathUtil.coerce(0, 100, percentile) / 100.0 * n);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= target && seen > 0)
+                return Math.min(bucketMidpoint(i) / 1000.0, getMax());
+        }
+        return getMax();
+    }
+
+    /**
+     * Remove all samples
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++)
+            buckets.set(i, 0);
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    /**
+     * Get a summary of the latency percentiles
+     *
+     * @return Summary string with the 50th, 95th, and 99th percentiles and maximum, in milliseconds
+     */
+    public String getSummary() {
+        //Summaries may be requested from any thread, so no formatter is shared
+        return String.format(Locale.US, "p50 %.2f p95 %.2f p99 %.2f max %.2f ms (%d)",
+                getPercentile(50), getPercentile(95), getPercentile(99), getMax(), getCount());
+    }
+
+    @Override
+    public String toString() {
+        return name + ": " + getSummary();
+    }
+}
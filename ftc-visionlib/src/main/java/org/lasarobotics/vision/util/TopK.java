@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2016 Arthur Pachachura, LASA Robotics, and contributors
+ * MIT licensed
+ */
+package org.lasarobotics.vision.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the K items with the largest keys from a stream of items
+ * <p/>
+ * Keeps a min-heap of at most K entries keyed by primitive doubles, so offering n items costs
+ * O(n log K) and never stores more than K of them. Items with equal keys keep the order in which
+ * they were offered, the same as a stable sort.
+ *
+ * @param <T> Type of the collected items
+ */
+public class TopK<T> {
+    private final int capacity;
+    private final double[] keys;
+    private final int[] order;
+    private final Object[] items;
+    private int size = 0;
+    private int offered = 0;
+
+    /**
+     * Create a collector
+     *
+     * @param k Maximum number of items to keep, at least 1
+     */
+    public TopK(int k) {
+        if (k < 1)
+            throw new IllegalArgumentException("K must be at least 1!");
+        this.capacity = k;
+        this.keys = new double[k];
+        this.order = new int[k];
+        this.items = new Object[k];
+    }
+
+    /**
+     * Offer an item
+     *
+     * @param item Item
+     * @param key  Key of the item - larger keys are kept
+     * @return True if the item is currently among the top K, false if it was discarded
+     */
+    public boolean offer(T item, double key) {
+        int seq = offered++;
+        if (size < capacity) {
+            set(size, item, key, seq);
+            siftUp(size++);
+            return true;
+        }
+        //Only replace the worst entry if strictly better, so earlier items win ties
+        if (!(key > keys[0]))
+            return false;
+        set(0, item, key, seq);
+        siftDown(0);
+        return true;
+    }
+
+    /**
+     * Get the number of items kept
+     *
+     * @return Number of items, at most K
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the kept items, from the largest key to the smallest
+     * Empties the collector.
+     *
+     * @return List of at most K items
+     */
+    @SuppressWarnings("unchecked")
+    public List<T> drain() {
+        Object[] sorted = new Object[size];
+        //Repeatedly removing the worst entry fills the result from the back
+        for (int i = size - 1; i >= 0; i--) {
+            sorted[i] = items[0];
+            size--;
+            swap(0, size);
+            items[size] = null;
+            siftDown(0);
+        }
+        List<T> result = new ArrayList<>(sorted.length);
+        for (Object item : sorted)
+            result.add((T) item);
+        offered = 0;
+        return result;
+    }
+
+    /**
+     * Discard all items
+     */
+    public void clear() {
+        for (int i = 0; i < size; i++)
+            items[i] = null;
+        size = 0;
+        offered = 0;
+    }
+
+    //True if entry a ranks below entry b: a smaller key, or an equal key offered later
+    private boolean worse(int a, int b) {
+        return keys[a] < keys[b] || (keys[a] == keys[b] && order[a] > order[b]);
+    }
+
+    private void set(int i, T item, double key, int seq) {
+        items[i] = item;
+        keys[i] = key;
+        order[i] = seq;
+    }
+
+    private void swap(int a, int b) {
+        Object item = items[a];
+        items[a] = items[b];
+        items[b] = item;
+        double key = keys[a];
+        keys[a] = keys[b];
+        keys[b] = key;
+        int seq = order[a];
+        order[a] = order[b];
+        order[b] = seq;
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (!worse(i, parent))
+                return;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size)
+                return;
+            if (child + 1 < size && worse(child + 1, child))
+                child++;
+            if (!worse(child, i))
+                return;
+            swap(i, child);
+            i = child;
+        }
+    }
+}
@@ -6,6 +6,7 @@ import org.opencv.R;
 import org.opencv.android.Utils;
 import org.opencv.core.Mat;
 import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
 import org.opencv.videoio.Videoio;
 
 import android.app.Activity;
@@ -51,6 +52,39 @@ public abstract class CameraBridgeViewBase extends SurfaceView implements Surfac
     protected boolean mEnabled;
     protected FpsMeter mFpsMeter = null;
 
+    private PreviewMode mPreviewMode = PreviewMode.FULL;
+    private int mPreviewInterval = 1;
+    private int mPreviewDownscale = 2;
+    private long mPreviewCounter = 0;
+    private final Object mPreviewLock = new Object();
+    private Mat mPreviewPending = new Mat();
+    private Mat mPreviewDrawing = new Mat();
+    private boolean mPreviewReady = false;
+    private boolean mStopPreview = false;
+    private Thread mPreviewThread;
+
+    /**
+     * How processed frames are shown on the screen
+     */
+    public enum PreviewMode {
+        /**
+         * Draw every frame at full resolution
+         */
+        FULL,
+        /**
+         * Draw only every Nth frame, as set by setPreviewInterval()
+         */
+        DECIMATED,
+        /**
+         * Draw every Nth frame at a reduced resolution, as set by setPreviewDownscale()
+         */
+        DOWNSCALED,
+        /**
+         * Do not draw frames at all
+         */
+        OFF
+    }
+
     public static final int CAMERA_ID_ANY   = -1;
     public static final int CAMERA_ID_BACK  = 99;
     public static final int CAMERA_ID_FRONT = 98;
@@ -189,6 +223,13 @@ public abstract class CameraBridgeViewBase extends SurfaceView implements Surfac
          * This method returns single channel gray scale Mat with frame
          */
         Mat gray();
+
+        /**
+         * This method returns the raw NV21 (YUV420sp) frame as a single channel Mat, with the
+         * full-size Y plane followed by the interleaved, half-size VU plane
+         * (height * 3 / 2 rows). Returns null if the camera does not deliver NV21 frames.
+         */
+        Mat yuv();
     }
 
     public void surfaceChanged(SurfaceHolder arg0, int arg1, int arg2, int arg3) {
@@ -285,6 +326,36 @@ public abstract class CameraBridgeViewBase extends SurfaceView implements Surfac
         mMaxHeight = maxHeight;
     }
 
+    /**
+     * This method sets how processed frames are drawn to the screen. Frames are converted to a bitmap
+     * and drawn on a separate preview thread, so only copying (and downscaling) the frame is done
+     * on the processing thread. If the preview thread falls behind, only the newest frame is drawn.
+     * @param mode - the preview mode, FULL by default
+     */
+    public void setPreviewMode(PreviewMode mode) {
+        mPreviewMode = mode;
+    }
+
+    public PreviewMode getPreviewMode() {
+        return mPreviewMode;
+    }
+
+    /**
+     * This method sets how often frames are drawn in the DECIMATED and DOWNSCALED preview modes.
+     * @param interval - draw one of every interval frames, at least 1
+     */
+    public void setPreviewInterval(int interval) {
+        mPreviewInterval = Math.max(1, interval);
+    }
+
+    /**
+     * This method sets the resolution divisor used by the DOWNSCALED preview mode.
+     * @param factor - divide the frame width and height by this value, at least 1
+     */
+    public void setPreviewDownscale(int factor) {
+        mPreviewDownscale = Math.max(1, factor);
+    }
+
     public void SetCaptureFormat(int format)
     {
         mPreviewFormat = format;
@@ -375,6 +446,7 @@ public abstract class CameraBridgeViewBase extends SurfaceView implements Surfac
 
     private void onExitStartedState() {
         disconnectCamera();
+        stopPreviewThread();
         if (mCacheBitmap != null) {
             mCacheBitmap.recycle();
         }
@@ -395,43 +467,126 @@ public abstract class CameraBridgeViewBase extends SurfaceView implements Surfac
             modified = frame.rgba();
         }
 
-        boolean bmpValid = true;
-        if (modified != null) {
+        if (mFpsMeter != null)
+            mFpsMeter.measure();
+
+        if (modified == null || !shouldDrawPreview())
+            return;
+
+        /* Hand a copy of the frame to the preview thread, replacing any frame it has not drawn yet */
+        synchronized (mPreviewLock) {
+            if (mPreviewMode == PreviewMode.DOWNSCALED && mPreviewDownscale > 1) {
+                Size size = new Size(modified.cols() / mPreviewDownscale, modified.rows() / mPreviewDownscale);
+                Imgproc.resize(modified, mPreviewPending, size, 0, 0, Imgproc.INTER_NEAREST);
+            } else {
+                modified.copyTo(mPreviewPending);
+            }
+            mPreviewReady = true;
+            if (mPreviewThread == null) {
+                mStopPreview = false;
+                mPreviewThread = new Thread(new PreviewWorker(), "CameraPreview");
+                mPreviewThread.start();
+            }
+            mPreviewLock.notify();
+        }
+    }
+
+    private boolean shouldDrawPreview() {
+        switch (mPreviewMode) {
+            case OFF:
+                return false;
+            case DECIMATED:
+            case DOWNSCALED:
+                return (mPreviewCounter++ % mPreviewInterval) == 0;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Stops the preview thread, if running. Frames that have not been drawn yet are discarded.
+     */
+    protected void stopPreviewThread() {
+        Thread thread;
+        synchronized (mPreviewLock) {
+            thread = mPreviewThread;
+            mStopPreview = true;
+            mPreviewReady = false;
+            mPreviewLock.notify();
+        }
+        if (thread != null && thread != Thread.currentThread()) {
             try {
-                Utils.matToBitmap(modified, mCacheBitmap);
-            } catch(Exception e) {
-                Log.e(TAG, "Mat type: " + modified);
-                Log.e(TAG, "Bitmap type: " + mCacheBitmap.getWidth() + "*" + mCacheBitmap.getHeight());
-                Log.e(TAG, "Utils.matToBitmap() throws an exception: " + e.getMessage());
-                bmpValid = false;
+                thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
             }
         }
+        synchronized (mPreviewLock) {
+            mPreviewThread = null;
+        }
+    }
 
-        if (bmpValid && mCacheBitmap != null) {
-            Canvas canvas = getHolder().lockCanvas();
-            if (canvas != null) {
-                canvas.drawColor(0, android.graphics.PorterDuff.Mode.CLEAR);
-                Log.d(TAG, "mStretch value: " + mScale);
-
-                if (mScale != 0) {
-                    canvas.drawBitmap(mCacheBitmap, new Rect(0,0,mCacheBitmap.getWidth(), mCacheBitmap.getHeight()),
-                         new Rect((int)((canvas.getWidth() - mScale*mCacheBitmap.getWidth()) / 2),
-                         (int)((canvas.getHeight() - mScale*mCacheBitmap.getHeight()) / 2),
-                         (int)((canvas.getWidth() - mScale*mCacheBitmap.getWidth()) / 2 + mScale*mCacheBitmap.getWidth()),
-                         (int)((canvas.getHeight() - mScale*mCacheBitmap.getHeight()) / 2 + mScale*mCacheBitmap.getHeight())), null);
-                } else {
-                     canvas.drawBitmap(mCacheBitmap, new Rect(0,0,mCacheBitmap.getWidth(), mCacheBitmap.getHeight()),
-                         new Rect((canvas.getWidth() - mCacheBitmap.getWidth()) / 2,
-                         (canvas.getHeight() - mCacheBitmap.getHeight()) / 2,
-                         (canvas.getWidth() - mCacheBitmap.getWidth()) / 2 + mCacheBitmap.getWidth(),
-                         (canvas.getHeight() - mCacheBitmap.getHeight()) / 2 + mCacheBitmap.getHeight()), null);
-                }
+    private void drawPreview(Mat frame) {
+        /* Downscaled frames need a bitmap of their own size */
+        if (mCacheBitmap == null || mCacheBitmap.getWidth() != frame.cols() || mCacheBitmap.getHeight() != frame.rows()) {
+            if (mCacheBitmap != null)
+                mCacheBitmap.recycle();
+            mCacheBitmap = Bitmap.createBitmap(frame.cols(), frame.rows(), Bitmap.Config.ARGB_8888);
+        }
 
-                if (mFpsMeter != null) {
-                    mFpsMeter.measure();
-                    mFpsMeter.draw(canvas, 20, 30);
+        try {
+            Utils.matToBitmap(frame, mCacheBitmap);
+        } catch(Exception e) {
+            Log.e(TAG, "Mat type: " + frame);
+            Log.e(TAG, "Bitmap type: " + mCacheBitmap.getWidth() + "*" + mCacheBitmap.getHeight());
+            Log.e(TAG, "Utils.matToBitmap() throws an exception: " + e.getMessage());
+            return;
+        }
+
+        Canvas canvas = getHolder().lockCanvas();
+        if (canvas != null) {
+            canvas.drawColor(0, android.graphics.PorterDuff.Mode.CLEAR);
+
+            /* Downscaled bitmaps are stretched to the size a full frame would have */
+            float scale = (mScale != 0) ? mScale : 1;
+            int width = (int) (scale * mFrameWidth);
+            int height = (int) (scale * mFrameHeight);
+            int left = (canvas.getWidth() - width) / 2;
+            int top = (canvas.getHeight() - height) / 2;
+            canvas.drawBitmap(mCacheBitmap, new Rect(0, 0, mCacheBitmap.getWidth(), mCacheBitmap.getHeight()),
+                    new Rect(left, top, left + width, top + height), null);
+
+            if (mFpsMeter != null) {
+                mFpsMeter.draw(canvas, 20, 30);
+            }
+            getHolder().unlockCanvasAndPost(canvas);
+        }
+    }
+
+    private class PreviewWorker implements Runnable {
+
+        @Override
+        public void run() {
+            while (true) {
+                synchronized (mPreviewLock) {
+                    try {
+                        while (!mPreviewReady && !mStopPreview) {
+                            mPreviewLock.wait();
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (mStopPreview)
+                        return;
+
+                    /* Swap buffers so the processing thread can write the next frame while this one is drawn */
+                    Mat swap = mPreviewDrawing;
+                    mPreviewDrawing = mPreviewPending;
+                    mPreviewPending = swap;
+                    mPreviewReady = false;
                 }
-                getHolder().unlockCanvasAndPost(canvas);
+
+                drawPreview(mPreviewDrawing);
             }
         }
     }
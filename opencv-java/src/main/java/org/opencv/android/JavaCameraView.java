@@ -25,20 +25,62 @@ import java.util.List;
  * disconnectCamera - closes the camera and stops preview.
  * When frame is delivered via callback from Camera - it processed via OpenCV to be
  * converted to RGBA32 and then passed to the external callback for modifications if required.
+ * Captured frames are buffered in a ring of preallocated frames. What happens when processing is
+ * slower than capture is selected with setFramePolicy().
  */
 public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallback {
 
     private static final int MAGIC_TEXTURE_ID = 10;
     private static final String TAG = "JavaCameraView";
+
+    /* States of a frame in the ring */
+    private static final int FRAME_FREE = 0;
+    private static final int FRAME_READY = 1;
+    private static final int FRAME_PROCESSING = 2;
+
     protected Camera mCamera;
     protected JavaCameraFrame[] mCameraFrame;
     private byte mBuffer[];
     private Mat[] mFrameChain;
-    private int mChainIdx = 0;
+    private int[] mFrameState;
+    private long[] mFrameSequence;
+    private long[] mFrameTimestamp;
     private Thread mThread;
     private boolean mStopThread;
     private SurfaceTexture mSurfaceTexture;
-    private boolean mCameraFrameReady = false;
+
+    private int mFrameBufferCount = 2;
+    private FramePolicy mFramePolicy = FramePolicy.LATEST;
+    private boolean mBufferHeld = false;
+    private long mHeldTimestamp = 0;
+    private long mCapturedFrames = 0;
+    private long mProcessedFrames = 0;
+    private long mDroppedFrames = 0;
+    private long mLastCaptureTime = 0;
+    private long mLastProcessedCaptureTime = 0;
+    private long mCurrentCaptureTime = 0;
+
+    /**
+     * What to do with captured frames when processing is slower than the camera
+     */
+    public enum FramePolicy {
+        /**
+         * Always process the newest frame, dropping any older frames that have not been processed.
+         * This gives the lowest latency.
+         */
+        LATEST,
+        /**
+         * Process frames in the order they were captured. Once the ring is full, the oldest
+         * waiting frame is dropped to make room for the new one.
+         */
+        QUEUE,
+        /**
+         * Process frames in the order they were captured. Once the ring is full, the camera buffer
+         * is held until a frame is processed, so the camera itself skips frames instead.
+         * No captured frame is ever dropped, but frames may be older when processed.
+         */
+        BLOCK
+    }
 
     public JavaCameraView(Context context, int cameraId) {
         super(context, cameraId);
@@ -60,6 +102,76 @@ public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallb
 
     public Camera getCamera() { return mCamera; }
 
+    /**
+     * Set the number of frames buffered between the camera and processing
+     * Deeper rings absorb longer processing stalls at the cost of memory and, unless the policy is
+     * LATEST, latency. Takes effect the next time the camera is connected.
+     * @param count Number of frames, at least 2
+     */
+    public void setFrameBufferCount(int count) {
+        mFrameBufferCount = Math.max(2, count);
+    }
+
+    public int getFrameBufferCount() {
+        return mFrameBufferCount;
+    }
+
+    /**
+     * Set what happens to captured frames when processing is slower than the camera
+     * @param policy Frame policy, LATEST by default
+     */
+    public synchronized void setFramePolicy(FramePolicy policy) {
+        mFramePolicy = policy;
+    }
+
+    public synchronized FramePolicy getFramePolicy() {
+        return mFramePolicy;
+    }
+
+    /**
+     * @return Number of frames received from the camera since it was connected
+     */
+    public synchronized long getCapturedFrameCount() {
+        return mCapturedFrames;
+    }
+
+    /**
+     * @return Number of frames delivered for processing since the camera was connected
+     */
+    public synchronized long getProcessedFrameCount() {
+        return mProcessedFrames;
+    }
+
+    /**
+     * Frames are dropped when they are overwritten or skipped before being processed.
+     * Frames skipped by the camera while its buffer is held by the BLOCK policy are not counted.
+     * @return Number of captured frames that were never processed since the camera was connected
+     */
+    public synchronized long getDroppedFrameCount() {
+        return mDroppedFrames;
+    }
+
+    /**
+     * @return Time the last frame was received from the camera, in nanoseconds (System.nanoTime())
+     */
+    public synchronized long getLastCaptureTime() {
+        return mLastCaptureTime;
+    }
+
+    /**
+     * @return Time the frame currently being processed was received from the camera, in nanoseconds (System.nanoTime())
+     */
+    public synchronized long getCurrentCaptureTime() {
+        return mCurrentCaptureTime;
+    }
+
+    /**
+     * @return Time the last processed frame was received from the camera, in nanoseconds (System.nanoTime())
+     */
+    public synchronized long getLastProcessedCaptureTime() {
+        return mLastProcessedCaptureTime;
+    }
+
     protected boolean initializeCamera(int width, int height) {
         Log.d(TAG, "Initialize java camera");
         boolean result = true;
@@ -175,16 +287,20 @@ public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallb
                     mCamera.addCallbackBuffer(mBuffer);
                     mCamera.setPreviewCallbackWithBuffer(this);
 
-                    mFrameChain = new Mat[2];
-                    mFrameChain[0] = new Mat(mFrameHeight + (mFrameHeight/2), mFrameWidth, CvType.CV_8UC1);
-                    mFrameChain[1] = new Mat(mFrameHeight + (mFrameHeight/2), mFrameWidth, CvType.CV_8UC1);
+                    int count = mFrameBufferCount;
+                    mFrameChain = new Mat[count];
+                    mCameraFrame = new JavaCameraFrame[count];
+                    mFrameState = new int[count];
+                    mFrameSequence = new long[count];
+                    mFrameTimestamp = new long[count];
+                    for (int i = 0; i < count; i++) {
+                        mFrameChain[i] = new Mat(mFrameHeight + (mFrameHeight/2), mFrameWidth, CvType.CV_8UC1);
+                        mCameraFrame[i] = new JavaCameraFrame(mFrameChain[i], mFrameWidth, mFrameHeight);
+                    }
+                    resetFrameRing();
 
                     AllocateCache();
 
-                    mCameraFrame = new JavaCameraFrame[2];
-                    mCameraFrame[0] = new JavaCameraFrame(mFrameChain[0], mFrameWidth, mFrameHeight);
-                    mCameraFrame[1] = new JavaCameraFrame(mFrameChain[1], mFrameWidth, mFrameHeight);
-
                     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
                         mSurfaceTexture = new SurfaceTexture(MAGIC_TEXTURE_ID);
                         mCamera.setPreviewTexture(mSurfaceTexture);
@@ -216,12 +332,12 @@ public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallb
             }
             mCamera = null;
             if (mFrameChain != null) {
-                mFrameChain[0].release();
-                mFrameChain[1].release();
+                for (Mat frame : mFrameChain)
+                    frame.release();
             }
             if (mCameraFrame != null) {
-                mCameraFrame[0].release();
-                mCameraFrame[1].release();
+                for (JavaCameraFrame frame : mCameraFrame)
+                    frame.release();
             }
         }
     }
@@ -237,8 +353,6 @@ public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallb
         if (!initializeCamera(width, height))
             return false;
 
-        mCameraFrameReady = false;
-
         /* now we can start update thread */
         Log.d(TAG, "Starting processing thread");
         mStopThread = false;
@@ -271,21 +385,92 @@ public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallb
             mThread =  null;
         }
 
+        stopPreviewThread();
+
         /* Now release camera */
         releaseCamera();
+    }
+
+    private synchronized void resetFrameRing() {
+        for (int i = 0; i < mFrameState.length; i++)
+            mFrameState[i] = FRAME_FREE;
+        mBufferHeld = false;
+        mCapturedFrames = 0;
+        mProcessedFrames = 0;
+        mDroppedFrames = 0;
+        mLastCaptureTime = 0;
+        mLastProcessedCaptureTime = 0;
+    }
+
+    /* Must be called while synchronized. Returns -1 if no frame can be written. */
+    private int acquireFrame() {
+        for (int i = 0; i < mFrameState.length; i++)
+            if (mFrameState[i] == FRAME_FREE)
+                return i;
+
+        if (mFramePolicy == FramePolicy.BLOCK)
+            return -1;
+
+        /* Ring is full - overwrite the oldest frame waiting to be processed */
+        int oldest = findReadyFrame(false);
+        if (oldest >= 0)
+            mDroppedFrames++;
+        return oldest;
+    }
+
+    /* Must be called while synchronized. Returns the oldest or newest ready frame, or -1 if none. */
+    private int findReadyFrame(boolean newest) {
+        int found = -1;
+        for (int i = 0; i < mFrameState.length; i++)
+            if (mFrameState[i] == FRAME_READY && (found < 0 ||
+                    (newest ? mFrameSequence[i] > mFrameSequence[found] : mFrameSequence[i] < mFrameSequence[found])))
+                found = i;
+        return found;
+    }
+
+    /* Must be called while synchronized. Returns the next frame to process, or -1 if none. */
+    private int takeFrame() {
+        if (mFramePolicy != FramePolicy.LATEST)
+            return findReadyFrame(false);
+
+        /* Skip every frame older than the newest one */
+        int newest = findReadyFrame(true);
+        for (int i = 0; i < mFrameState.length; i++)
+            if (i != newest && mFrameState[i] == FRAME_READY) {
+                mFrameState[i] = FRAME_FREE;
+                mDroppedFrames++;
+            }
+        return newest;
+    }
 
-        mCameraFrameReady = false;
+    /* Must be called while synchronized */
+    private void writeFrame(int index, byte[] frame, long timestamp) {
+        mFrameChain[index].put(0, 0, frame);
+        mFrameState[index] = FRAME_READY;
+        mFrameSequence[index] = mCapturedFrames;
+        mFrameTimestamp[index] = timestamp;
+        this.notify();
     }
 
     @Override
     public void onPreviewFrame(byte[] frame, Camera arg1) {
-        Log.d(TAG, "Preview Frame received. Frame size: " + frame.length);
+        boolean returnBuffer = true;
         synchronized (this) {
-            mFrameChain[mChainIdx].put(0, 0, frame);
-            mCameraFrameReady = true;
-            this.notify();
+            long timestamp = System.nanoTime();
+            mCapturedFrames++;
+            mLastCaptureTime = timestamp;
+
+            int index = acquireFrame();
+            if (index >= 0) {
+                writeFrame(index, frame, timestamp);
+            } else {
+                /* Ring is full - keep the camera buffer until the worker frees a frame */
+                mBufferHeld = true;
+                mHeldTimestamp = timestamp;
+                returnBuffer = false;
+            }
         }
-        if (mCamera != null)
+        if (returnBuffer && mCamera != null)
             mCamera.addCallbackBuffer(mBuffer);
     }
 
@@ -329,6 +514,11 @@ public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallb
             return mRgba;
         }
 
+        @Override
+        public Mat yuv() {
+            return mYuvFrameData;
+        }
+
         public void release() {
             mRgba.release();
         }
@@ -339,22 +529,40 @@ public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallb
         @Override
         public void run() {
             do {
+                int index = -1;
                 synchronized (JavaCameraView.this) {
                     try {
-                        while (!mCameraFrameReady && !mStopThread) {
+                        while (!mStopThread && (index = takeFrame()) < 0) {
                             JavaCameraView.this.wait();
                         }
                     } catch (InterruptedException e) {
                         e.printStackTrace();
                     }
-                    if (mCameraFrameReady)
-                        mChainIdx = 1 - mChainIdx;
+                    if (index >= 0) {
+                        mFrameState[index] = FRAME_PROCESSING;
+                        mCurrentCaptureTime = mFrameTimestamp[index];
+                    }
                 }
 
-                if (!mStopThread && mCameraFrameReady) {
-                    mCameraFrameReady = false;
-                    if (!mFrameChain[1 - mChainIdx].empty())
-                        deliverAndDrawFrame(mCameraFrame[1 - mChainIdx]);
+                if (!mStopThread && index >= 0) {
+                    if (!mFrameChain[index].empty())
+                        deliverAndDrawFrame(mCameraFrame[index]);
+
+                    boolean returnBuffer = false;
+                    synchronized (JavaCameraView.this) {
+                        mFrameState[index] = FRAME_FREE;
+                        mProcessedFrames++;
+                        mLastProcessedCaptureTime = mFrameTimestamp[index];
+
+                        /* A frame is free again, so take the held camera buffer */
+                        if (mBufferHeld) {
+                            writeFrame(index, mBuffer, mHeldTimestamp);
+                            mBufferHeld = false;
+                            returnBuffer = true;
+                        }
+                    }
+                    if (returnBuffer && mCamera != null)
+                        mCamera.addCallbackBuffer(mBuffer);
                 }
             } while (!mStopThread);
             Log.d(TAG, "Finish processing thread");